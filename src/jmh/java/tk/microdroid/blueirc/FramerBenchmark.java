@@ -0,0 +1,67 @@
+package tk.microdroid.blueirc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of splitting received bytes into lines, with and without decoding them.
+ * One operation is a chunk of 64 lines, mostly ASCII, with UTF-8 and Latin-1 lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramerBenchmark {
+    private ByteBuffer chunk;
+    private LineFramer framer;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 64; i++) {
+            String line = ":nick" + i + "!~user@host.example.com PRIVMSG #blueirc :";
+            if (i % 8 == 0)
+                out.write((line + "héllo wörld\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            else if (i % 4 == 0)
+                out.write((line + "héllo wörld\r\n").getBytes(StandardCharsets.UTF_8));
+            else
+                out.write((line + "hello world, how is everyone doing today?\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        chunk = ByteBuffer.wrap(out.toByteArray());
+        framer = new LineFramer();
+    }
+
+    @Benchmark
+    public int frame() throws IOException {
+        chunk.rewind();
+        framer.feed(chunk);
+        int lines = 0;
+        while (framer.next()) lines++;
+        return lines;
+    }
+
+    @Benchmark
+    public void frameAndDecode(Blackhole bh) throws IOException {
+        chunk.rewind();
+        framer.feed(chunk);
+        while (framer.next())
+            bh.consume(framer.decode(StandardCharsets.ISO_8859_1));
+    }
+}
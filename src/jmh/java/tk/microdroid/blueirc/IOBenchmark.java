@@ -0,0 +1,99 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@code IO} helpers which build outgoing lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IOBenchmark {
+    private String shortMsg;
+    private String longMsg;
+    private String multiLineMsg;
+    private String paste;
+    private String longPaste;
+    private final ArrayList<String> lines = new ArrayList<>();
+    private String[] args;
+
+    @Setup
+    public void setup() {
+        shortMsg = "hello there, how is everyone doing today?";
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4000) sb.append("lorem ipsum dolor sit amet ");
+        longMsg = sb.toString();
+        sb.setLength(0);
+        for (int i = 0; i < 40; i++) sb.append("line ").append(i).append(" of a pasted snippet\n");
+        multiLineMsg = sb.toString();
+        sb.setLength(0);
+        while (sb.length() < 100000) sb.append("pasted text, with some üñíçødé in it\n");
+        paste = sb.toString();
+        longPaste = paste.replace('\n', ' '); // One 100 KB line, split at word boundaries
+        args = new String[]{"#blueirc", "+o", "nick", "other", "third"};
+    }
+
+    @Benchmark
+    public String compile() {
+        return IO.compile("PRIVMSG", new String[]{"#blueirc"}, shortMsg);
+    }
+
+    @Benchmark
+    public String privmsgShort() {
+        return IO.privmsg("#blueirc", shortMsg);
+    }
+
+    @Benchmark
+    public String privmsgLong() {
+        return IO.privmsg("#blueirc", longMsg);
+    }
+
+    @Benchmark
+    public String privmsgMultiLine() {
+        return IO.privmsg("#blueirc", multiLineMsg);
+    }
+
+    @Benchmark
+    public String privmsgPaste() {
+        return IO.privmsg("#blueirc", paste);
+    }
+
+    @Benchmark
+    public String privmsgLongPaste() {
+        return IO.privmsg("#blueirc", longPaste);
+    }
+
+    @Benchmark
+    public int splitPaste() {
+        lines.clear();
+        IO.split("PRIVMSG", "#blueirc", paste, 40, lines);
+        return lines.size();
+    }
+
+    @Benchmark
+    public int splitLongPaste() {
+        lines.clear();
+        IO.split("PRIVMSG", "#blueirc", longPaste, 40, lines);
+        return lines.size();
+    }
+
+    @Benchmark
+    public String concat() {
+        return IO.concat(args, " ");
+    }
+}
@@ -0,0 +1,94 @@
+package tk.microdroid.blueirc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing throughput on a realistic mix of received lines.
+ * The mix is mostly channel traffic, with numerics, IRCv3 tagged lines and a NAMES reply
+ * Of a few hundred nicks, like the lines received after joining a busy channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    private String[] lines;
+    private String names;
+    private Parser reusable;
+    private int next;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(":irc.example.net 353 BlueIRCNick = #blueirc :");
+        for (int i = 0; i < 400; i++)
+            sb.append(i % 20 == 0 ? "@" : i % 7 == 0 ? "+" : "").append("someuser").append(i).append(' ');
+        names = sb.toString().trim();
+        lines = new String[]{
+                ":nick!~user@host.example.com PRIVMSG #blueirc :hello there, how is everyone doing today?",
+                ":other!~someone@2001:db8::1 PRIVMSG #blueirc :!seen nick",
+                "@time=2017-04-01T12:34:56.789Z;msgid=abc123;account=nick :nick!~user@host.example.com PRIVMSG #blueirc :a tagged message",
+                ":irc.example.net 372 BlueIRCNick :- Welcome to the example network, please read the rules",
+                ":irc.example.net 005 BlueIRCNick PREFIX=(ov)@+ NETWORK=Example CASEMAPPING=rfc1459 :are supported by this server",
+                "PING :irc.example.net",
+                ":nick!~user@host.example.com JOIN #blueirc",
+                ":nick!~user@host.example.com QUIT :Ping timeout: 240 seconds",
+                ":ChanServ!ChanServ@services. MODE #blueirc +o nick",
+                names
+        };
+        reusable = Parser.reusable();
+    }
+
+    private String nextLine() {
+        String line = lines[next];
+        next = next + 1 == lines.length ? 0 : next + 1;
+        return line;
+    }
+
+    @Benchmark
+    public Parser parseMix() {
+        return new Parser(nextLine());
+    }
+
+    @Benchmark
+    public void parseMixAndRead(Blackhole bh) {
+        Parser p = new Parser(nextLine());
+        bh.consume(p.getCommand());
+        bh.consume(p.getNick());
+        bh.consume(p.getMsg());
+        bh.consume(p.getActionArgs());
+    }
+
+    @Benchmark
+    public Parser parseMixReused() {
+        return reusable.reset(nextLine());
+    }
+
+    @Benchmark
+    public long parseTaggedServerTime() {
+        return new Parser(lines[2]).getServerTime();
+    }
+
+    @Benchmark
+    public String parseTaggedTag() {
+        return new Parser(lines[2]).getTag("account");
+    }
+
+    @Benchmark
+    public int parseNames() {
+        return new Parser(names).getMsg().split(" ").length;
+    }
+}
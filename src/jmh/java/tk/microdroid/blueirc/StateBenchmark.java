@@ -0,0 +1,88 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the channel and user state updates done for received lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateBenchmark {
+    @Param({"1000", "100000"})
+    public int bufferLength;
+
+    private Channel channel;
+    private Channel fullChannel;
+    private String[] lookups;
+    private String[] names; // The NAMES replies of a 20k users channel
+    private MessageBuffer messages;
+    private Parser message;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Worker worker = new Worker("irc.example.net", 6667, "BlueIRCNick", "BlueIRCNick_",
+                "BlueIRCUser", "", "", false, false);
+        channel = new Channel(worker, "#blueirc");
+        ArrayList<String> replies = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        lookups = new String[20000];
+        for (int i = 0; i < lookups.length; i++) {
+            if (sb.length() > 400) {
+                replies.add(sb.toString());
+                sb.setLength(0);
+            }
+            sb.append(sb.length() == 0 ? "" : " ").append(i % 20 == 0 ? "@" : i % 7 == 0 ? "+" : "").append("someuser").append(i);
+            lookups[i] = "SomeUser" + i; // Another case than in NAMES
+        }
+        replies.add(sb.toString());
+        names = replies.toArray(new String[0]);
+        fullChannel = new Channel(worker, "#full");
+        names(fullChannel);
+        message = new Parser(":nick!~user@host.example.com PRIVMSG #blueirc :hello there");
+        messages = new MessageBuffer(bufferLength);
+        for (int i = 0; i < bufferLength; i++)
+            messages.add(message);
+    }
+
+    private Channel names(Channel chan) {
+        for (String reply : names)
+            chan.addNames(reply);
+        chan.endOfNames();
+        return chan;
+    }
+
+    @Benchmark
+    public Channel names() {
+        return names(channel);
+    }
+
+    @Benchmark
+    public boolean hasUser() {
+        next = next + 1 == lookups.length ? 0 : next + 1;
+        return fullChannel.hasUser(lookups[next]);
+    }
+
+    @Benchmark
+    public MessageBuffer addMessageFullBuffer() {
+        messages.add(message);
+        return messages;
+    }
+}
@@ -0,0 +1,176 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the events and command handlers of {@code Worker}s on threads of their own, off the reading thread.
+ * Events are spread over stripes by their target, the casefolded channel of a line, or the nick
+ * Of its sender when it's not about a channel. Each stripe has a queue and a thread, so events of
+ * The same target are handled in the order they were received, while a slow handler only delays
+ * Its stripe. Events about no target, like CONNECTED or DATA_SENT, share a stripe.
+ * <p>
+ * The library's own handling of the lines, PING replies, registration and the state of the channels,
+ * Stays on the reading thread, only events and added handlers are queued. Queues are bounded, the
+ * {@link DispatchPolicy} decides what happens to events once a stripe's queue is full.
+ * <p>
+ * A dispatcher can be shared by several {@code Worker}s. The threads are daemon threads, virtual ones
+ * When enabled with the system property {@code blueirc.virtualThreads=true} on Java 21 and later.
+ *
+ * @see Worker#setAsyncDispatcher(AsyncDispatcher)
+ */
+public class AsyncDispatcher {
+    private final static AtomicInteger idGen = new AtomicInteger(0);
+
+    private final Stripe[] stripes;
+    private final int queueLimit;
+    private final DispatchPolicy policy;
+    private volatile boolean running = true;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Starts the threads of the stripes.
+     *
+     * @param stripes    The amount of stripes, and so of events handled at once
+     * @param queueLimit The maximum amount of events queued per stripe
+     * @param policy     What happens to events once a queue is full
+     */
+    public AsyncDispatcher(int stripes, int queueLimit, DispatchPolicy policy) {
+        this.stripes = new Stripe[Math.max(stripes, 1)];
+        this.queueLimit = Math.max(queueLimit, 1);
+        this.policy = policy;
+        int id = idGen.incrementAndGet();
+        for (int i = 0; i < this.stripes.length; i++) {
+            Stripe stripe = new Stripe();
+            stripe.thread = Threads.newThread(() -> run(stripe), "blueirc-dispatch-" + id + "-" + i);
+            stripe.thread.setDaemon(true);
+            this.stripes[i] = stripe;
+            stripe.thread.start();
+        }
+    }
+
+    /**
+     * Queues a task on the stripe of a target.
+     *
+     * @param target The casefolded target, "" when there's none
+     * @param task   The task
+     */
+    void execute(String target, Runnable task) {
+        int hash = target.hashCode();
+        Stripe stripe = stripes[((hash ^ (hash >>> 16)) & 0x7fffffff) % stripes.length];
+        stripe.lock.lock();
+        try {
+            if (!running) {
+                dropped.incrementAndGet();
+                return;
+            }
+            // A handler queuing on its own full stripe would wait forever
+            while (stripe.queue.size() >= queueLimit && Thread.currentThread() != stripe.thread) {
+                if (policy == DispatchPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return;
+                } else if (policy == DispatchPolicy.DROP_OLDEST) {
+                    stripe.queue.poll();
+                    dropped.incrementAndGet();
+                } else {
+                    try {
+                        stripe.notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    if (!running) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+            stripe.queue.add(task);
+            stripe.notEmpty.signal();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void run(Stripe stripe) {
+        while (true) {
+            Runnable task;
+            stripe.lock.lock();
+            try {
+                while (stripe.queue.isEmpty() && running) {
+                    try {
+                        stripe.notEmpty.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                task = stripe.queue.poll();
+                if (task == null) return; // Stopped and drained
+                stripe.notFull.signal(); // Room for a blocked reader
+            } finally {
+                stripe.lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) { // Handled like on the reading thread, but the stripe goes on
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of queued events.
+     *
+     * @return The events waiting to be handled, of all the stripes
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                queued += stripe.queue.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Gets the amount of events dropped because a queue was full or the dispatcher stopped.
+     *
+     * @return The amount of dropped events
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the threads once the queued events are handled, later events are dropped.
+     */
+    public void shutdown() {
+        running = false;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.notEmpty.signalAll();
+                stripe.notFull.signalAll();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    private static final class Stripe {
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        final ReentrantLock lock = new ReentrantLock(); // A monitor would pin virtual threads while waiting
+        final Condition notEmpty = lock.newCondition();
+        final Condition notFull = lock.newCondition();
+        Thread thread;
+    }
+}
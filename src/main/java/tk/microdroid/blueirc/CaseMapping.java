@@ -0,0 +1,75 @@
+package tk.microdroid.blueirc;
+
+/**
+ * The ways a server compares nicks and channel names, advertised as CASEMAPPING in 005.
+ * Nicks and channels are kept in maps keyed by their casefolded name, so they're looked up
+ * In constant time whatever the case they're received in.
+ *
+ * @see Worker#getCaseMapping()
+ */
+public enum CaseMapping {
+    /**
+     * Only A to Z are folded, to a to z.
+     */
+    ASCII("ascii", 'Z'),
+    /**
+     * A to Z, and []\^ are folded to {}|~, as the Scandinavian characters of RFC 1459. The default
+     */
+    RFC1459("rfc1459", '^'),
+    /**
+     * A to Z, and []\ are folded to {}|, but not ^.
+     */
+    STRICT_RFC1459("strict-rfc1459", ']');
+
+    private final String token;
+    private final char last; // The last upper case character, they're all 32 before their lower case
+
+    CaseMapping(String token, char last) {
+        this.token = token;
+        this.last = last;
+    }
+
+    /**
+     * Gets the mapping advertised by a server.
+     * Unknown mappings, like rfc7613, fall back to ASCII, which they all fold, folding []\^ too
+     * Would merge names the server tells apart
+     *
+     * @param token The value of CASEMAPPING, like "ascii"
+     * @return The mapping
+     */
+    public static CaseMapping of(String token) {
+        for (CaseMapping mapping : values())
+            if (mapping.token.equalsIgnoreCase(token)) return mapping;
+        return ASCII;
+    }
+
+    /**
+     * Gets the name of this mapping in 005.
+     *
+     * @return The token, like "rfc1459"
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Folds a name to lower case, two names are the same nick or channel when their folded names are equal.
+     *
+     * @param name The nick or channel name
+     * @return The folded name, {@code name} itself when it's already folded
+     */
+    public String fold(String name) {
+        int length = name.length();
+        int i = 0;
+        while (i < length && !isUpper(name.charAt(i))) i++;
+        if (i == length) return name;
+        char[] chars = name.toCharArray();
+        for (; i < length; i++)
+            if (isUpper(chars[i])) chars[i] += 32;
+        return new String(chars);
+    }
+
+    private boolean isUpper(char c) {
+        return c >= 'A' && c <= last;
+    }
+}
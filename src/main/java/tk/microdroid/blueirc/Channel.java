@@ -1,11 +1,9 @@
 package tk.microdroid.blueirc;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * {@code Channel} simply represents an IRC channel
@@ -15,22 +13,38 @@ import java.util.regex.Pattern;
  * The name of the channel, the one passed from the constructor.
  * 
  * {@code Channel} instances are stored in an {@code ArrayList} in {@code Worker}.
- * 
+ * <p>
+ * The state of a channel is changed by the {@code Worker} thread and can be read from any thread:
+ * The topic and the users are kept in an immutable {@link Snapshot}, replaced as they change,
+ * And {@link #snapshot()} gives them with the messages in constant time, without locking.
  */
 public class Channel {
-	static int bufferLength = Integer.MAX_VALUE;
+	private final Worker worker;
 	private String name = "";
-	private ArrayList<Parser> messages = new ArrayList<>();
-	private HashMap<String, User> users = new HashMap<>();
-	private String topic = "unknown";
-	private Date firstJoinDate = null;
-	private Date lastJoinDate = null;
-	private boolean hasLeft = false;
+	private final MessageBuffer messages;
+	private volatile Snapshot state; // Without the messages and prefix modes, which are added by snapshot()
+	private HashMap<String, String> stagedNicks, stagedPrefixes; // Listed by NAMES until its end, by key
 	
 	Channel(Worker worker, String name) {
+		this.worker = worker;
 		this.name = name;
+		messages = new MessageBuffer(worker.channelBufferLength, worker.historyStorage, worker.memoryBudget);
+		Date now = new Date();
+		state = new Snapshot(name, "unknown", PersistentMap.<String, User>empty(), PersistentMap.<String, String>empty(),
+				worker.caseMapping, false, now, now, null, null);
 		worker.send("TOPIC " + name);
-		firstJoinDate = lastJoinDate = new Date();
+	}
+	
+	/**
+	 * Gets the state of this channel as it is now: its topic, users and messages.
+	 * Takes constant time, and the snapshot doesn't change afterwards
+	 * 
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		Snapshot state = this.state;
+		return new Snapshot(state.name, state.topic, state.users, state.userPrefixes, state.mapping,
+				state.hasLeft, state.firstJoinDate, state.lastJoinDate, messages.snapshot(), worker.prefixModes);
 	}
 	
 	/**
@@ -45,39 +59,118 @@ public class Channel {
 	/**
 	 * Gets channel messages.
 	 * 
-	 * @return Channel messages
+	 * @return Channel messages, oldest first
 	 */
-	public List<Parser> getMessages() {
+	public MessageBuffer getMessages() {
 		return messages;
 	}
 	
+	/**
+	 * Sets the maximum amount of messages of this channel.
+	 * Overrides {@link Worker#setChannelBufferLength(int)} until it's called again
+	 * 
+	 * @param value Channel buffer length, 0 to keep no messages
+	 */
+	public void setBufferLength(int value) {
+		messages.setCapacity(value);
+	}
+	
 	/**
 	 * Pushes a new message to the messages list.
+	 * Reused {@code Parser}s are copied, and only if messages are kept at all.
+	 * The message is indexed too when {@link Worker#setMessageIndexing(boolean)} is set
 	 * 
 	 * @param p The Parser object containing the message
 	 */
 	public void addMessage(Parser p) {
-        Util.addMessage(bufferLength, messages, p);
+		MessageIndex index = worker.messageIndex;
+		if (messages.add(p) && index != null)
+			index.add(this, p, messages.added() - 1);
 	}
 	
 	/**
 	 * Checks is user in channel.
+	 * Nicks are compared with the server's case mapping
 	 * 
 	 * @param nick The nickname to check
 	 * @return Boolean, true if user is in channel, otherwise false
 	 */
 	public boolean hasUser(String nick) {
-		return users.keySet().stream().anyMatch(usr -> usr.equalsIgnoreCase(nick));
+		return state.hasUser(nick);
+	}
+	
+	/**
+	 * Gets a user of this channel.
+	 * Nicks are compared with the server's case mapping
+	 * 
+	 * @param nick The nickname
+	 * @return The user, or null if the user isn't in this channel
+	 */
+	public User getUser(String nick) {
+		return state.getUser(nick);
+	}
+	
+	/**
+	 * Gets the prefix of a user in this channel, like "@" for operators.
+	 * 
+	 * @param nick The nickname
+	 * @return The prefixes of the user, or null if the user isn't in this channel
+	 */
+	public String getPrefix(String nick) {
+		return state.getPrefix(nick);
+	}
+	
+	/**
+	 * Gets the modes of a user in this channel, like "o" for operators.
+	 * These are the modes of the prefixes, as advertised by PREFIX in 005
+	 * 
+	 * @param nick The nickname
+	 * @return The modes of the user, or null if the user isn't in this channel
+	 */
+	public String getModes(String nick) {
+		return modes(state.getPrefix(nick), worker.prefixModes);
+	}
+	
+	private static String modes(String prefix, char[] modes) {
+		if (prefix == null || prefix.isEmpty()) return prefix;
+		StringBuilder sb = new StringBuilder(prefix.length());
+		for (int i = 0; i < prefix.length(); i++) {
+			char c = prefix.charAt(i);
+			if (c < modes.length && modes[c] != 0) sb.append(modes[c]);
+		}
+		return sb.toString();
 	}
 	
 	/**
 	 * Gets users in this channel.
+	 * The {@code User}s are shared by all the channels of the {@code Worker}
 	 * 
-	 * @return HashMap, User nicknames as keys, and User objects as values
+	 * @return Map, casefolded User nicknames as keys, and User objects as values, a snapshot which doesn't change
 	 * @see User
+	 * @see CaseMapping#fold(String)
 	 */
-	public HashMap<String, User> getUsers() {
-		return users;
+	public Map<String, User> getUsers() {
+		return state.users;
+	}
+	
+	User getUserByKey(String key) {
+		return state.users.get(key);
+	}
+	
+	/**
+	 * Keys the users again, when the server's case mapping changed.
+	 */
+	void refold(CaseMapping mapping) {
+		Snapshot state = this.state;
+		PersistentMap<String, User> refolded = PersistentMap.empty();
+		PersistentMap<String, String> refoldedPrefixes = PersistentMap.empty();
+		for (Map.Entry<String, User> entry : state.users.entrySet()) {
+			String key = mapping.fold(entry.getValue().getNick());
+			refolded = refolded.plus(key, entry.getValue());
+			refoldedPrefixes = refoldedPrefixes.plus(key, state.userPrefixes.get(entry.getKey()));
+		}
+		this.state = new Snapshot(state.name, state.topic, refolded, refoldedPrefixes, mapping,
+				state.hasLeft, state.firstJoinDate, state.lastJoinDate, null, null);
 	}
 	
 	/**
@@ -86,7 +179,9 @@ public class Channel {
 	 * @param newTopic The new topic
 	 */
 	void setTopic(String newTopic) {
-		topic = newTopic;
+		Snapshot state = this.state;
+		this.state = new Snapshot(state.name, newTopic, state.users, state.userPrefixes, state.mapping,
+				state.hasLeft, state.firstJoinDate, state.lastJoinDate, null, null);
 	}
 	
 	/**
@@ -95,7 +190,7 @@ public class Channel {
 	 * @return Channel topic
 	 */
 	public String getTopic() {
-		return topic;
+		return state.topic;
 	}
 	
 	/**
@@ -104,7 +199,7 @@ public class Channel {
 	 * @return The date we first joined this channel
 	 */
 	public Date getFirstJoinDate() {
-		return firstJoinDate;
+		return state.firstJoinDate;
 	}
 	
 	/**
@@ -114,7 +209,7 @@ public class Channel {
 	 * @return The date of the last join
 	 */
 	public Date getLastJoinDate() {
-		return lastJoinDate;
+		return state.lastJoinDate;
 	}
 	
 	/**
@@ -122,8 +217,9 @@ public class Channel {
 	 * Sets few variables, this is invoked when joining a preserved channel
 	 */
 	void rejoin() {
-		lastJoinDate = new Date();
-		hasLeft = false;
+		Snapshot state = this.state;
+		this.state = new Snapshot(state.name, state.topic, state.users, state.userPrefixes, state.mapping,
+				false, state.firstJoinDate, new Date(), null, null);
 	}
 	
 	/**
@@ -132,39 +228,110 @@ public class Channel {
 	 * @return Whether we left this channel or not
 	 */
 	public boolean hasLeft() {
-		return hasLeft;
+		return state.hasLeft;
 	}
 	
 	/**
 	 * Configure upon leaving channel.
-	 * This makes no sense if channels are not preserved
+	 * The users are removed, they're listed again when joining it again
 	 */
 	void leave() {
-		hasLeft = true;
+		Snapshot state = this.state;
+		for (Map.Entry<String, User> entry : state.users.entrySet())
+			detach(entry.getKey(), entry.getValue());
+		this.state = new Snapshot(state.name, state.topic, PersistentMap.<String, User>empty(), PersistentMap.<String, String>empty(),
+				state.mapping, true, state.firstJoinDate, state.lastJoinDate, null, null);
+		if (stagedNicks != null) worker.listingNames.remove(this);
+		stagedNicks = stagedPrefixes = null;
 	}
 	
 	/**
-	 * Adds a user to the user list.
-	 * Creates a new User object and adds it to the users HashMap
-	 * This splits the prefixes from nicks, provided in {@code name}
-	 * Invalid {@code prefixes} could make {@code name} parsing crash
+	 * Adds the users of a NAMES reply (353) to the list being received.
+	 * The list replaces the users of this channel once it ends, see {@link #endOfNames()}.
+	 * Until then, users joining, leaving or changing nick are also applied to the list
+	 * Prefixes are stripped from the nicks with the table of the {@code Worker}, as are the
+	 * Usernames and hosts of userhost-in-names
 	 * 
-	 * @param nick The user nickname
-	 * @param prefixes The prefixes supported by the server, parsed from 005
+	 * @param names The nicks of the reply, separated by spaces
+	 */
+	void addNames(String names) {
+		if (stagedNicks == null) {
+			stagedNicks = new HashMap<>();
+			stagedPrefixes = new HashMap<>();
+			worker.listingNames.add(this);
+		}
+		char[] modes = worker.prefixModes;
+		CaseMapping mapping = worker.caseMapping;
+		int length = names.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && names.charAt(i) == ' ') i++;
+			int start = i;
+			char c;
+			while (i < length && (c = names.charAt(i)) < modes.length && modes[c] != 0) i++;
+			int nickStart = i;
+			while (i < length && (c = names.charAt(i)) != ' ' && c != '!') i++;
+			int nickEnd = i;
+			while (i < length && names.charAt(i) != ' ') i++;
+			if (nickEnd > nickStart) {
+				String nick = names.substring(nickStart, nickEnd);
+				String key = mapping.fold(nick);
+				stagedNicks.put(key, nick);
+				stagedPrefixes.put(key, nickStart == start ? "" : names.substring(start, nickStart));
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the users of this channel by the ones listed by NAMES, when it ends (366).
+	 * Users which weren't listed are removed, the new lists are published at once
 	 */
-	void addUser(String nick, HashMap<Character, Character> prefixes) {
-		StringBuilder prefixesBuilder = new StringBuilder();
-		prefixes.keySet().forEach(prefixesBuilder::append);
-		Pattern pattern = Pattern.compile("([" + prefixesBuilder + "]*)(\\w.+)");
-		Matcher matcher = pattern.matcher(nick);
-		boolean matches = matcher.matches();
-		String prefix = matches ? matcher.group(1) : "";
-		String rawName = matches ? matcher.group(2) : nick;
-		prefixes.keySet().forEach(c -> {
-			if (prefixes.containsKey(c)) prefix.replace(c, prefixes.get(c));
-		});
-		User user = new User(rawName, prefix);
-		users.put(rawName, user);
+	void endOfNames() {
+		HashMap<String, String> nicks = stagedNicks;
+		if (nicks == null) return;
+		HashMap<String, String> prefixes = stagedPrefixes;
+		stagedNicks = stagedPrefixes = null;
+		worker.listingNames.remove(this);
+		Snapshot state = this.state;
+		PersistentMap<String, User> known = worker.users;
+		HashMap<String, User> listed = new HashMap<>(nicks.size() * 4 / 3 + 1);
+		HashMap<String, User> registered = new HashMap<>(); // The users new to the Worker
+		for (Map.Entry<String, String> entry : nicks.entrySet()) {
+			String key = entry.getKey();
+			User user = known.get(key);
+			if (user == null) {
+				user = new User(entry.getValue(), worker.userBufferLength, worker.historyStorage, worker.memoryBudget);
+				registered.put(key, user);
+			}
+			user.setPrefix(prefixes.get(key));
+			user.channels = user.channels.plus(this, Boolean.TRUE);
+			listed.put(key, user);
+		}
+		worker.users = known.plusAll(registered); // Built at once, rather than a user at a time
+		for (Map.Entry<String, User> entry : state.users.entrySet())
+			if (!listed.containsKey(entry.getKey()))
+				detach(entry.getKey(), entry.getValue());
+		this.state = new Snapshot(state.name, state.topic, PersistentMap.<String, User>empty().plusAll(listed),
+				PersistentMap.<String, String>empty().plusAll(prefixes), state.mapping,
+				state.hasLeft, state.firstJoinDate, state.lastJoinDate, null, null);
+	}
+	
+	/**
+	 * Adds a user, the same {@code User} as in the other channels of the {@code Worker}.
+	 * 
+	 * @param nick The user nickname, without prefixes
+	 * @param key The casefolded nickname
+	 * @param prefix The prefixes of the user in this channel
+	 */
+	void addUser(String nick, String key, String prefix) {
+		User user = worker.registerUser(nick, key);
+		user.setPrefix(prefix);
+		user.channels = user.channels.plus(this, Boolean.TRUE);
+		setUsers(state.users.plus(key, user), state.userPrefixes.plus(key, prefix));
+		if (stagedNicks != null) { // Or the end of NAMES would remove it
+			stagedNicks.put(key, nick);
+			stagedPrefixes.put(key, prefix);
+		}
 	}
 	
 	/**
@@ -173,6 +340,191 @@ public class Channel {
 	 * @param nick The user nickname
 	 */
 	void removeUser(String nick) {
-		if (users.containsKey(nick)) users.remove(nick);
+		removeUserByKey(worker.caseMapping.fold(nick));
+	}
+	
+	void removeUserByKey(String key) {
+		Snapshot state = this.state;
+		User user = state.users.get(key);
+		if (user != null) {
+			setUsers(state.users.minus(key), state.userPrefixes.minus(key));
+			detach(key, user);
+		}
+		if (stagedNicks != null) { // Or the end of NAMES would add it back
+			stagedNicks.remove(key);
+			stagedPrefixes.remove(key);
+		}
+	}
+	
+	/**
+	 * Moves a user to its new nick.
+	 */
+	void renameUser(String oldKey, String newKey, String newNick) {
+		Snapshot state = this.state;
+		User user = state.users.get(oldKey);
+		String prefix = state.userPrefixes.get(oldKey);
+		if (user != null)
+			setUsers(state.users.minus(oldKey).plus(newKey, user), state.userPrefixes.minus(oldKey).plus(newKey, prefix));
+		if (stagedNicks != null && stagedNicks.containsKey(oldKey)) {
+			stagedNicks.remove(oldKey);
+			stagedNicks.put(newKey, newNick);
+			stagedPrefixes.put(newKey, stagedPrefixes.remove(oldKey));
+		}
+	}
+	
+	private void setUsers(PersistentMap<String, User> users, PersistentMap<String, String> userPrefixes) {
+		Snapshot state = this.state;
+		this.state = new Snapshot(state.name, state.topic, users, userPrefixes, state.mapping,
+				state.hasLeft, state.firstJoinDate, state.lastJoinDate, null, null);
+	}
+	
+	/**
+	 * Removes this channel from the channels of a user, the user is forgotten when it's in none of ours.
+	 */
+	private void detach(String key, User user) {
+		user.channels = user.channels.minus(this);
+		if (user.channels.isEmpty()) {
+			worker.users = worker.users.minus(key);
+			user.getMessages().release();
+		}
+	}
+	
+	/**
+	 * The state of a channel at some point, it never changes.
+	 * 
+	 * @see Channel#snapshot()
+	 */
+	public static final class Snapshot {
+		private final String name;
+		private final String topic;
+		private final PersistentMap<String, User> users;
+		private final PersistentMap<String, String> userPrefixes; // The prefixes of the users in this channel, by key
+		private final CaseMapping mapping; // Of the keys
+		private final boolean hasLeft;
+		private final Date firstJoinDate;
+		private final Date lastJoinDate;
+		private final List<Parser> messages;
+		private final char[] prefixModes;
+		
+		Snapshot(String name, String topic, PersistentMap<String, User> users, PersistentMap<String, String> userPrefixes,
+				CaseMapping mapping, boolean hasLeft, Date firstJoinDate, Date lastJoinDate, List<Parser> messages, char[] prefixModes) {
+			this.name = name;
+			this.topic = topic;
+			this.users = users;
+			this.userPrefixes = userPrefixes;
+			this.mapping = mapping;
+			this.hasLeft = hasLeft;
+			this.firstJoinDate = firstJoinDate;
+			this.lastJoinDate = lastJoinDate;
+			this.messages = messages;
+			this.prefixModes = prefixModes;
+		}
+		
+		/**
+		 * Gets the channel name.
+		 * 
+		 * @return The channel name
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Gets the channel topic.
+		 * 
+		 * @return Channel topic
+		 */
+		public String getTopic() {
+			return topic;
+		}
+		
+		/**
+		 * Gets the users in the channel.
+		 * 
+		 * @return Map, casefolded User nicknames as keys, and User objects as values
+		 */
+		public Map<String, User> getUsers() {
+			return users;
+		}
+		
+		/**
+		 * Checks is user in channel.
+		 * Nicks are compared with the server's case mapping
+		 * 
+		 * @param nick The nickname to check
+		 * @return Boolean, true if user is in channel, otherwise false
+		 */
+		public boolean hasUser(String nick) {
+			return users.containsKey(mapping.fold(nick));
+		}
+		
+		/**
+		 * Gets a user of the channel.
+		 * 
+		 * @param nick The nickname
+		 * @return The user, or null if the user isn't in the channel
+		 */
+		public User getUser(String nick) {
+			return users.get(mapping.fold(nick));
+		}
+		
+		/**
+		 * Gets the prefix of a user in the channel, like "@" for operators.
+		 * 
+		 * @param nick The nickname
+		 * @return The prefixes of the user, or null if the user isn't in the channel
+		 */
+		public String getPrefix(String nick) {
+			return userPrefixes.get(mapping.fold(nick));
+		}
+		
+		/**
+		 * Gets the modes of a user in the channel, like "o" for operators.
+		 * These are the modes of the prefixes, as advertised by PREFIX in 005
+		 * 
+		 * @param nick The nickname
+		 * @return The modes of the user, or null if the user isn't in the channel
+		 */
+		public String getModes(String nick) {
+			String prefix = getPrefix(nick);
+			if (prefix == null || prefix.isEmpty()) return prefix;
+			return modes(getPrefix(nick), prefixModes);
+		}
+		
+		/**
+		 * Gets the messages of the channel.
+		 * 
+		 * @return Channel messages, oldest first
+		 */
+		public List<Parser> getMessages() {
+			return messages;
+		}
+		
+		/**
+		 * Checks if the channel had been left.
+		 * 
+		 * @return Whether we left the channel or not
+		 */
+		public boolean hasLeft() {
+			return hasLeft;
+		}
+		
+		/**
+		 * Gets the first time we joined the channel.
+		 * 
+		 * @return The date we first joined the channel
+		 */
+		public Date getFirstJoinDate() {
+			return firstJoinDate;
+		}
+		
+		/**
+		 * Gets the date of the last time we joined the channel.
+		 * 
+		 * @return The date of the last join
+		 */
+		public Date getLastJoinDate() {
+			return lastJoinDate;
+		}
 	}
 }
@@ -0,0 +1,62 @@
+package tk.microdroid.blueirc;
+
+/**
+ * The IRC commands known to this library.
+ * {@code Parser} looks the command up once while parsing, so handlers are
+ * Dispatched by the ordinal rather than comparing Strings.
+ * NUMERIC is any three digit reply, see {@link Parser#getNumeric()}, while
+ * UNKNOWN is any other command, or a line that couldn't be parsed.
+ *
+ */
+public enum Command {
+    PING, PONG, PRIVMSG, NOTICE, CAP, JOIN, PART, KICK, QUIT, TOPIC, NICK, MODE,
+    INVITE, ERROR, AWAY, ACCOUNT, CHGHOST, SETNAME, AUTHENTICATE, BATCH, TAGMSG,
+    WALLOPS, KILL, NUMERIC, UNKNOWN;
+
+    // Open addressing hash table of the command names, sized to keep probing short
+    private static final Command[] table = new Command[64];
+
+    static {
+        for (Command command : values()) {
+            if (command == NUMERIC || command == UNKNOWN) continue;
+            String name = command.name();
+            int i = hash(name, 0, name.length());
+            while (table[i] != null) i = (i + 1) & (table.length - 1);
+            table[i] = command;
+        }
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+        return (h ^ (h >>> 7)) & (table.length - 1);
+    }
+
+    /**
+     * Looks a command name up without creating a {@code String}.
+     *
+     * @param s The String containing the command name
+     * @param start The index of the first character of the name
+     * @param end The index after the last character of the name
+     * @return The command, UNKNOWN if it's not a known command
+     */
+    static Command lookup(String s, int start, int end) {
+        int length = end - start;
+        for (int i = hash(s, start, end); table[i] != null; i = (i + 1) & (table.length - 1)) {
+            String name = table[i].name();
+            if (name.length() == length && s.regionMatches(start, name, 0, length))
+                return table[i];
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Looks a command name up.
+     *
+     * @param name The command name, like PRIVMSG
+     * @return The command, UNKNOWN if it's not a known command
+     */
+    public static Command of(String name) {
+        return lookup(name, 0, name.length());
+    }
+}
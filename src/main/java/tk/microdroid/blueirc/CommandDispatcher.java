@@ -0,0 +1,258 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps commands and numerics to their {@code CommandHandler}s.
+ * Handlers are kept in arrays indexed by {@link Command} ordinal and by numeric,
+ * So dispatching a line is a single array lookup. Commands unknown to {@link Command}
+ * Fall back to a map keyed by the command name.
+ * <p>
+ * Handlers can be limited to the lines about a channel, those are kept by command in maps keyed by
+ * The casefolded channel name, which are only looked at when a command has such handlers.
+ * The channel of a line is its first parameter, or for numerics the first parameter after our nick
+ * Which starts like a channel name.
+ * <p>
+ * Handler arrays are replaced, never modified, when adding or removing handlers. Changes are serialized,
+ * And published through atomic arrays, so handlers can be added from any thread while lines are dispatched.
+ */
+class CommandDispatcher {
+    private static final CommandHandler[] NONE = {};
+
+    private final AtomicReferenceArray<CommandHandler[]> commands = new AtomicReferenceArray<>(Command.values().length);
+    private final AtomicReferenceArray<CommandHandler[]> numerics = new AtomicReferenceArray<>(1000);
+    private final HashMap<String, CommandHandler[]> others = new HashMap<>();
+    // Handlers for a channel, by command ordinal, numeric, or for other commands "COMMAND channel"
+    // Keyed by the channel casefolded with mapping, null when a command has none, the maps are never modified
+    private final AtomicReferenceArray<HashMap<String, CommandHandler[]>> channelCommands =
+            new AtomicReferenceArray<>(Command.values().length);
+    private final AtomicReferenceArray<HashMap<String, CommandHandler[]>> channelNumerics = new AtomicReferenceArray<>(1000);
+    private final HashMap<String, CommandHandler[]> channelOthers = new HashMap<>();
+    private final ArrayList<Object[]> channelHandlers = new ArrayList<>(); // {command, channel, handler} as added
+    private volatile CaseMapping mapping = CaseMapping.RFC1459;
+
+    CommandDispatcher() {
+        for (int i = 0; i < commands.length(); i++)
+            commands.set(i, NONE);
+        for (int i = 0; i < numerics.length(); i++)
+            numerics.set(i, NONE);
+    }
+
+    /**
+     * Adds a handler for the lines of a command or numeric about a channel.
+     */
+    synchronized void add(String command, String channel, CommandHandler handler) {
+        channelHandlers.add(new Object[]{command, channel, handler});
+        route(command, mapping.fold(channel), handler, true);
+    }
+
+    synchronized void remove(String command, String channel, CommandHandler handler) {
+        for (int i = 0; i < channelHandlers.size(); i++) {
+            Object[] added = channelHandlers.get(i);
+            if (added[0].equals(command) && added[1].equals(channel) && added[2] == handler) {
+                channelHandlers.remove(i);
+                route(command, mapping.fold(channel), handler, false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Folds the channels of the handlers again, once the server told its casemapping.
+     */
+    synchronized void setCaseMapping(CaseMapping mapping) {
+        if (mapping == this.mapping) return;
+        this.mapping = mapping;
+        for (int i = 0; i < channelCommands.length(); i++)
+            channelCommands.set(i, null);
+        for (int i = 0; i < channelNumerics.length(); i++)
+            channelNumerics.set(i, null);
+        synchronized (channelOthers) {
+            channelOthers.clear();
+        }
+        for (Object[] added : channelHandlers)
+            route((String) added[0], mapping.fold((String) added[1]), (CommandHandler) added[2], true);
+    }
+
+    private void route(String command, String key, CommandHandler handler, boolean add) {
+        int numeric = toNumeric(command);
+        Command known = Command.of(command);
+        if (numeric < 0 && (known == Command.UNKNOWN || known == Command.NUMERIC)) {
+            synchronized (channelOthers) {
+                String other = command + ' ' + key;
+                CommandHandler[] current = channelOthers.getOrDefault(other, NONE);
+                CommandHandler[] handlers = add ? append(current, handler) : remove(current, handler);
+                if (handlers.length == 0) channelOthers.remove(other);
+                else channelOthers.put(other, handlers);
+            }
+            return;
+        }
+        AtomicReferenceArray<HashMap<String, CommandHandler[]>> maps = numeric >= 0 ? channelNumerics : channelCommands;
+        int index = numeric >= 0 ? numeric : known.ordinal();
+        HashMap<String, CommandHandler[]> current = maps.get(index);
+        HashMap<String, CommandHandler[]> routes = current == null ? new HashMap<>() : new HashMap<>(current);
+        CommandHandler[] existing = routes.getOrDefault(key, NONE);
+        CommandHandler[] handlers = add ? append(existing, handler) : remove(existing, handler);
+        if (handlers.length == 0) routes.remove(key);
+        else routes.put(key, handlers);
+        maps.set(index, routes.isEmpty() ? null : routes);
+    }
+
+    /**
+     * Adds a handler for a command name, or a numeric if {@code command} is three digits.
+     */
+    synchronized void add(String command, CommandHandler handler) {
+        int numeric = toNumeric(command);
+        if (numeric >= 0) {
+            add(numeric, handler);
+            return;
+        }
+        Command known = Command.of(command);
+        if (known == Command.UNKNOWN || known == Command.NUMERIC) {
+            synchronized (others) {
+                others.put(command, append(others.getOrDefault(command, NONE), handler));
+            }
+        } else {
+            commands.set(known.ordinal(), append(commands.get(known.ordinal()), handler));
+        }
+    }
+
+    synchronized void add(int numeric, CommandHandler handler) {
+        numerics.set(numeric, append(numerics.get(numeric), handler));
+    }
+
+    synchronized void remove(String command, CommandHandler handler) {
+        int numeric = toNumeric(command);
+        if (numeric >= 0) {
+            remove(numeric, handler);
+            return;
+        }
+        Command known = Command.of(command);
+        if (known == Command.UNKNOWN || known == Command.NUMERIC) {
+            synchronized (others) {
+                CommandHandler[] handlers = remove(others.getOrDefault(command, NONE), handler);
+                if (handlers.length == 0) others.remove(command);
+                else others.put(command, handlers);
+            }
+        } else {
+            commands.set(known.ordinal(), remove(commands.get(known.ordinal()), handler));
+        }
+    }
+
+    synchronized void remove(int numeric, CommandHandler handler) {
+        numerics.set(numeric, remove(numerics.get(numeric), handler));
+    }
+
+    /**
+     * Invokes the handlers of the parsed line's command, in the order they were added.
+     */
+    void dispatch(Worker worker, Parser p) {
+        CommandHandler[] handlers;
+        HashMap<String, CommandHandler[]> routes = null;
+        Command command = p.getCommand();
+        if (command == Command.NUMERIC) {
+            handlers = numerics.get(p.getNumeric());
+            routes = channelNumerics.get(p.getNumeric());
+        } else if (command != Command.UNKNOWN) {
+            handlers = commands.get(command.ordinal());
+            routes = channelCommands.get(command.ordinal());
+        } else if (!others.isEmpty() || !channelOthers.isEmpty()) {
+            synchronized (others) {
+                handlers = others.getOrDefault(p.getAction(), NONE);
+            }
+            String channel = channelOf(p);
+            if (channel != null) {
+                synchronized (channelOthers) {
+                    CommandHandler[] forChannel = channelOthers.get(p.getAction() + ' ' + mapping.fold(channel));
+                    if (forChannel != null) handlers = concat(handlers, forChannel);
+                }
+            }
+        } else {
+            return;
+        }
+        for (CommandHandler handler : handlers)
+            handler.handle(worker, p);
+        if (routes != null) {
+            String channel = channelOf(p);
+            CommandHandler[] forChannel = channel == null ? null : routes.get(mapping.fold(channel));
+            if (forChannel != null)
+                for (CommandHandler handler : forChannel)
+                    handler.handle(worker, p);
+        }
+    }
+
+    /**
+     * Checks whether a line has any handler, to skip dispatching it otherwise.
+     */
+    boolean handles(Parser p) {
+        Command command = p.getCommand();
+        if (command == Command.NUMERIC)
+            return numerics.get(p.getNumeric()).length > 0 || channelNumerics.get(p.getNumeric()) != null;
+        if (command != Command.UNKNOWN)
+            return commands.get(command.ordinal()).length > 0 || channelCommands.get(command.ordinal()) != null;
+        return !others.isEmpty() || !channelOthers.isEmpty();
+    }
+
+    /**
+     * Gets the channel a line is about.
+     *
+     * @return The channel name, or null if the line isn't about one
+     */
+    static String channelOf(Parser p) {
+        if (p.getCommand() != Command.NUMERIC) {
+            String first = ProtocolHandlers.firstParam(p);
+            return first != null && isChannel(first) ? first : null;
+        }
+        List<String> args = p.getActionArgs();
+        for (int i = 1; i < args.size(); i++)
+            if (isChannel(args.get(i)))
+                return args.get(i);
+        return null;
+    }
+
+    static boolean isChannel(String name) {
+        if (name.isEmpty()) return false;
+        char c = name.charAt(0);
+        return c == '#' || c == '&' || c == '+' || c == '!';
+    }
+
+    private static int toNumeric(String command) {
+        if (command.length() != 3) return -1;
+        int numeric = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = command.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            numeric = numeric * 10 + c - '0';
+        }
+        return numeric;
+    }
+
+    private static CommandHandler[] append(CommandHandler[] handlers, CommandHandler handler) {
+        CommandHandler[] result = Arrays.copyOf(handlers, handlers.length + 1);
+        result[handlers.length] = handler;
+        return result;
+    }
+
+    private static CommandHandler[] concat(CommandHandler[] first, CommandHandler[] second) {
+        if (first.length == 0) return second;
+        CommandHandler[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static CommandHandler[] remove(CommandHandler[] handlers, CommandHandler handler) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == handler) {
+                CommandHandler[] result = new CommandHandler[handlers.length - 1];
+                System.arraycopy(handlers, 0, result, 0, i);
+                System.arraycopy(handlers, i + 1, result, i, result.length - i);
+                return result;
+            }
+        }
+        return handlers;
+    }
+}
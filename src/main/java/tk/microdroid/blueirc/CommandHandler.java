@@ -0,0 +1,19 @@
+package tk.microdroid.blueirc;
+
+/**
+ * Handles a received IRC command.
+ * Handlers are registered for a command or a numeric through
+ * {@link Worker#addCommandHandler(String, CommandHandler)}, and are only invoked
+ * For lines of that command, after the library's own handling of the line.
+ *
+ */
+public interface CommandHandler {
+
+    /**
+     * Handles a received line.
+     *
+     * @param worker The {@code Worker} that received the line
+     * @param p The parsed line
+     */
+    void handle(Worker worker, Parser p);
+}
@@ -0,0 +1,22 @@
+package tk.microdroid.blueirc;
+
+/**
+ * What happens to an event handed to an {@code AsyncDispatcher} whose queue is full.
+ *
+ * @see AsyncDispatcher#AsyncDispatcher(int, int, DispatchPolicy)
+ */
+public enum DispatchPolicy {
+    /**
+     * The reading thread waits for room, so reading slows down to the pace of the handlers.
+     * With an {@code EventLoop}, every connection of the loop waits
+     */
+    BLOCK,
+    /**
+     * The new event is dropped.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest event queued for the stripe is dropped to make room for the new one.
+     */
+    DROP_OLDEST
+}
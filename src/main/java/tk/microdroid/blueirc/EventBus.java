@@ -0,0 +1,68 @@
+package tk.microdroid.blueirc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivers the {@code Event}s of a {@code Worker} to its {@code IEventHandler} and to the
+ * {@code EventListener}s added for each event.
+ * Listeners are kept in arrays indexed by {@code Event} ordinal, so firing an event only reaches
+ * Its own listeners, and an event nobody listens to costs a single check, see {@link #wants(Event)}.
+ * <p>
+ * Listener arrays are replaced, never modified, when adding or removing listeners, and published
+ * Through an atomic array, so listeners can be added from any thread while events are fired.
+ */
+final class EventBus {
+    private static final EventListener<?>[] NONE = {};
+
+    private final AtomicReferenceArray<EventListener<?>[]> listeners = new AtomicReferenceArray<>(Event.values().length);
+    private volatile IEventHandler handler;
+
+    EventBus() {
+        for (int i = 0; i < listeners.length(); i++)
+            listeners.set(i, NONE);
+    }
+
+    void setHandler(IEventHandler handler) {
+        this.handler = handler;
+    }
+
+    synchronized void add(EventType<?> type, EventListener<?> listener) {
+        EventListener<?>[] current = listeners.get(type.getEvent().ordinal());
+        EventListener<?>[] result = Arrays.copyOf(current, current.length + 1);
+        result[current.length] = listener;
+        listeners.set(type.getEvent().ordinal(), result);
+    }
+
+    synchronized void remove(EventType<?> type, EventListener<?> listener) {
+        EventListener<?>[] current = listeners.get(type.getEvent().ordinal());
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                EventListener<?>[] result = new EventListener<?>[current.length - 1];
+                System.arraycopy(current, 0, result, 0, i);
+                System.arraycopy(current, i + 1, result, i, result.length - i);
+                listeners.set(type.getEvent().ordinal(), result);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks whether an event would reach anyone, to skip building its arguments otherwise.
+     */
+    boolean wants(Event event) {
+        return handler != null || listeners.get(event.ordinal()).length > 0;
+    }
+
+    /**
+     * Delivers an event to the handler, then to the listeners of the event in the order they were added.
+     */
+    @SuppressWarnings("unchecked")
+    void fire(Worker worker, Event event, Object args) {
+        IEventHandler handler = this.handler;
+        if (handler != null)
+            handler.onEvent(event, args);
+        for (EventListener<?> listener : listeners.get(event.ordinal()))
+            ((EventListener<Object>) listener).onEvent(worker, args);
+    }
+}
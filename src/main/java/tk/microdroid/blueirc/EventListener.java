@@ -0,0 +1,19 @@
+package tk.microdroid.blueirc;
+
+/**
+ * Listens to a single kind of {@code Event}, with its arguments typed.
+ * Listeners are added for an {@link EventType} through
+ * {@link Worker#addListener(EventType, EventListener)}, and are only invoked for that event.
+ *
+ * @param <T> The type of the arguments of the event
+ */
+public interface EventListener<T> {
+
+    /**
+     * Handles a fired event.
+     *
+     * @param worker The {@code Worker} that fired the event
+     * @param args The arguments of the event
+     */
+    void onEvent(Worker worker, T args);
+}
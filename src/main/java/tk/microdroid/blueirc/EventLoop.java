@@ -0,0 +1,162 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single thread serving the connections of many {@code Worker}s.
+ * Each {@code EventLoop} owns a {@code Selector}, it connects, reads, splits lines
+ * And writes for every {@code Worker} given to {@link Worker#setEventLoop(EventLoop)},
+ * Instead of each {@code Worker} running its own reading and writing threads.
+ * <p>
+ * Events and command handlers of those {@code Worker}s run on the loop thread,
+ * So they shouldn't block, a slow handler delays every connection of the loop, unless they
+ * Run on an {@code AsyncDispatcher}, see {@link Worker#setAsyncDispatcher(AsyncDispatcher)}.
+ * One loop can serve hundreds of connections, create a few and spread the {@code Worker}s
+ * Over them to use more cores.
+ */
+public class EventLoop {
+    private final static AtomicInteger idGen = new AtomicInteger(0);
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    // Set once the loop ended, tasks are then run by the thread queuing them, one thread at a time
+    private volatile boolean terminated = false;
+    private final ReentrantLock terminationLock = new ReentrantLock();
+
+    /**
+     * Opens a {@code Selector} and starts the loop thread.
+     *
+     * @throws IOException When the {@code Selector} can't be opened
+     */
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "blueirc-event-loop-" + idGen.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs {@code task} on the loop thread.
+     * Once the loop ended, the task is run by the calling thread, so connections are still closed
+     * And their {@code Worker}s notified
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            terminationLock.lock();
+            try {
+                runTasks();
+            } finally {
+                terminationLock.unlock();
+            }
+        } else if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Checks if the calling thread is the loop thread.
+     *
+     * @return true if called from the loop thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Stops the loop, closing the connections it serves.
+     * Their {@code Worker}s don't reconnect afterwards
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Checks if the loop was stopped.
+     *
+     * @return true once {@link #shutdown()} was called
+     */
+    boolean isShutdown() {
+        return !running;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                // Tasks queued by the loop thread itself don't wake the selector up
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                running = false; // Nothing can be registered any more
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    connection.handle(key);
+                } catch (IOException e) {
+                    connection.close(e);
+                } catch (CancelledKeyException ignored) {
+                    // Closed while handling an earlier key
+                } catch (RuntimeException e) {
+                    // Like an exception thrown on a Worker's own thread, only that connection is lost
+                    uncaught(e);
+                    connection.close(new IOException(e));
+                }
+            }
+        }
+        terminationLock.lock();
+        try {
+            terminated = true;
+            runTasks(); // Those queued while stopping, like closing a connection or connecting once looked up
+            for (SelectionKey key : selector.keys())
+                ((NioConnection) key.attachment()).close(null);
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        } finally {
+            terminationLock.unlock();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                uncaught(e);
+            }
+        }
+    }
+
+    /**
+     * Reports an exception thrown by a task or a connection, the loop goes on.
+     */
+    private static void uncaught(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+}
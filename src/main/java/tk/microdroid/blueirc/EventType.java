@@ -0,0 +1,54 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * An {@code Event} along with the type of its arguments, to add typed {@code EventListener}s.
+ * There's one constant per {@code Event}, with the types listed in {@link IEventHandler}.
+ *
+ * @param <T> The type of the arguments of the event
+ * @see Worker#addListener(EventType, EventListener)
+ */
+public final class EventType<T> {
+    public static final EventType<String> CONNECTED = new EventType<>(Event.CONNECTED);
+    public static final EventType<String> DISCONNECTED = new EventType<>(Event.DISCONNECTED);
+    public static final EventType<SocketTimeoutException> TIMEOUT = new EventType<>(Event.TIMEOUT);
+    public static final EventType<UnknownHostException> UNKNOWN_HOST = new EventType<>(Event.UNKNOWN_HOST);
+    public static final EventType<IOException> UNKNOWN_ERROR = new EventType<>(Event.UNKNOWN_ERROR);
+    public static final EventType<Message> DATA_SEND_FAIL = new EventType<>(Event.DATA_SEND_FAIL);
+    public static final EventType<Parser> DATA_RECEIVED = new EventType<>(Event.DATA_RECEIVED);
+    public static final EventType<Message> DATA_SENT = new EventType<>(Event.DATA_SENT);
+    public static final EventType<String> IRCV3_CAPABILITY_REJECTED = new EventType<>(Event.IRCV3_CAPABILITY_REJECTED);
+    public static final EventType<String> IRCV3_CAPABILITY_ACCEPTED = new EventType<>(Event.IRCV3_CAPABILITY_ACCEPTED);
+    public static final EventType<String> JOINED_CHANNEL = new EventType<>(Event.JOINED_CHANNEL);
+    public static final EventType<String> LEFT_CHANNEL = new EventType<>(Event.LEFT_CHANNEL);
+    public static final EventType<String> GOT_SERVER_NAME = new EventType<>(Event.GOT_SERVER_NAME);
+    public static final EventType<String> GOT_MOTD = new EventType<>(Event.GOT_MOTD);
+    public static final EventType<Parser> KICKED = new EventType<>(Event.KICKED);
+    public static final EventType<String> FIRST_NICK_IN_USE = new EventType<>(Event.FIRST_NICK_IN_USE);
+    public static final EventType<String> ALL_NICKS_IN_USE = new EventType<>(Event.ALL_NICKS_IN_USE);
+    public static final EventType<Long> LAG_MEASURED = new EventType<>(Event.LAG_MEASURED);
+    public static final EventType<Long> RECONNECTING = new EventType<>(Event.RECONNECTING);
+
+    private final Event event;
+
+    private EventType(Event event) {
+        this.event = event;
+    }
+
+    /**
+     * Gets the event.
+     *
+     * @return The untyped event, as given to an {@code IEventHandler}
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return event.name();
+    }
+}
@@ -0,0 +1,19 @@
+package tk.microdroid.blueirc;
+
+/**
+ * The ways a {@code MemoryBudget} chooses the messages to evict once its limit is reached.
+ *
+ * @see MemoryBudget#setPolicy(EvictionPolicy)
+ */
+public enum EvictionPolicy {
+    /**
+     * Messages are evicted from the channel or user which got a message the longest time ago, the default.
+     * Active channels keep their recent history while idle ones are trimmed, down to the minimum of the budget
+     */
+    LEAST_RECENTLY_ACTIVE,
+    /**
+     * The oldest messages are evicted, whichever channel or user they're in.
+     * The history then covers the same period of time everywhere
+     */
+    OLDEST_FIRST
+}
@@ -0,0 +1,24 @@
+package tk.microdroid.blueirc;
+
+/**
+ * The ways channel and user messages are kept.
+ *
+ * @see Worker#setHistoryStorage(HistoryStorage)
+ */
+public enum HistoryStorage {
+    /**
+     * The {@code Parser}s of the messages are kept, the default.
+     * Reading messages is free, but each one keeps its raw line and the strings and lists built from it
+     */
+    PARSERS,
+    /**
+     * Only the raw lines are kept, as UTF-8 in chunks of bytes on the heap.
+     * Messages are parsed again when read
+     */
+    HEAP,
+    /**
+     * Only the raw lines are kept, as UTF-8 in direct buffers, off the heap.
+     * Messages are parsed again when read
+     */
+    DIRECT
+}
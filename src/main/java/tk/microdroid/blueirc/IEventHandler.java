@@ -7,6 +7,9 @@ package tk.microdroid.blueirc;
  * {@code args}'s type can be different depending on {@code event}
  * 
  * See the reference below, it's also on the wiki on Github
+ * <p>
+ * To get only some events, with typed arguments, add {@code EventListener}s
+ * Instead, see {@link Worker#addListener(EventType, EventListener)}
  */
 public interface IEventHandler {
 
@@ -26,6 +29,7 @@ public interface IEventHandler {
      * JOINED_CHANNEL            -> String                 -> The channel has been joined
      * LAG_MEASURED              -> long                   -> Lag in milliseconds
      * LEFT_CHANNEL              -> String                 -> The left channel
+     * RECONNECTING              -> long                   -> Delay before reconnecting in milliseconds
      * TIMEOUT                   -> SocketTimeoutException -> The exception object
      * UNKNOWN_ERROR             -> IOException            -> The exception object
      * UNKNOWN_HOST              -> UnknownHostException   -> The exception object
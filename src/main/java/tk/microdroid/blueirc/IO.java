@@ -1,13 +1,14 @@
 package tk.microdroid.blueirc;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.SSLSocket;
 
@@ -15,58 +16,176 @@ import javax.net.ssl.SSLSocket;
  * {@code IO} manages I/O for the IRC connection.
  * Contains helper methods for safe and easier IRC command sending
  * An instance of {@code IO} is created upon {@code Socket} creation
- * in {@code Worker}
+ * in {@code Worker}, or upon connection when the {@code Worker} is served by an {@code EventLoop},
+ * In which case lines are read by the loop and written lines are buffered for it to flush
  */
 public class IO {
-    private BufferedWriter writer;
-    private BufferedReader reader;
+    static final int MAX_LINE_LENGTH = 510; // 512 bytes with "\r\n"
+    // ":nick!~user@host " with 30 characters nicks, 10 characters usernames and 63 characters hosts
+    static final int MAX_PREFIX_LENGTH = 1 + 30 + 2 + 10 + 1 + 63 + 1;
+
+    private OutputStream out;
+    private InputStream in;
+    private byte[] outBuffer = new byte[2048]; // Encoded lines waiting to be flushed
+    private int outLength = 0;
+    private final ReentrantLock writeLock = new ReentrantLock(); // A monitor would pin virtual threads while writing
+    final LineFramer framer = new LineFramer();
+    private NioConnection connection;
     String line;
 
 	public IO(Socket socket) throws IOException {
-		writer = new BufferedWriter(new OutputStreamWriter(
-				socket.getOutputStream(), Charset.forName("UTF-8")));
-		reader = new BufferedReader(new InputStreamReader(
-				socket.getInputStream()));
+		out = socket.getOutputStream();
+		in = socket.getInputStream();
 	}
 
 	public IO(SSLSocket socket) throws IOException {
-		writer = new BufferedWriter(new OutputStreamWriter(
-				socket.getOutputStream(), Charset.forName("UTF-8")));
-		reader = new BufferedReader(new InputStreamReader(
-				socket.getInputStream()));
+		out = socket.getOutputStream();
+		in = socket.getInputStream();
+	}
+
+	IO(NioConnection connection) {
+		this.connection = connection;
 	}
 
 	/**
 	 * Reads a line from the socket.
 	 * Updates the global {@code line} variable with the new line
+	 * The line is decoded as UTF-8, or as ISO-8859-1 if it isn't valid UTF-8
 	 * 
 	 * @return The read line
 	 * @throws IOException When unable to read from the stream
+	 * @throws UnsupportedOperationException When the connection is served by an {@code EventLoop}
 	 */
 	public String read() throws IOException {
-		line = reader.readLine();
+		line = readLine() ? framer.decode(StandardCharsets.ISO_8859_1) : null;
 		return line;
 	}
 
+	/**
+	 * Reads the next line into {@code framer}, without decoding it.
+	 *
+	 * @return false at the end of the stream
+	 * @throws IOException When unable to read from the stream
+	 */
+	boolean readLine() throws IOException {
+		if (in == null)
+			throw new UnsupportedOperationException("Lines are read by the EventLoop");
+		while (!framer.next()) {
+			if (framer.fill(in) < 0) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Flushes {@code data} to the socket stream.
-	 * If {@code data} length is more than 510, the data is trimmed to 510 characters
-	 * If {@code data} contains newlines, each line is flushed on its own
+	 * If {@code data} contains newlines, each line is sent as its own command
+	 * Lines longer than 510 bytes once encoded as UTF-8 are trimmed, without cutting a character
 	 * 
 	 * @param data The data to be sent
 	 * @throws IOException When unable to write to the stream
 	 */
-    public void write(String data) throws IOException {
-        if (data.length() > 510) data = data.substring(0, 510);
-		Arrays.stream(data.split("\n")).forEach(line -> {
-			try {
-				writer.write(line + "\r\n");
-			} catch (IOException e) {
-				System.err.println("Error occurred when writing a line to the writer.\n\r" + line);
+	public void write(String data) throws IOException {
+		writeLock.lock();
+		try {
+			append(data);
+			flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a batch of messages with a single flush.
+	 * Each message is handled like {@link #write(String)} does
+	 *
+	 * @param batch The messages to be sent
+	 * @throws IOException When unable to write to the stream, none of the batch may have been sent
+	 */
+	void write(List<Message> batch) throws IOException {
+		writeLock.lock();
+		try {
+			for (int i = 0; i < batch.size(); i++)
+				append(batch.get(i).getMsg());
+			flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes the lines of {@code data} as UTF-8 into the output buffer, each ending with "\r\n".
+	 */
+	private void append(String data) {
+		int length = data.length();
+		while (length > 0 && data.charAt(length - 1) == '\n') length--; // No empty lines at the end, like split()
+		if (length == 0) return;
+		int lineStart = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || data.charAt(i) == '\n') {
+				appendLine(data, lineStart, i);
+				lineStart = i + 1;
 			}
-		});
-        writer.flush();
-    }
+		}
+	}
+
+	/**
+	 * Encodes a line, truncated to the last whole character that fits in 510 bytes.
+	 */
+	private void appendLine(String data, int start, int end) {
+		int needed = outLength + Math.min((end - start) * 3, MAX_LINE_LENGTH) + 2;
+		if (needed > outBuffer.length)
+			outBuffer = Arrays.copyOf(outBuffer, Math.max(outBuffer.length * 2, needed));
+		byte[] b = outBuffer;
+		int n = outLength;
+		int limit = outLength + MAX_LINE_LENGTH;
+		for (int i = start; i < end; i++) {
+			char c = data.charAt(i);
+			if (c < 0x80) {
+				if (n + 1 > limit) break;
+				b[n++] = (byte) c;
+			} else if (c < 0x800) {
+				if (n + 2 > limit) break;
+				b[n++] = (byte) (0xC0 | c >> 6);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(data.charAt(i + 1))) {
+					if (n + 4 > limit) break;
+					int cp = Character.toCodePoint(c, data.charAt(++i));
+					b[n++] = (byte) (0xF0 | cp >> 18);
+					b[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+					b[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+					b[n++] = (byte) (0x80 | cp & 0x3F);
+				} else {
+					if (n + 1 > limit) break;
+					b[n++] = '?'; // Unpaired surrogate, as the charset encoders replace it
+				}
+			} else {
+				if (n + 3 > limit) break;
+				b[n++] = (byte) (0xE0 | c >> 12);
+				b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		b[n++] = '\r';
+		b[n++] = '\n';
+		outLength = n;
+	}
+
+	/**
+	 * Hands the output buffer to the socket in one write, or to the {@code EventLoop} to flush it.
+	 */
+	private void flush() throws IOException {
+		try {
+			if (connection != null) {
+				connection.write(outBuffer, 0, outLength);
+			} else {
+				out.write(outBuffer, 0, outLength);
+				out.flush();
+			}
+		} finally {
+			outLength = 0;
+		}
+	}
     
     /**
      * Generates an IRC command from parameters.
@@ -83,22 +202,104 @@ public class IO {
     /**
      * Generates a PRIVMSG IRC command.
      * Just a safer way to send PRIVMSGs
-     * If {@code msg} contains newlines, it generates multiple commands
+     * If {@code msg} contains newlines, or is too long for a single line, it generates multiple commands
+     * Delimited by newlines, see {@link #split(String, String, String, int, List)}.
+     * As our hostmask isn't known here, lines leave room for the longest usual one,
+     * {@link Worker#privmsg(String, String)} makes longer lines.
+     * An empty {@code msg} gives a single command without text, as {@link #compile(String, String[], String)} does
      * 
      * @param target The receiver of {@code msg}
      * @param msg The message to be sent
      * @return The raw IRC command
      */
     public static String privmsg(String target, String msg) {
-    	if (msg.contains("\n")) {
-    		StringBuilder result = new StringBuilder();
-			Arrays.stream(msg.split("\n")).forEach(message -> result.append(privmsg(target, message)).append("\n"));
-    		return (result + "").trim();
-    	} else if ((target + msg).length() > 498) {
-            return compile("PRIVMSG", new String[]{target}, String.join("\n", msg.substring(0, (510 - target.length())), privmsg(target, msg.substring(510 - target.length()))));
-        } else {
-			return compile("PRIVMSG", new String[]{target}, msg);
-		}
+        if (msg.isEmpty())
+            return compile("PRIVMSG", new String[]{target}, msg);
+        ArrayList<String> lines = new ArrayList<>();
+        split("PRIVMSG", target, msg, MAX_PREFIX_LENGTH, lines);
+        return String.join("\n", lines);
+    }
+
+    /**
+     * Splits a message into lines which fit the 512 bytes limit of IRC, once relayed by the server.
+     * The server prepends our ":nick!user@host " to the lines it relays, {@code prefixLength} is left for it.
+     * Lines are split on newlines, then at the last space that fits in the limit, or at the last
+     * Character that fits when there's no space, never inside a UTF-8 sequence. Empty lines are skipped.
+     *
+     * @param command      The command, like PRIVMSG or NOTICE
+     * @param target       The receiver of {@code text}
+     * @param text         The text to be sent
+     * @param prefixLength The length of the prefix the server adds in bytes
+     * @param lines        The list the lines are added to
+     */
+    public static void split(String command, String target, String text, int prefixLength, List<String> lines) {
+        String header = command + " " + target + " :";
+        // At least one character per line, whatever the header, so splitting always ends
+        int budget = Math.max(MAX_LINE_LENGTH - prefixLength - utf8Length(header, 0, header.length()), 4);
+        int length = text.length();
+        int pos = 0;
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '\n' || c == '\r') {
+                pos++;
+                continue;
+            }
+            int bytes = 0, lastSpace = -1, i = pos;
+            while (i < length) {
+                c = text.charAt(i);
+                if (c == '\n' || c == '\r') break;
+                int charLength = 1, charBytes;
+                if (c < 0x80) {
+                    charBytes = 1;
+                } else if (c < 0x800) {
+                    charBytes = 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    charBytes = 4;
+                    charLength = 2;
+                } else if (Character.isSurrogate(c)) {
+                    charBytes = 1; // Written as '?'
+                } else {
+                    charBytes = 3;
+                }
+                if (bytes + charBytes > budget) break;
+                if (c == ' ') lastSpace = i;
+                bytes += charBytes;
+                i += charLength;
+            }
+            int end = i;
+            boolean full = i < length && text.charAt(i) != '\n' && text.charAt(i) != '\r';
+            if (full && lastSpace > pos) end = lastSpace; // Split between words
+            lines.add(new StringBuilder(header.length() + end - pos).append(header).append(text, pos, end).toString());
+            pos = full && end == lastSpace ? end + 1 : end;
+        }
+    }
+
+    /**
+     * Gets the length of a part of {@code s} once encoded as UTF-8, as written by {@link #write(String)}.
+     *
+     * @param s     The string
+     * @param start The index of the first character
+     * @param end   The index after the last character
+     * @return The length in bytes
+     */
+    public static int utf8Length(CharSequence s, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
     }
     
     /**
@@ -0,0 +1,189 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits received bytes into lines, without decoding them.
+ * Bytes are read into one reusable buffer and scanned for line endings, each line is
+ * Then available as a slice of that buffer, which is only valid until the next read.
+ * Lines are decoded by {@link #decode(byte[], int, int, Charset)} only when needed,
+ * As UTF-8 if they are valid UTF-8, otherwise with a fallback charset, as many networks
+ * Still have clients sending Latin-1 or other legacy charsets.
+ * <p>
+ * Lines end with "\r\n", a bare "\n" is accepted too.
+ */
+public class LineFramer {
+    // Longer lines are a broken or malicious server, IRCv3 lines with tags are at most 8703 bytes
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+
+    private byte[] buffer = new byte[8192];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int start = 0; // Start of unconsumed bytes
+    private int end = 0; // End of read bytes
+    private int scan = 0; // Where to continue looking for a line ending
+    private int lineStart = 0, lineEnd = 0;
+
+    /**
+     * Reads more bytes from {@code in}, blocking until some are available.
+     *
+     * @return The amount of read bytes, or -1 at the end of the stream
+     * @throws IOException When unable to read, or when a line is too long
+     */
+    int fill(InputStream in) throws IOException {
+        prepare();
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read > 0) end += read;
+        return read;
+    }
+
+    /**
+     * Reads as many bytes as available from {@code channel}.
+     *
+     * @return The amount of read bytes, or -1 at the end of the stream
+     * @throws IOException When unable to read, or when a line is too long
+     */
+    int fill(ReadableByteChannel channel) throws IOException {
+        prepare();
+        view.limit(buffer.length).position(end);
+        int read = channel.read(view);
+        if (read > 0) end += read;
+        return read;
+    }
+
+    /**
+     * Copies bytes received by other means, like decrypted bytes, into the buffer.
+     *
+     * @throws IOException When a line is too long
+     */
+    void feed(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            prepare();
+            int length = Math.min(src.remaining(), buffer.length - end);
+            src.get(buffer, end, length);
+            end += length;
+        }
+    }
+
+    /**
+     * Makes room at the end of the buffer, moving unconsumed bytes to its start, or growing it.
+     */
+    private void prepare() throws IOException {
+        if (start == end) {
+            start = end = scan = 0;
+        } else if (end == buffer.length) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scan -= start;
+                start = 0;
+            } else if (buffer.length < MAX_LINE_LENGTH) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, end);
+                buffer = bigger;
+                view = ByteBuffer.wrap(buffer);
+            } else {
+                throw new IOException("Received a line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Finds the next complete line in the read bytes.
+     *
+     * @return true if a line is available through {@link #buffer()}, {@link #lineStart()} and {@link #lineLength()},
+     * False if more bytes have to be read
+     */
+    boolean next() {
+        for (int i = scan; i < end; i++) {
+            if (buffer[i] == '\n') {
+                lineStart = start;
+                lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                start = scan = i + 1;
+                return true;
+            }
+        }
+        scan = end;
+        return false;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int lineStart() {
+        return lineStart;
+    }
+
+    int lineLength() {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * Decodes the current line.
+     *
+     * @param fallback The charset used when the line isn't valid UTF-8
+     * @return The decoded line
+     */
+    String decode(Charset fallback) {
+        return decode(buffer, lineStart, lineEnd - lineStart, fallback);
+    }
+
+    /**
+     * Decodes a line as UTF-8, or with {@code fallback} if it isn't valid UTF-8.
+     *
+     * @param bytes The bytes containing the line
+     * @param offset The index of the first byte of the line
+     * @param length The length of the line in bytes
+     * @param fallback The charset used when the line isn't valid UTF-8
+     * @return The decoded line
+     */
+    public static String decode(byte[] bytes, int offset, int length, Charset fallback) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && bytes[i] >= 0) i++;
+        if (i == end) // ASCII, decoding as Latin-1 is just a copy
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        return new String(bytes, offset, length, isUtf8(bytes, i, end) ? StandardCharsets.UTF_8 : fallback);
+    }
+
+    /**
+     * Checks if bytes are well-formed UTF-8, no overlong forms, surrogates or code points above U+10FFFF.
+     */
+    private static boolean isUtf8(byte[] bytes, int i, int end) {
+        while (i < end) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int continuations, min = 0x80, max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuations = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuations = 2;
+                if (b == 0xE0) min = 0xA0;
+                else if (b == 0xED) max = 0x9F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuations = 3;
+                if (b == 0xF0) min = 0x90;
+                else if (b == 0xF4) max = 0x8F;
+            } else {
+                return false;
+            }
+            if (i + continuations >= end) return false;
+            int second = bytes[i + 1] & 0xFF;
+            if (second < min || second > max) return false;
+            for (int j = 2; j <= continuations; j++) {
+                int c = bytes[i + j] & 0xFF;
+                if (c < 0x80 || c > 0xBF) return false;
+            }
+            i += continuations + 1;
+        }
+        return true;
+    }
+}
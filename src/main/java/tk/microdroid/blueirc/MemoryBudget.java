@@ -0,0 +1,234 @@
+package tk.microdroid.blueirc;
+
+/**
+ * A limit on the memory taken by the channel and user messages of one or more {@code Worker}s.
+ * The {@code MessageBuffer}s of the {@code Worker}s using the budget report the size of the messages
+ * They keep, and once the total is over the limit, messages are evicted from them by the
+ * {@link EvictionPolicy}, on top of their own lengths. A minimum amount of messages can be
+ * Guaranteed to each buffer, which are then never evicted by the budget.
+ * <p>
+ * Sizes are estimates: a {@code Parser} is counted as its raw line plus the strings parsed from it,
+ * A line kept in an arena as its bytes. A message kept by both its channel and its user is counted twice.
+ * <p>
+ * A budget can be shared by several {@code Worker}s, for a limit over the whole JVM. The buffers
+ * Using it are changed under its lock, so a {@code Worker} can evict the messages of another one.
+ *
+ * @see Worker#setMemoryBudget(MemoryBudget)
+ */
+public class MemoryBudget {
+    private long maxBytes;
+    private EvictionPolicy policy = EvictionPolicy.LEAST_RECENTLY_ACTIVE;
+    private int minimumMessages = 0;
+    private volatile long usage = 0;
+    private volatile long messages = 0;
+    private volatile long evictions = 0;
+    // The buffers with messages the budget can evict, least recently added to first, linked by the buffers
+    private MessageBuffer oldest, newest;
+    // With OLDEST_FIRST, the buffer each message was added to, oldest first, and the number of the message
+    private MessageBuffer[] owners = new MessageBuffer[0];
+    private long[] numbers = new long[0];
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * Creates a budget.
+     *
+     * @param maxBytes The limit of the estimated size of the kept messages, in bytes
+     */
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Changes the limit, messages are evicted at once if the usage is over the new one.
+     *
+     * @param maxBytes The limit of the estimated size of the kept messages, in bytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        enforce();
+    }
+
+    /**
+     * Gets the limit.
+     *
+     * @return The limit in bytes
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets how the messages to evict are chosen.
+     *
+     * @param policy The policy, default is {@link EvictionPolicy#LEAST_RECENTLY_ACTIVE}
+     */
+    public synchronized void setPolicy(EvictionPolicy policy) {
+        if (policy == this.policy) return;
+        this.policy = policy;
+        owners = new MessageBuffer[0]; // Only messages added afterwards are evicted oldest first
+        numbers = new long[0];
+        head = count = 0;
+    }
+
+    /**
+     * Gets how the messages to evict are chosen.
+     *
+     * @return The policy
+     */
+    public synchronized EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Guarantees a number of messages to each channel and user, which the budget never evicts.
+     * The limit can then be exceeded, when all the buffers are down to their guarantee
+     *
+     * @param messages The amount of messages, default is 0
+     */
+    public synchronized void setMinimumMessages(int messages) {
+        minimumMessages = Math.max(messages, 0);
+    }
+
+    /**
+     * Gets the amount of messages guaranteed to each channel and user.
+     *
+     * @return The amount of messages
+     */
+    public synchronized int getMinimumMessages() {
+        return minimumMessages;
+    }
+
+    /**
+     * Gets the estimated size of the kept messages.
+     *
+     * @return The usage in bytes
+     */
+    public long getUsage() {
+        return usage;
+    }
+
+    /**
+     * Gets the amount of kept messages.
+     *
+     * @return The amount of messages, of all the channels and users
+     */
+    public long getMessageCount() {
+        return messages;
+    }
+
+    /**
+     * Gets the amount of messages evicted by this budget, rather than by the lengths of their buffers.
+     *
+     * @return The amount of evicted messages
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Counts a message added to a buffer, and evicts messages if the usage is then over the limit.
+     * Called under the lock of this budget
+     */
+    void added(MessageBuffer buffer, long number, long size) {
+        usage += size;
+        messages++;
+        if (policy == EvictionPolicy.OLDEST_FIRST) {
+            if (count == owners.length || count > 1024 && count > 2 * messages)
+                compact();
+            int tail = head + count < owners.length ? head + count : head + count - owners.length;
+            owners[tail] = buffer;
+            numbers[tail] = number;
+            count++;
+        } else if (buffer.size() > minimumMessages) {
+            unlink(buffer);
+            buffer.older = newest;
+            if (newest == null) oldest = buffer;
+            else newest.newer = buffer;
+            newest = buffer;
+            buffer.listed = true;
+        }
+        enforce();
+    }
+
+    /**
+     * Counts messages removed from a buffer.
+     * Called under the lock of this budget
+     */
+    void removed(long size, long count) {
+        usage -= size;
+        messages -= count;
+    }
+
+    /**
+     * Stops counting a buffer and its messages, when its channel or user is forgotten.
+     * Called under the lock of this budget
+     */
+    void unregister(MessageBuffer buffer, long size, long count) {
+        removed(size, count);
+        unlink(buffer);
+    }
+
+    private void unlink(MessageBuffer buffer) {
+        if (!buffer.listed) return;
+        if (buffer.older == null) oldest = buffer.newer;
+        else buffer.older.newer = buffer.newer;
+        if (buffer.newer == null) newest = buffer.older;
+        else buffer.newer.older = buffer.older;
+        buffer.older = buffer.newer = null;
+        buffer.listed = false;
+    }
+
+    private void enforce() {
+        while (usage > maxBytes && evictOne())
+            evictions++;
+    }
+
+    private boolean evictOne() {
+        if (policy == EvictionPolicy.OLDEST_FIRST) {
+            while (count > 0) {
+                MessageBuffer buffer = owners[head];
+                long number = numbers[head];
+                owners[head] = null;
+                head = head + 1 == owners.length ? 0 : head + 1;
+                count--;
+                if (buffer.isBudgeted() && number >= buffer.first() && buffer.size() > minimumMessages) {
+                    buffer.evictOldest();
+                    return true;
+                }
+            }
+            return false;
+        }
+        while (oldest != null) {
+            MessageBuffer buffer = oldest;
+            if (buffer.size() > minimumMessages) {
+                buffer.evictOldest();
+                if (buffer.size() <= minimumMessages) unlink(buffer);
+                return true;
+            }
+            unlink(buffer); // Down to its guarantee, until it gets a message
+        }
+        return false;
+    }
+
+    /**
+     * Drops the messages already evicted from the queue of OLDEST_FIRST, and makes room.
+     */
+    private void compact() {
+        int kept = 0;
+        MessageBuffer[] keptOwners = new MessageBuffer[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(64, 2 * messages + 64))];
+        long[] keptNumbers = new long[keptOwners.length];
+        for (int i = 0; i < count && kept < keptOwners.length; i++) {
+            int index = head + i < owners.length ? head + i : head + i - owners.length;
+            MessageBuffer buffer = owners[index];
+            if (buffer.isBudgeted() && numbers[index] >= buffer.first()) {
+                keptOwners[kept] = buffer;
+                keptNumbers[kept++] = numbers[index];
+            }
+        }
+        owners = keptOwners;
+        numbers = keptNumbers;
+        head = 0;
+        count = kept;
+    }
+}
@@ -1,5 +1,7 @@
 package tk.microdroid.blueirc;
 
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -14,6 +16,10 @@ public class Message {
 	private final static AtomicInteger idGenerator = new AtomicInteger(0);
 	private String msg = "";
 	private int id = 0;
+	long queuedAt; // When it was queued, for the wait time metrics
+	int lines = 1; // Lines it's sent as, each costs a flood control penalty
+	ArrayList<Message> merged; // Messages coalesced into this one, sent along with it
+	CompletableFuture<Message> future; // When sent by Worker.sendAsync()
 	
 	Message(String line) {
 		id = idGenerator.incrementAndGet();
@@ -33,6 +39,10 @@ public class Message {
 	public String getMsg() {
 		return msg;
 	}
+
+	void setMsg(String msg) {
+		this.msg = msg;
+	}
 	
 	/**
 	 * Get the contained message id.
@@ -0,0 +1,158 @@
+package tk.microdroid.blueirc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw lines of a {@code MessageBuffer}, stored as UTF-8 in chunks of bytes.
+ * Lines are appended after each other, each after its length in 4 bytes, and removed oldest first:
+ * A chunk is released once its last line is removed. Chunks grow from 4 KB up to 1 MB as the
+ * History gets longer, so short ones stay small, and are allocated on the heap or as direct buffers.
+ * <p>
+ * A line is located by a position, the sequence number of its chunk in the upper 32 bits
+ * And its offset in the chunk in the lower ones.
+ * <p>
+ * Bytes are never overwritten, and released chunks are left to the garbage collector, so a
+ * {@link View} taken by a snapshot of the buffer keeps reading its lines while lines are appended.
+ */
+final class MessageArena {
+    private static final int MIN_CHUNK = 4096;
+    private static final int MAX_CHUNK = 1 << 20;
+
+    /**
+     * The chunks of the arena at some point, to read the lines appended until then.
+     */
+    static final class View {
+        private final ByteBuffer[] chunks;
+        private final int start;
+        private final long firstChunk; // Sequence number of chunks[start]
+
+        View(ByteBuffer[] chunks, int start, long firstChunk) {
+            this.chunks = chunks;
+            this.start = start;
+            this.firstChunk = firstChunk;
+        }
+
+        /**
+         * Reads a line back.
+         *
+         * @param position The position of the line, as returned by {@link #append(String)}
+         * @return The line
+         */
+        String read(long position) {
+            ByteBuffer chunk = chunks[start + (int) ((position >>> 32) - firstChunk)];
+            int offset = (int) position;
+            int length = chunk.getInt(offset);
+            if (chunk.hasArray())
+                return new String(chunk.array(), chunk.arrayOffset() + offset + 4, length, StandardCharsets.UTF_8);
+            byte[] bytes = new byte[length];
+            ByteBuffer view = chunk.duplicate();
+            view.position(offset + 4);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Gets the length of a line.
+         *
+         * @param position The position of the line
+         * @return The length in bytes
+         */
+        int length(long position) {
+            return chunks[start + (int) ((position >>> 32) - firstChunk)].getInt((int) position);
+        }
+    }
+
+    private final boolean direct;
+    // Appended to after the slots in use, and copied when full, so the arrays of the views never change
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+    private int start = 0; // Index of the oldest chunk
+    private int count = 0;
+    private long firstChunk = 0; // Sequence number of chunks[start]
+    private int chunkSize = MIN_CHUNK;
+    private long reserved = 0;
+    private View view;
+
+    MessageArena(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Appends a line.
+     *
+     * @return The position of the line
+     */
+    long append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int needed = 4 + bytes.length;
+        ByteBuffer chunk = count == 0 ? null : chunks[start + count - 1];
+        if (chunk == null || chunk.remaining() < needed)
+            chunk = newChunk(needed);
+        long position = (firstChunk + count - 1) << 32 | chunk.position();
+        chunk.putInt(bytes.length);
+        chunk.put(bytes);
+        return position;
+    }
+
+    private ByteBuffer newChunk(int needed) {
+        if (chunkSize < MAX_CHUNK && count >= 8) // Bigger chunks for longer histories
+            chunkSize *= 2;
+        int size = Math.max(chunkSize, needed);
+        ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        reserved += size;
+        if (start + count == chunks.length) { // Dropping the released chunks
+            ByteBuffer[] copy = new ByteBuffer[count + Math.max(4, count / 8) + 1];
+            System.arraycopy(chunks, start, copy, 0, count);
+            chunks = copy;
+            start = 0;
+        }
+        chunks[start + count++] = chunk;
+        view = null;
+        return chunk;
+    }
+
+    /**
+     * Gets the chunks as they are now.
+     *
+     * @return A view to read the lines appended so far
+     */
+    View view() {
+        if (view == null)
+            view = new View(chunks, start, firstChunk);
+        return view;
+    }
+
+    /**
+     * Releases the chunks which only hold lines before the oldest kept one.
+     *
+     * @param oldest The position of the oldest kept line
+     */
+    void release(long oldest) {
+        long keep = oldest >>> 32;
+        while (firstChunk < keep && count > 1) {
+            reserved -= chunks[start].capacity();
+            start++;
+            count--;
+            firstChunk++;
+            view = null;
+        }
+    }
+
+    /**
+     * Releases every line.
+     */
+    void clear() {
+        firstChunk += count;
+        chunks = new ByteBuffer[4];
+        start = count = 0;
+        reserved = 0;
+        view = null;
+    }
+
+    /**
+     * Gets the bytes held by the chunks, including the free space at their ends.
+     */
+    long reserved() {
+        return reserved;
+    }
+}
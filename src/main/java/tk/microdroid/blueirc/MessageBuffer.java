@@ -0,0 +1,384 @@
+package tk.microdroid.blueirc;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The messages kept by a {@code Channel} or a {@code User}, oldest first.
+ * Once the buffer holds its capacity, each added message evicts the oldest one, so adding and
+ * Evicting never shift the messages. Messages are written in chunks of 64 which are never
+ * Overwritten, and the array of chunks grows as messages are added. Once all of its messages are evicted,
+ * A chunk is dropped by copying the array of chunks, so the arrays published to snapshots never change.
+ * <p>
+ * Depending on {@link Worker#setHistoryStorage(HistoryStorage)}, the buffer keeps the {@code Parser}s
+ * Themselves, or only their raw lines in a {@code MessageArena}, in which case {@link #get(int)}
+ * Parses the line again and returns a new {@code Parser} on each call.
+ * <p>
+ * Messages are added by the {@code Worker}, the buffer isn't meant to be modified otherwise.
+ * Changes lock the buffer, and its {@code MemoryBudget} first when it has one, so the buffer can be
+ * Resized or cleared from another thread while messages are added.
+ * It can be read from any thread: {@link #snapshot()} gives the messages as they are, in constant time
+ * And without locking, and stays the same while messages are added. Iterating and sublists,
+ * Like {@link #last(int)}, read such a snapshot, they never throw {@code ConcurrentModificationException}.
+ * A snapshot keeps the messages it has, evicted or not, until it's no longer referenced.
+ * <p>
+ * With a {@code MemoryBudget}, the buffer reports the estimated size of its messages, and the budget
+ * Can evict its oldest messages even when it's not full.
+ *
+ * @see Worker#setChannelBufferLength(int)
+ * @see Worker#setUserBufferLength(int)
+ */
+public class MessageBuffer extends AbstractList<Parser> implements RandomAccess {
+    private static final int CHUNK = 64; // Messages per chunk
+    private static final int CHUNK_BITS = 6;
+    private static final int PARSER_SIZE = 256; // Estimate of a Parser and its parsed strings, besides the line itself
+
+    private final MessageArena arena; // Null when the Parsers are kept
+    // Parser[] or, with an arena, long[] positions of the lines, by chunk number - base
+    // Only written after the chunks in use, and copied when full or to drop evicted chunks,
+    // So the arrays of snapshots never change
+    private Object[] chunks = new Object[4];
+    private long base = 0; // Chunk number of chunks[0]
+    private long first = 0; // Number of the oldest kept message, messages are numbered as they're added
+    private long end = 0; // Number of the next message
+    private volatile int capacity;
+    private volatile History history; // Published after each change
+    // Changes are made under its lock, then the buffer's, or only the buffer's once it's null when released
+    private volatile MemoryBudget budget;
+    private volatile long retained = 0; // Estimated size of the kept messages
+    MessageBuffer older, newer; // In the list of the active buffers of the budget
+    boolean listed = false;
+
+    MessageBuffer(int capacity) {
+        this(capacity, HistoryStorage.PARSERS, null);
+    }
+
+    MessageBuffer(int capacity, HistoryStorage storage, MemoryBudget budget) {
+        this.capacity = Math.max(capacity, 0);
+        this.budget = budget;
+        arena = storage == HistoryStorage.PARSERS ? null : new MessageArena(storage == HistoryStorage.DIRECT);
+        publish();
+    }
+
+    /**
+     * Gets the maximum amount of messages kept.
+     *
+     * @return The capacity, 0 if no messages are kept
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the maximum amount of messages kept, the oldest messages are removed if there are more.
+     *
+     * @param capacity The capacity, 0 to keep no messages
+     */
+    void setCapacity(int capacity) {
+        MemoryBudget budget = this.budget;
+        if (budget == null) {
+            synchronized (this) {
+                resize(capacity);
+            }
+        } else {
+            synchronized (budget) {
+                synchronized (this) {
+                    resize(capacity);
+                }
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        if (end - first > this.capacity) {
+            evict(end - this.capacity);
+            publish();
+        }
+    }
+
+    /**
+     * Adds a message, removing the oldest one when the buffer is full.
+     * Reused {@code Parser}s are copied when they're kept
+     *
+     * @param p The message
+     * @return false if no messages are kept
+     */
+    @Override
+    public boolean add(Parser p) {
+        MemoryBudget budget = this.budget;
+        if (budget == null) {
+            synchronized (this) {
+                return append(p);
+            }
+        }
+        synchronized (budget) {
+            synchronized (this) {
+                return append(p);
+            }
+        }
+    }
+
+    private boolean append(Parser p) {
+        if (capacity == 0) return false;
+        int index = (int) ((end >>> CHUNK_BITS) - base);
+        if (index == chunks.length) { // Growing, without the evicted chunks
+            long firstChunk = first >>> CHUNK_BITS;
+            int live = (int) (index - (firstChunk - base));
+            Object[] copy = new Object[live + Math.max(4, live / 8)];
+            System.arraycopy(chunks, index - live, copy, 0, live);
+            chunks = copy;
+            base = firstChunk;
+            index = live;
+        }
+        Object chunk = chunks[index];
+        if (chunk == null)
+            chunks[index] = chunk = arena == null ? new Parser[CHUNK] : new long[CHUNK];
+        int slot = (int) (end & (CHUNK - 1));
+        if (arena == null)
+            ((Parser[]) chunk)[slot] = p.retain();
+        else
+            ((long[]) chunk)[slot] = arena.append(p.getRaw());
+        end++;
+        long size = sizeOf(end - 1);
+        retained += size;
+        if (end - first > capacity)
+            evict(first + 1);
+        publish();
+        if (budget != null)
+            budget.added(this, end - 1, size);
+        return true;
+    }
+
+    /**
+     * Estimates the memory taken by a kept message.
+     */
+    private long sizeOf(long number) {
+        Object chunk = chunks[(int) ((number >>> CHUNK_BITS) - base)];
+        int slot = (int) (number & (CHUNK - 1));
+        if (arena == null)
+            return PARSER_SIZE + 2L * ((Parser[]) chunk)[slot].getRaw().length();
+        return 4 + arena.view().length(((long[]) chunk)[slot]);
+    }
+
+    private void evict(long newFirst) {
+        long freed = 0;
+        for (long number = first; number < newFirst; number++)
+            freed += sizeOf(number);
+        retained -= freed;
+        if (budget != null)
+            budget.removed(freed, newFirst - first);
+        first = newFirst;
+        if (arena != null) {
+            if (first == end)
+                arena.clear();
+            else
+                arena.release(((long[]) chunks[(int) ((first >>> CHUNK_BITS) - base)])[(int) (first & (CHUNK - 1))]);
+        }
+        if (first == end) { // Nothing left to keep the chunks for
+            chunks = new Object[4];
+            base = end >>> CHUNK_BITS;
+        } else if ((first >>> CHUNK_BITS) > base) { // Dropping the evicted chunks, snapshots keep the old array
+            int dropped = (int) ((first >>> CHUNK_BITS) - base);
+            Object[] copy = new Object[chunks.length];
+            System.arraycopy(chunks, dropped, copy, 0, chunks.length - dropped);
+            chunks = copy;
+            base += dropped;
+        }
+    }
+
+    private void publish() {
+        history = new History(chunks, base, first, end, arena == null ? null : arena.view());
+    }
+
+    /**
+     * Gets a message.
+     * When only the raw lines are kept, the line is parsed again into a new {@code Parser}
+     *
+     * @param index The index of the message, 0 is the oldest
+     * @return The message
+     */
+    @Override
+    public Parser get(int index) {
+        return history.get(index);
+    }
+
+    @Override
+    public int size() {
+        return history.size();
+    }
+
+    @Override
+    public Iterator<Parser> iterator() {
+        return history.iterator();
+    }
+
+    @Override
+    public List<Parser> subList(int fromIndex, int toIndex) {
+        return history.subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public void clear() {
+        MemoryBudget budget = this.budget;
+        if (budget == null) {
+            synchronized (this) {
+                evictAll();
+            }
+        } else {
+            synchronized (budget) {
+                synchronized (this) {
+                    evictAll();
+                }
+            }
+        }
+    }
+
+    private void evictAll() {
+        if (first < end) {
+            evict(end);
+            publish();
+        }
+    }
+
+    /**
+     * Evicts the oldest message, for the {@code MemoryBudget}.
+     * Called under its lock
+     */
+    synchronized void evictOldest() {
+        evict(first + 1);
+        publish();
+    }
+
+    /**
+     * Gets the number of the oldest kept message, for the {@code MemoryBudget} and the {@code MessageIndex}.
+     * Read from the published history, so it's consistent without the lock
+     */
+    long first() {
+        return history.first;
+    }
+
+    /**
+     * Checks whether the {@code MemoryBudget} counts this buffer.
+     */
+    boolean isBudgeted() {
+        return budget != null;
+    }
+
+    /**
+     * Stops counting this buffer in its {@code MemoryBudget}, when its channel or user is forgotten.
+     * The messages stay, but the budget no longer evicts them
+     */
+    void release() {
+        MemoryBudget budget = this.budget;
+        if (budget == null) return;
+        synchronized (budget) {
+            synchronized (this) {
+                budget.unregister(this, retained, end - first);
+                this.budget = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the estimated memory taken by the kept messages.
+     * Counts the {@code Parser}s, or the lines in the arena, as a {@code MemoryBudget} does
+     *
+     * @return The size in bytes
+     * @see Worker#setMemoryBudget(MemoryBudget)
+     */
+    public long getRetainedSize() {
+        return retained;
+    }
+
+    /**
+     * Gets the messages as they are now.
+     * Takes constant time, and the snapshot doesn't change as messages are added or evicted
+     *
+     * @return The messages, oldest first
+     */
+    public List<Parser> snapshot() {
+        return history;
+    }
+
+    /**
+     * Gets the latest messages, as a snapshot.
+     *
+     * @param count The maximum amount of messages
+     * @return The last {@code count} messages, oldest first, or all of them if there are less
+     */
+    public List<Parser> last(int count) {
+        History history = this.history;
+        int size = history.size();
+        return history.subList(size - Math.max(Math.min(count, size), 0), size);
+    }
+
+    /**
+     * Gets the amount of messages added since this buffer was created, evicted ones included.
+     */
+    long added() {
+        return history.end;
+    }
+
+    /**
+     * Gets a message by the order it was added in.
+     *
+     * @param number The number of the message, 0 is the first one ever added
+     * @return The message, or null if it's no longer kept
+     */
+    Parser getAdded(long number) {
+        History history = this.history;
+        return number < history.first || number >= history.end ? null : history.message(number);
+    }
+
+    /**
+     * Gets the memory used for the raw lines, when they're kept in an arena.
+     *
+     * @return The bytes reserved by the arena, on the heap or off it, or 0 when the {@code Parser}s are kept
+     * @see Worker#setHistoryStorage(HistoryStorage)
+     */
+    public long getStorageSize() {
+        return arena == null ? 0 : arena.reserved();
+    }
+
+    /**
+     * The messages of the buffer at some point.
+     */
+    private static final class History extends AbstractList<Parser> implements RandomAccess {
+        final Object[] chunks;
+        final long base;
+        final long first;
+        final long end;
+        final MessageArena.View arena;
+
+        History(Object[] chunks, long base, long first, long end, MessageArena.View arena) {
+            this.chunks = chunks;
+            this.base = base;
+            this.first = first;
+            this.end = end;
+            this.arena = arena;
+        }
+
+        Parser message(long number) {
+            Object chunk = chunks[(int) ((number >>> CHUNK_BITS) - base)];
+            int slot = (int) (number & (CHUNK - 1));
+            if (arena == null)
+                return ((Parser[]) chunk)[slot];
+            return new Parser(arena.read(((long[]) chunk)[slot]));
+        }
+
+        @Override
+        public Parser get(int index) {
+            if (index < 0 || index >= end - first)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (end - first));
+            return message(first + index);
+        }
+
+        @Override
+        public int size() {
+            return (int) (end - first);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * A full-text index of the channel messages of a {@code Worker}, to search them without scanning every buffer.
+ * Each message is split in words, letters and digits lower cased, and listed under each of its words.
+ * A search looks the words up and walks their lists from the newest message, so it only reads as many
+ * Entries as the results need, whatever the length of the histories.
+ * <p>
+ * Messages are indexed as they're added to their channel, and stop matching once they're evicted
+ * From its buffer, or the channel is left. The entries of evicted messages are removed in batches,
+ * Once as many messages were indexed as were kept at the last removal, with the channels and nicks
+ * They were the last messages of.
+ * <p>
+ * Searches can be done from any thread, they wait for the message being indexed.
+ *
+ * @see Worker#setMessageIndexing(boolean)
+ */
+public class MessageIndex {
+    private static final int MAX_TERM = 64; // Longer words aren't indexed
+    private static final int MIN_COMPACTION = 4096;
+    // Listed like words, the messages of a nick and of a channel, before any letter so prefixes don't match them
+    private static final String NICK = "\0";
+    private static final String CHANNEL = "\1";
+
+    /**
+     * A message found by a search.
+     */
+    public static final class Hit {
+        private final Channel channel;
+        private final String nick;
+        private final long time;
+        private final Parser message;
+
+        Hit(Channel channel, String nick, long time, Parser message) {
+            this.channel = channel;
+            this.nick = nick;
+            this.time = time;
+            this.message = message;
+        }
+
+        /**
+         * Gets the channel of the message.
+         *
+         * @return The channel
+         */
+        public Channel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Gets the nick of the sender, casefolded.
+         *
+         * @return The casefolded nick
+         */
+        public String getNick() {
+            return nick;
+        }
+
+        /**
+         * Gets the time of the message, its server-time or when it was received.
+         *
+         * @return Milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets the message, as kept by its channel.
+         *
+         * @return The message
+         */
+        public Parser getMessage() {
+            return message;
+        }
+    }
+
+    private final Worker worker;
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    private final TreeMap<String, Postings> sortedTerms = new TreeMap<>(); // The same lists, for prefixes
+    private final HashMap<String, Integer> nickIds = new HashMap<>();
+    private final ArrayList<String> nicks = new ArrayList<>();
+    private final HashMap<Channel, Integer> channelIds = new HashMap<>();
+    private final ArrayList<Channel> channels = new ArrayList<>();
+    // The indexed messages, by document number
+    private int[] docChannels = new int[64];
+    private int[] docNicks = new int[64];
+    private long[] docNumbers = new long[64]; // See MessageBuffer#getAdded(long)
+    private long[] docTimes = new long[64];
+    private int docs = 0;
+    private int compactAt = MIN_COMPACTION;
+
+    MessageIndex(Worker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Indexes a message just added to a channel.
+     *
+     * @param channel The channel
+     * @param p       The message
+     * @param number  The number of the message in the buffer of the channel
+     */
+    synchronized void add(Channel channel, Parser p, long number) {
+        if (docs == compactAt)
+            compact();
+        if (docs == docTimes.length) {
+            int grown = docs * 2;
+            docChannels = Arrays.copyOf(docChannels, grown);
+            docNicks = Arrays.copyOf(docNicks, grown);
+            docNumbers = Arrays.copyOf(docNumbers, grown);
+            docTimes = Arrays.copyOf(docTimes, grown);
+        }
+        int doc = docs++;
+        Integer channelId = channelIds.get(channel);
+        if (channelId == null) {
+            channelId = channels.size();
+            channelIds.put(channel, channelId);
+            channels.add(channel);
+        }
+        String nick = p.nickKey(worker.caseMapping);
+        Integer nickId = nickIds.get(nick);
+        if (nickId == null) {
+            nickId = nicks.size();
+            nickIds.put(nick, nickId);
+            nicks.add(nick);
+        }
+        long time = p.getServerTime();
+        docChannels[doc] = channelId;
+        docNicks[doc] = nickId;
+        docNumbers[doc] = number;
+        docTimes[doc] = time < 0 ? System.currentTimeMillis() : time;
+        posting(NICK + nick).add(doc);
+        posting(CHANNEL + channelId).add(doc);
+        String msg = p.getMsg();
+        int length = msg.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(msg.charAt(i))) i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(msg.charAt(i))) i++;
+            if (i == start || i - start > MAX_TERM) continue;
+            posting(fold(msg, start, i)).add(doc); // Once per message, even if the word is repeated
+        }
+    }
+
+    private Postings posting(String term) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+            sortedTerms.put(term, postings);
+        }
+        return postings;
+    }
+
+    private static String fold(String msg, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+            chars[i - start] = Character.toLowerCase(msg.charAt(i));
+        return new String(chars);
+    }
+
+    /**
+     * Searches the messages of every channel.
+     *
+     * @param query The words of the messages, separated by spaces, and ending with * to match their beginning
+     * @param limit The maximum amount of results
+     * @return The newest messages with all the words, newest first
+     * @see #search(String, String, String, long, long, int)
+     */
+    public List<Hit> search(String query, int limit) {
+        return search(query, null, null, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * Searches messages.
+     * Words are compared ignoring case, a query like "build fail*" matches "Build failed!" and "the BUILD is failing"
+     *
+     * @param query   The words of the messages, separated by spaces, and ending with * to match their beginning,
+     *                Or an empty string to match any message
+     * @param nick    The nick of the sender, or null for anyone
+     * @param channel The name of the channel, or null for every channel
+     * @param since   The earliest time of the messages in milliseconds since the epoch, inclusive
+     * @param until   The latest time of the messages in milliseconds since the epoch, exclusive
+     * @param limit   The maximum amount of results
+     * @return The newest matching messages, newest first
+     */
+    public synchronized List<Hit> search(String query, String nick, String channel, long since, long until, int limit) {
+        if (limit <= 0) return Collections.emptyList();
+        ArrayList<Postings> exact = new ArrayList<>();
+        ArrayList<Collection<Postings>> prefixed = new ArrayList<>(); // The lists of the words of each prefix
+        if (nick != null)
+            exact.add(terms.get(NICK + worker.caseMapping.fold(nick)));
+        if (channel != null) {
+            Integer id = channelIds.get(worker.channel(channel));
+            exact.add(id == null ? null : terms.get(CHANNEL + id));
+        }
+        int length = query.length();
+        int i = 0;
+        while (i < length) { // Split like the messages
+            while (i < length && !Character.isLetterOrDigit(query.charAt(i))) i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(query.charAt(i))) i++;
+            if (i == start) continue;
+            String term = fold(query, start, i);
+            if (i < length && query.charAt(i) == '*') {
+                Collection<Postings> lists = sortedTerms.subMap(term, term + Character.MAX_VALUE).values();
+                if (lists.isEmpty()) return Collections.emptyList();
+                prefixed.add(lists);
+            } else {
+                exact.add(terms.get(term));
+            }
+        }
+        if (exact.contains(null)) return Collections.emptyList(); // A word, nick or channel never seen
+        exact.sort((a, b) -> Integer.compare(a.size, b.size));
+        int smallestPrefix = -1; // Walking the words of a prefix, if they're listed less than any exact word
+        int smallest = exact.isEmpty() ? Integer.MAX_VALUE : exact.get(0).size;
+        for (int j = 0; j < prefixed.size(); j++) {
+            int size = 0;
+            for (Postings postings : prefixed.get(j))
+                size += postings.size;
+            if (size < smallest) {
+                smallest = size;
+                smallestPrefix = j;
+            }
+        }
+        DocIterator iterator;
+        if (smallestPrefix >= 0) {
+            iterator = mergedIterator(prefixed.remove(smallestPrefix));
+        } else if (!exact.isEmpty()) {
+            iterator = exact.remove(0).iterator();
+        } else {
+            iterator = new DocIterator() {
+                int doc = docs;
+
+                @Override
+                public int previous() {
+                    return doc > 0 ? --doc : -1;
+                }
+            };
+        }
+        ArrayList<BitSet> prefixSets = new ArrayList<>(); // The other prefixes, as the set of their messages
+        for (Collection<Postings> lists : prefixed) {
+            BitSet set = new BitSet(docs);
+            for (Postings postings : lists)
+                for (int j = 0; j < postings.size; j++)
+                    set.set(postings.docs[j]);
+            prefixSets.add(set);
+        }
+        boolean[] alive = aliveChannels();
+        ArrayList<Hit> hits = new ArrayList<>();
+        search:
+        for (int doc = iterator.previous(); doc >= 0 && hits.size() < limit; doc = iterator.previous()) {
+            long time = docTimes[doc];
+            if (!alive[docChannels[doc]] || time < since || time >= until) continue;
+            for (Postings postings : exact)
+                if (!postings.contains(doc)) continue search;
+            for (BitSet set : prefixSets)
+                if (!set.get(doc)) continue search;
+            Channel chan = channels.get(docChannels[doc]);
+            Parser message = chan.getMessages().getAdded(docNumbers[doc]);
+            if (message == null) continue; // Evicted
+            hits.add(new Hit(chan, nicks.get(docNicks[doc]), time, message));
+        }
+        return hits;
+    }
+
+    /**
+     * Gets which channels are still ours, the messages of the others no longer match.
+     */
+    private boolean[] aliveChannels() {
+        boolean[] alive = new boolean[channels.size()];
+        for (int i = 0; i < alive.length; i++) {
+            Channel chan = channels.get(i);
+            alive[i] = !chan.hasLeft() && worker.channel(chan.getName()) == chan;
+        }
+        return alive;
+    }
+
+    /**
+     * Merges the lists of the words starting with a prefix, newest first.
+     */
+    private static DocIterator mergedIterator(Collection<Postings> lists) {
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> Integer.compare(b[0], a[0])); // {doc, list}
+        ArrayList<DocIterator> iterators = new ArrayList<>();
+        for (Postings postings : lists) {
+            DocIterator iterator = postings.iterator();
+            int doc = iterator.previous();
+            if (doc >= 0) {
+                heads.add(new int[]{doc, iterators.size()});
+                iterators.add(iterator);
+            }
+        }
+        return new DocIterator() {
+            int last = -1;
+
+            @Override
+            public int previous() {
+                while (!heads.isEmpty()) {
+                    int[] head = heads.poll();
+                    int doc = head[0];
+                    int next = iterators.get(head[1]).previous();
+                    if (next >= 0) {
+                        head[0] = next;
+                        heads.add(head);
+                    }
+                    if (doc != last) // Messages with several of the words
+                        return last = doc;
+                }
+                return -1;
+            }
+        };
+    }
+
+    /**
+     * Gets the amount of indexed messages, including evicted ones not removed yet.
+     *
+     * @return The amount of messages
+     */
+    public synchronized int size() {
+        return docs;
+    }
+
+    /**
+     * Gets the amount of lists of the index, one per distinct word, nick and channel of the indexed messages.
+     *
+     * @return The amount of lists
+     */
+    public synchronized int getListCount() {
+        return terms.size();
+    }
+
+    /**
+     * Removes the entries of the evicted messages, and of the channels which were left, renumbering the others.
+     */
+    private void compact() {
+        boolean[] alive = aliveChannels();
+        long[] firstKept = new long[channels.size()];
+        for (int i = 0; i < firstKept.length; i++) {
+            firstKept[i] = alive[i] ? channels.get(i).getMessages().first() : Long.MAX_VALUE;
+        }
+        int[] renumbered = new int[docs];
+        int kept = 0;
+        for (int doc = 0; doc < docs; doc++) {
+            if (docNumbers[doc] < firstKept[docChannels[doc]]) {
+                renumbered[doc] = -1;
+                continue;
+            }
+            renumbered[doc] = kept;
+            docChannels[kept] = docChannels[doc];
+            docNicks[kept] = docNicks[doc];
+            docNumbers[kept] = docNumbers[doc];
+            docTimes[kept] = docTimes[doc];
+            kept++;
+        }
+        if (kept < docs) {
+            Iterator<Map.Entry<String, Postings>> entries = terms.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Postings> entry = entries.next();
+                if (!entry.getValue().renumber(renumbered)) {
+                    entries.remove();
+                    sortedTerms.remove(entry.getKey());
+                }
+            }
+            docs = kept;
+            compactIds();
+        }
+        compactAt = Math.max(MIN_COMPACTION, docs * 2);
+    }
+
+    /**
+     * Forgets the channels and nicks without messages left, renumbering the others,
+     * So the channels which were left can be garbage collected.
+     */
+    private void compactIds() {
+        int[] channelRenumbered = new int[channels.size()];
+        int[] nickRenumbered = new int[nicks.size()];
+        Arrays.fill(channelRenumbered, -1);
+        Arrays.fill(nickRenumbered, -1);
+        for (int doc = 0; doc < docs; doc++) {
+            channelRenumbered[docChannels[doc]] = 0;
+            nickRenumbered[docNicks[doc]] = 0;
+        }
+        ArrayList<Postings> channelPostings = new ArrayList<>();
+        ArrayList<Channel> keptChannels = new ArrayList<>();
+        channelIds.clear();
+        for (int id = 0; id < channelRenumbered.length; id++) {
+            Postings postings = terms.remove(CHANNEL + id); // Listed under their id, renamed below
+            sortedTerms.remove(CHANNEL + id);
+            if (channelRenumbered[id] < 0) continue;
+            channelRenumbered[id] = keptChannels.size();
+            channelIds.put(channels.get(id), keptChannels.size());
+            keptChannels.add(channels.get(id));
+            channelPostings.add(postings);
+        }
+        for (int id = 0; id < channelPostings.size(); id++) {
+            terms.put(CHANNEL + id, channelPostings.get(id));
+            sortedTerms.put(CHANNEL + id, channelPostings.get(id));
+        }
+        channels.clear();
+        channels.addAll(keptChannels);
+        ArrayList<String> keptNicks = new ArrayList<>();
+        nickIds.clear();
+        for (int id = 0; id < nickRenumbered.length; id++) {
+            if (nickRenumbered[id] < 0) continue;
+            nickRenumbered[id] = keptNicks.size();
+            nickIds.put(nicks.get(id), keptNicks.size());
+            keptNicks.add(nicks.get(id));
+        }
+        nicks.clear();
+        nicks.addAll(keptNicks);
+        for (int doc = 0; doc < docs; doc++) {
+            docChannels[doc] = channelRenumbered[docChannels[doc]];
+            docNicks[doc] = nickRenumbered[docNicks[doc]];
+        }
+    }
+
+    private interface DocIterator {
+        /**
+         * Gets the previous document, -1 at the start.
+         */
+        int previous();
+    }
+
+    /**
+     * The documents with a word, in order.
+     */
+    private static final class Postings {
+        int[] docs = new int[2];
+        int size = 0;
+
+        void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) return;
+            if (size == docs.length)
+                docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = doc;
+        }
+
+        boolean contains(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+        }
+
+        /**
+         * Renumbers the documents, dropping the removed ones.
+         *
+         * @return false if there are none left
+         */
+        boolean renumber(int[] renumbered) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int doc = renumbered[docs[i]];
+                if (doc >= 0) docs[kept++] = doc;
+            }
+            size = kept;
+            if (kept < docs.length / 4)
+                docs = Arrays.copyOf(docs, Math.max(kept, 2));
+            return kept > 0;
+        }
+
+        DocIterator iterator() {
+            return new DocIterator() {
+                int i = size;
+
+                @Override
+                public int previous() {
+                    return i > 0 ? docs[--i] : -1;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package tk.microdroid.blueirc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A persistent log of the messages of a network, appended to memory-mapped segment files.
+ * Every message gets a sequence number, and the log can be read back from a sequence number,
+ * Since a time, or for the last lines of a channel, without loading whole segments.
+ * <p>
+ * A segment is a file named after its first sequence number, mapped with a fixed size and filled
+ * With records: their length, sequence, time, target and raw line, and their length again so the
+ * Last lines are found by reading backwards. Once full, the segment is truncated to its records and
+ * The next one is created. A sparse index of every 64th record, in memory and rebuilt from the
+ * Segments when the log is opened, finds where to start reading by sequence or time.
+ * <p>
+ * Appended records are in the page cache at once, they are forced to the disk by a background
+ * Thread every second, or {@link #setSyncInterval(long)}, which commits all the records of the
+ * Interval with a single sync. Records appended since the last sync can be lost on a crash,
+ * The records are checked when the log is opened, a torn last record is dropped.
+ * <p>
+ * Appending is serialized, reading doesn't lock and can happen from any thread.
+ *
+ * @see Worker#setMessageLog(MessageLog)
+ */
+public class MessageLog implements Closeable {
+    private static final int HEADER = 4 + 8 + 8 + 2; // Length, sequence, time and target length
+    private static final int TRAILER = 4; // Length
+    private static final int INDEX_INTERVAL = 64; // Records between index entries
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Gets the records read from a {@code MessageLog}.
+     */
+    public interface Visitor {
+        /**
+         * Called for each record, oldest first.
+         *
+         * @param sequence The sequence number of the record
+         * @param time     The time of the record in milliseconds since the epoch
+         * @param line     The raw line as UTF-8, a read-only view of the segment which is only valid during the call
+         * @return false to stop reading
+         */
+        boolean visit(long sequence, long time, ByteBuffer line);
+    }
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Segment[] segments;
+    private volatile Segment active; // The segment appended to, null until the first append
+    private long nextSequence = 0;
+    private int segmentSize = 64 << 20;
+    private long maxAge = 0;
+    private long maxBytes = 0;
+    private volatile long syncInterval = 1000;
+    private volatile boolean dirty = false;
+    private volatile boolean closed = false;
+    private final Thread syncer;
+
+    /**
+     * Opens the log of a directory, creating it if needed.
+     * The segments already there are checked and indexed, new records go to a new segment
+     *
+     * @param directory The directory of the segments, one per network
+     * @throws IOException When the directory or its segments can't be read
+     */
+    public MessageLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        ArrayList<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream)
+                paths.add(path);
+        }
+        paths.sort(null); // Named after their zero padded first sequence numbers
+        ArrayList<Segment> opened = new ArrayList<>();
+        for (Path path : paths) {
+            Segment segment = Segment.open(path);
+            if (segment.end == 0) {
+                Files.deleteIfExists(path);
+                continue;
+            }
+            opened.add(segment);
+            nextSequence = segment.lastSequence + 1;
+        }
+        segments = opened.toArray(new Segment[0]);
+        syncer = Threads.newThread(this::syncLoop, "blueirc-log-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Sets the size of the segments.
+     * Applies to the next segment
+     *
+     * @param bytes The size of a segment, default is 64 MB
+     */
+    public void setSegmentSize(int bytes) {
+        segmentSize = Math.max(bytes, 4096);
+    }
+
+    /**
+     * Sets which segments are kept, older segments are deleted when a segment is full and every sync interval.
+     * The segment being appended to is always kept
+     *
+     * @param maxAge   The age of the last record of a segment after which it's deleted in milliseconds, 0 for no limit
+     * @param maxBytes The size of all the segments after which the oldest ones are deleted, 0 for no limit
+     */
+    public void setRetention(long maxAge, long maxBytes) {
+        lock.lock();
+        try {
+            this.maxAge = maxAge;
+            this.maxBytes = maxBytes;
+            applyRetention();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how often the appended records are forced to the disk.
+     *
+     * @param millis The interval in milliseconds, default is 1000
+     */
+    public void setSyncInterval(long millis) {
+        syncInterval = Math.max(millis, 1);
+        syncer.interrupt();
+    }
+
+    /**
+     * Appends a message at the time of its IRCv3 server-time tag, or received now if it has none.
+     *
+     * @param target The channel or nick, casefolded as by {@link Worker#getCaseMapping()}
+     * @param line   The raw line
+     * @return The sequence number of the message
+     * @throws IOException When a new segment can't be created
+     */
+    public long append(String target, String line) throws IOException {
+        long time = line.startsWith("@") ? new Parser(line).getServerTime() : -1; // Only parsed when tagged
+        return append(target, time < 0 ? System.currentTimeMillis() : time, line);
+    }
+
+    /**
+     * Appends a message.
+     * The time is kept as is, even when it's before the one of the last record, like a replayed line's
+     *
+     * @param target The channel or nick, casefolded as by {@link Worker#getCaseMapping()}
+     * @param time   The time of the message in milliseconds since the epoch
+     * @param line   The raw line
+     * @return The sequence number of the message
+     * @throws IOException When a new segment can't be created
+     */
+    public long append(String target, long time, String line) throws IOException {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        if (targetBytes.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Target too long");
+        int length = HEADER + targetBytes.length + lineBytes.length + TRAILER;
+        lock.lock();
+        try {
+            if (closed)
+                throw new IOException("The log is closed");
+            Segment segment = active;
+            if (segment == null || segment.end + length > segment.map.capacity())
+                segment = roll(length);
+            long sequence = nextSequence++;
+            int offset = segment.end;
+            MappedByteBuffer map = segment.map;
+            ByteBuffer body = map.duplicate();
+            body.position(offset + 4);
+            body.putLong(sequence);
+            body.putLong(time);
+            body.putShort((short) targetBytes.length);
+            body.put(targetBytes);
+            body.put(lineBytes);
+            body.putInt(length);
+            map.putInt(offset, length); // Written last, a record is only valid once its length is there
+            segment.appended(sequence, time, offset, length);
+            dirty = true;
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes the active segment and creates the next one.
+     */
+    private Segment roll(int needed) throws IOException {
+        if (active != null) {
+            active.map.force();
+            try (FileChannel channel = FileChannel.open(active.path, StandardOpenOption.WRITE)) {
+                channel.truncate(active.end); // Records beyond the end are never read
+            }
+        }
+        Path path = directory.resolve(String.format("%020d", nextSequence) + SUFFIX);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, needed));
+        }
+        Segment segment = new Segment(path, map);
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[grown.length - 1] = segment;
+        segments = grown;
+        active = segment;
+        applyRetention();
+        return segment;
+    }
+
+    /**
+     * Deletes the segments which are too old, or the oldest ones while the log is too big.
+     */
+    private void applyRetention() {
+        Segment[] current = segments;
+        long total = 0;
+        for (Segment segment : current)
+            total += segment.end;
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        while (deleted < current.length && current[deleted] != active) {
+            Segment oldest = current[deleted];
+            if (!(maxAge > 0 && oldest.maxTime < now - maxAge) && !(maxBytes > 0 && total > maxBytes))
+                break;
+            try {
+                Files.deleteIfExists(oldest.path); // Readers still reading it keep its mapping
+            } catch (IOException e) {
+                break;
+            }
+            total -= oldest.end;
+            deleted++;
+        }
+        if (deleted > 0)
+            segments = Arrays.copyOfRange(current, deleted, current.length);
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncInterval);
+            } catch (InterruptedException e) {
+                continue; // Closed or interval changed
+            }
+            sync();
+            if (maxAge > 0 && lock.tryLock()) {
+                try {
+                    applyRetention();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the appended records to the disk now.
+     */
+    public void sync() {
+        if (!dirty) return;
+        dirty = false;
+        Segment segment = active; // A finished segment was forced when rolling
+        if (segment != null)
+            segment.map.force();
+    }
+
+    /**
+     * Reads the records from a sequence number.
+     *
+     * @param target   The channel or nick, casefolded, or null for all of them
+     * @param sequence The first sequence number
+     * @param visitor  Gets the records
+     */
+    public void readFrom(String target, long sequence, Visitor visitor) {
+        Segment[] current = segments;
+        int first = 0;
+        while (first + 1 < current.length && current[first + 1].firstSequence <= sequence) first++;
+        if (current.length == 0) return;
+        scan(current, first, current[first].offsetOf(sequence, Long.MAX_VALUE), key(target), sequence, Long.MIN_VALUE, visitor);
+    }
+
+    /**
+     * Reads the records since a time.
+     *
+     * @param target  The channel or nick, casefolded, or null for all of them
+     * @param time    The time of the first record in milliseconds since the epoch
+     * @param visitor Gets the records
+     */
+    public void readSince(String target, long time, Visitor visitor) {
+        Segment[] current = segments;
+        int first = 0;
+        while (first < current.length - 1 && current[first].maxTime < time) first++;
+        if (current.length == 0) return;
+        scan(current, first, current[first].offsetOf(Long.MAX_VALUE, time), key(target), Long.MIN_VALUE, time, visitor);
+    }
+
+    /**
+     * Reads the last records, like the last lines of a channel.
+     *
+     * @param target  The channel or nick, casefolded, or null for all of them
+     * @param count   The maximum amount of records
+     * @param visitor Gets the records, oldest first
+     */
+    public void readLast(String target, int count, Visitor visitor) {
+        Segment[] current = segments;
+        byte[] key = key(target);
+        long[] found = new long[Math.min(Math.max(count, 0), 1024)]; // Segment and offset of each record, newest first
+        int size = 0;
+        for (int i = current.length - 1; i >= 0 && size < count; i--) {
+            MappedByteBuffer map = current[i].map;
+            int offset = current[i].end;
+            while (offset > 0 && size < count) {
+                offset -= map.getInt(offset - TRAILER);
+                if (matches(map, offset, key)) {
+                    if (size == found.length)
+                        found = Arrays.copyOf(found, (int) Math.min((long) found.length * 2, count));
+                    found[size++] = (long) i << 32 | offset;
+                }
+            }
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            Segment segment = current[(int) (found[i] >>> 32)];
+            if (!visit(segment, segment.map.asReadOnlyBuffer(), (int) found[i], visitor))
+                return;
+        }
+    }
+
+    /**
+     * Gets the last lines of a target, parsed.
+     *
+     * @param target The channel or nick, casefolded, or null for all of them
+     * @param count  The maximum amount of lines
+     * @return The lines, oldest first
+     */
+    public List<Parser> last(String target, int count) {
+        ArrayList<Parser> lines = new ArrayList<>();
+        readLast(target, count, (sequence, time, line) -> lines.add(new Parser(StandardCharsets.UTF_8.decode(line).toString())));
+        return lines;
+    }
+
+    /**
+     * Gets the lines of a target since a time, parsed.
+     *
+     * @param target The channel or nick, casefolded, or null for all of them
+     * @param time   The time of the first line in milliseconds since the epoch
+     * @return The lines, oldest first
+     */
+    public List<Parser> since(String target, long time) {
+        ArrayList<Parser> lines = new ArrayList<>();
+        readSince(target, time, (sequence, t, line) -> lines.add(new Parser(StandardCharsets.UTF_8.decode(line).toString())));
+        return lines;
+    }
+
+    /**
+     * Gets the sequence number the next message gets.
+     *
+     * @return The next sequence number
+     */
+    public long getNextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the size of the records of all the segments.
+     *
+     * @return The size in bytes
+     */
+    public long getSize() {
+        long total = 0;
+        for (Segment segment : segments)
+            total += segment.end;
+        return total;
+    }
+
+    /**
+     * Syncs and closes the log, appending afterwards fails.
+     * The segments are truncated to their records the next time the log is opened
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            dirty = true;
+            sync();
+        } finally {
+            lock.unlock();
+        }
+        syncer.interrupt();
+    }
+
+    private void scan(Segment[] current, int first, int offset, byte[] key, long fromSequence, long fromTime, Visitor visitor) {
+        for (int i = first; i < current.length; i++) {
+            Segment segment = current[i];
+            MappedByteBuffer map = segment.map;
+            ByteBuffer view = map.asReadOnlyBuffer();
+            int end = segment.end;
+            while (offset < end) {
+                int length = map.getInt(offset);
+                if (map.getLong(offset + 4) >= fromSequence && map.getLong(offset + 12) >= fromTime
+                        && matches(map, offset, key) && !visit(segment, view, offset, visitor))
+                    return;
+                offset += length;
+            }
+            offset = 0;
+        }
+    }
+
+    private static boolean visit(Segment segment, ByteBuffer view, int offset, Visitor visitor) {
+        MappedByteBuffer map = segment.map;
+        int length = map.getInt(offset);
+        int lineStart = offset + HEADER + map.getShort(offset + 20);
+        view.limit(offset + length - TRAILER);
+        view.position(lineStart);
+        return visitor.visit(map.getLong(offset + 4), map.getLong(offset + 12), view);
+    }
+
+    private static byte[] key(String target) {
+        return target == null ? null : target.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean matches(MappedByteBuffer map, int offset, byte[] key) {
+        if (key == null) return true;
+        if (map.getShort(offset + 20) != key.length) return false;
+        for (int i = 0; i < key.length; i++)
+            if (map.get(offset + HEADER + i) != key[i]) return false;
+        return true;
+    }
+
+    /**
+     * A segment file, its end and its sparse index.
+     * Only the appending thread changes it, readers read up to the published end
+     */
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer map;
+        volatile int end = 0;
+        long firstSequence = -1;
+        volatile long lastSequence = -1;
+        volatile long maxTime = Long.MIN_VALUE; // The latest time of its records, which needn't be the last one's
+        private int count = 0;
+        private long[] sequences = new long[64];
+        private long[] times = new long[64];
+        private int[] offsets = new int[64];
+        private volatile int indexSize = 0;
+
+        Segment(Path path, MappedByteBuffer map) {
+            this.path = path;
+            this.map = map;
+        }
+
+        /**
+         * Maps an existing segment, checking and indexing its records.
+         */
+        static Segment open(Path path) throws IOException {
+            MappedByteBuffer map;
+            long size;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                size = channel.size();
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+            }
+            Segment segment = new Segment(path, map);
+            int offset = 0;
+            int capacity = map.capacity();
+            while (offset + HEADER + TRAILER <= capacity) {
+                int length = map.getInt(offset);
+                if (length < HEADER + TRAILER || length > capacity - offset
+                        || map.getInt(offset + length - TRAILER) != length
+                        || HEADER + map.getShort(offset + 20) + TRAILER > length)
+                    break; // The end, or a torn record
+                segment.appended(map.getLong(offset + 4), map.getLong(offset + 12), offset, length);
+                offset += length;
+            }
+            if (segment.end < size) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(segment.end); // The mapping is only read before the end
+                }
+            }
+            return segment;
+        }
+
+        void appended(long sequence, long time, int offset, int length) {
+            if (time > maxTime) maxTime = time;
+            if (count++ % INDEX_INTERVAL == 0) {
+                int size = indexSize;
+                if (size == offsets.length) { // Readers keep reading the old arrays up to their size
+                    sequences = Arrays.copyOf(sequences, size * 2);
+                    times = Arrays.copyOf(times, size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                }
+                sequences[size] = sequence;
+                times[size] = maxTime; // So the times of the index never go back
+                offsets[size] = offset;
+                indexSize = size + 1;
+            }
+            if (firstSequence < 0) firstSequence = sequence;
+            lastSequence = sequence;
+            end = offset + length;
+        }
+
+        /**
+         * Finds where to start reading for a sequence number or a time, from the sparse index.
+         * Pass {@code Long.MAX_VALUE} for the one which isn't searched
+         *
+         * @return The offset of the last indexed record at or before the sequence, which with the records before it
+         * Is before the time
+         */
+        int offsetOf(long sequence, long time) {
+            int size = indexSize;
+            long[] sequences = this.sequences, times = this.times;
+            int[] offsets = this.offsets;
+            int low = 0, high = size - 1, found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sequences[middle] <= sequence && times[middle] < time) {
+                    found = offsets[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
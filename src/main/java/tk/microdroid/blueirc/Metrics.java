@@ -0,0 +1,140 @@
+package tk.microdroid.blueirc;
+
+/**
+ * Statistics of a {@code Worker}, updated live.
+ * Counters start when the {@code Worker} is created, and aren't reset on reconnection.
+ *
+ * @see Worker#getMetrics()
+ */
+public class Metrics {
+    private final OutboundQueue outbound;
+
+    volatile long sentMessages = 0;
+    volatile long droppedMessages = 0;
+    volatile long coalescedMessages = 0;
+    volatile long totalWaitTime = 0;
+    volatile long maxWaitTime = 0;
+    private volatile long handshakes = 0;
+    private volatile long resumedHandshakes = 0;
+    private volatile long totalHandshakeTime = 0;
+    private volatile long lastHandshakeTime = 0;
+
+    Metrics(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * Gets the amount of messages waiting to be sent.
+     *
+     * @return The amount of queued messages, of all targets and lanes
+     */
+    public int getQueuedMessages() {
+        return outbound.size();
+    }
+
+    /**
+     * Gets the amount of messages waiting in the priority lane, like PONG, registration and QUIT.
+     *
+     * @return The amount of queued priority messages
+     */
+    public int getQueuedPriorityMessages() {
+        return outbound.prioritySize();
+    }
+
+    /**
+     * Gets the amount of messages taken from the queue to be written.
+     *
+     * @return The amount of sent messages, including those which then failed to be written
+     */
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    /**
+     * Gets the amount of messages dropped because their target's queue was full.
+     *
+     * @return The amount of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * Gets the amount of messages merged into another queued message.
+     *
+     * @return The amount of coalesced messages
+     * @see OverflowPolicy#COALESCE
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages;
+    }
+
+    /**
+     * Gets the average time sent messages waited in the queue, for flood control or a slow connection.
+     *
+     * @return The average wait time in milliseconds
+     */
+    public double getAverageWaitTime() {
+        long sent = sentMessages;
+        return sent == 0 ? 0 : (double) totalWaitTime / sent;
+    }
+
+    /**
+     * Gets the longest time a sent message waited in the queue.
+     *
+     * @return The maximum wait time in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Records a completed TLS handshake.
+     *
+     * @param time    How long it took in microseconds
+     * @param resumed Whether a cached session was resumed
+     */
+    synchronized void handshaken(long time, boolean resumed) {
+        handshakes++;
+        if (resumed) resumedHandshakes++;
+        totalHandshakeTime += time;
+        lastHandshakeTime = time;
+    }
+
+    /**
+     * Gets the amount of completed TLS handshakes, one per connection to an SSL server.
+     *
+     * @return The amount of handshakes
+     */
+    public long getHandshakes() {
+        return handshakes;
+    }
+
+    /**
+     * Gets the amount of TLS handshakes which resumed the session of an earlier connection to the same server.
+     *
+     * @return The amount of resumed handshakes
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes;
+    }
+
+    /**
+     * Gets the average time TLS handshakes took.
+     *
+     * @return The average handshake time in milliseconds
+     */
+    public double getAverageHandshakeTime() {
+        long count = handshakes;
+        return count == 0 ? 0 : totalHandshakeTime / 1000.0 / count;
+    }
+
+    /**
+     * Gets the time the last TLS handshake took.
+     *
+     * @return The last handshake time in milliseconds
+     */
+    public double getLastHandshakeTime() {
+        return lastHandshakeTime / 1000.0;
+    }
+}
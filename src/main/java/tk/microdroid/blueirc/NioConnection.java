@@ -0,0 +1,388 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking connection of a {@code Worker}, served by an {@code EventLoop}.
+ * Everything but {@link #requestDrain()} runs on the loop thread.
+ * <p>
+ * Received bytes are split into lines and handed to {@link Worker#onLine(LineFramer)}.
+ * Queued messages are taken from the {@code Worker}'s outbound queue only when everything
+ * Written before has been flushed to the socket, so a slow server pushes back on the queue
+ * Just like a blocking socket does.
+ * <p>
+ * SSL connections go through an {@code SSLEngine}: received records are unwrapped before being
+ * Split into lines, and the write buffer is wrapped into records as it's flushed. The handshake is
+ * Done by the loop thread, the {@code Worker} is told it's connected once it completes.
+ */
+class NioConnection {
+    private final Worker worker;
+    private final EventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean closed = false;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Host names are looked up on threads of their own, a lookup blocks and would stall the loop or the timer
+    private static final Executor RESOLVER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), task -> {
+        Thread thread = new Thread(task, "blueirc-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LineFramer framer = new LineFramer();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(8192); // In write mode, pending bytes are before position
+    private final ArrayList<Message> batch = new ArrayList<>(Worker.MAX_WRITE_BATCH);
+    private final ArrayList<Message> unflushed = new ArrayList<>(); // Written to writeBuffer, not to the socket yet
+    private boolean drainDelayed = false; // Waiting for flood control
+
+    private SSLEngine engine; // Null for plain connections
+    private ByteBuffer netIn, netOut, appIn; // Received records, records to be written, unwrapped bytes
+    private boolean handshaking = false;
+    private long handshakeStart, handshakeStartNanos;
+
+    NioConnection(Worker worker, EventLoop loop) {
+        this.worker = worker;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts connecting, the host is looked up by a resolver thread and the connection is made on the loop thread.
+     *
+     * @param ssl        Whether to connect with TLS
+     * @param invalidSSL Whether any certificate is accepted
+     */
+    void connect(String server, int port, boolean ssl, boolean invalidSSL) {
+        RESOLVER.execute(() -> {
+            InetSocketAddress address = new InetSocketAddress(server, port);
+            loop.execute(() -> {
+                if (closed) return; // Closed while looking the host up
+                try {
+                    if (loop.isShutdown()) // The channel would never be registered
+                        throw new IOException("The event loop was shut down");
+                    if (address.isUnresolved())
+                        throw new UnknownHostException(server);
+                    if (ssl) {
+                        engine = TlsContexts.engine(server, port, invalidSSL);
+                        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    }
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+                    if (channel.connect(address))
+                        connected();
+                } catch (IOException e) {
+                    close(e);
+                }
+            });
+        });
+    }
+
+    boolean inEventLoop() {
+        return loop.inEventLoop();
+    }
+
+    void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable() && channel.finishConnect())
+            connected();
+        if (key.isValid() && key.isReadable())
+            read();
+        if (key.isValid() && key.isWritable())
+            flush();
+    }
+
+    private void connected() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        if (engine != null) {
+            handshaking = true;
+            handshakeStart = System.currentTimeMillis();
+            handshakeStartNanos = System.nanoTime();
+            engine.beginHandshake();
+            processTls();
+            return;
+        }
+        established();
+    }
+
+    private void established() {
+        worker.onConnected(new IO(this));
+        drainQueue();
+    }
+
+    private void read() throws IOException {
+        int read = engine == null ? framer.fill(channel) : channel.read(netIn);
+        if (read < 0) {
+            close(handshaking ? new SSLException("Connection closed during the TLS handshake") : null);
+            return;
+        }
+        if (engine != null)
+            processTls();
+        while (!closed && !handshaking && framer.next()) {
+            worker.onLine(framer);
+            if (!worker.running)
+                close(null);
+        }
+    }
+
+    /**
+     * Appends bytes to be written, they are flushed by {@link #drainQueue()}.
+     */
+    void write(byte[] bytes, int offset, int length) {
+        if (writeBuffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + length));
+            writeBuffer.flip();
+            bigger.put(writeBuffer);
+            writeBuffer = bigger;
+        }
+        writeBuffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes as much as the socket accepts, waiting for it to be writable if it doesn't take everything.
+     *
+     * @return true if nothing is left to be written
+     */
+    private boolean flushBuffer() throws IOException {
+        writeBuffer.flip();
+        try {
+            if (engine == null) {
+                channel.write(writeBuffer);
+            } else {
+                while (flushRecords() && writeBuffer.hasRemaining() && !handshaking) {
+                    SSLEngineResult result = engine.wrap(writeBuffer, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("TLS connection closed by the server");
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                }
+            }
+        } finally {
+            writeBuffer.compact();
+        }
+        boolean flushed = writeBuffer.position() == 0 && (engine == null || netOut.position() == 0);
+        setWriteInterest(!flushed);
+        return flushed;
+    }
+
+    private void flush() throws IOException {
+        if (handshaking) {
+            if (flushRecords()) {
+                setWriteInterest(false);
+                processTls();
+            }
+            return;
+        }
+        boolean flushed;
+        try {
+            flushed = flushBuffer();
+        } catch (IOException e) {
+            worker.fireFailed(unflushed, SendException.Reason.WRITE_FAILED, e);
+            unflushed.clear();
+            throw e;
+        }
+        if (flushed) {
+            worker.fireSent(unflushed);
+            unflushed.clear();
+            drainQueue();
+        }
+    }
+
+    /**
+     * Writes the wrapped records to the socket.
+     *
+     * @return true if the socket took all of them
+     */
+    private boolean flushRecords() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * Moves the handshake forward and unwraps the received records, feeding their bytes to the framer.
+     * Runs until the engine needs more bytes from the server, or the socket is full.
+     */
+    private void processTls() throws IOException {
+        while (!closed) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                boolean written = flushRecords();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close(handshaking ? new SSLException("TLS handshake closed by the server") : null);
+                    return;
+                }
+                checkFinished(result);
+                if (!written) {
+                    setWriteInterest(true); // Continued once the socket is writable
+                    return;
+                }
+                continue;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            if (appIn.position() > 0) {
+                appIn.flip();
+                framer.feed(appIn);
+                appIn.clear();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity())
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    return; // Waiting for the rest of the record
+                case CLOSED:
+                    close(handshaking ? new SSLException("TLS handshake closed by the server") : null);
+                    return;
+                default:
+                    checkFinished(result);
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK)
+                        return;
+            }
+        }
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (handshaking && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+            TlsContexts.handshaken(engine.getSession(), handshakeStart, handshakeStartNanos, worker.outbound.metrics());
+            established();
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        int ops = key.interestOps();
+        key.interestOps(write ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, size));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Asks the loop thread to write the messages queued in the {@code Worker}.
+     * Safe to call from any thread
+     */
+    void requestDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                drainScheduled.set(false);
+                drainQueue();
+            });
+        }
+    }
+
+    /**
+     * Writes queued messages, firing DATA_SENT or DATA_SEND_FAIL for each of them.
+     * Everything flood control lets through is encoded into the write buffer and flushed at once,
+     * Messages are sent once the socket took all of their bytes.
+     * When flood control holds messages back, draining is scheduled for when they can be sent.
+     */
+    void drainQueue() {
+        if (closed || key == null || handshaking || (key.interestOps() & SelectionKey.OP_CONNECT) != 0)
+            return;
+        while (writeBuffer.position() == 0 && worker.outbound.drainTo(batch, Worker.MAX_WRITE_BATCH) > 0) {
+            try {
+                worker.io.write(batch);
+                if (flushBuffer()) {
+                    worker.fireSent(batch);
+                } else {
+                    unflushed.addAll(batch);
+                }
+            } catch (IOException e) {
+                worker.fireFailed(batch, SendException.Reason.WRITE_FAILED, e);
+                close(e);
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+        long delay = worker.outbound.delay();
+        if (writeBuffer.position() == 0 && delay > 0 && !drainDelayed) {
+            drainDelayed = true;
+            worker.schedule(() -> loop.execute(() -> {
+                drainDelayed = false;
+                drainQueue();
+            }), delay);
+        }
+    }
+
+    /**
+     * Closes the connection from any thread.
+     *
+     * @param cause The reason, or null when the connection was closed normally
+     */
+    void closeLater(IOException cause) {
+        loop.execute(() -> close(cause));
+    }
+
+    /**
+     * Closes the connection, the {@code Worker} is notified once.
+     *
+     * @param cause The reason, or null when the connection was closed normally
+     */
+    void close(IOException cause) {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            if (engine != null && channel != null && channel.isConnected() && !handshaking) {
+                engine.closeOutbound(); // Best effort close_notify, the socket isn't waited for
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        } catch (IOException ignored) {}
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {}
+        worker.fireFailed(unflushed, SendException.Reason.DISCONNECTED, cause);
+        unflushed.clear();
+        worker.onDisconnected(cause);
+    }
+}
@@ -0,0 +1,312 @@
+package tk.microdroid.blueirc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The outbound messages of a {@code Worker}, released at the rate the server accepts.
+ * <p>
+ * Flood control follows the penalty model of RFC 1459 (8.10) most ircds use: every line
+ * Adds {@code interval} to a penalty timer, and lines are only sent while that timer is
+ * Less than {@code burst} lines ahead of the current time. By default that's a burst of 5 lines,
+ * Then one line every 2 seconds.
+ * <p>
+ * PONG, registration commands and QUIT go to a priority lane, which is sent before anything
+ * Else and never held back, though it still counts against the timer. Other messages are
+ * Queued per target (the first parameter, like the channel of a PRIVMSG) and targets are
+ * Served in turn, so one long paste doesn't hold back the messages of other channels.
+ * Target queues are bounded, a full queue is handled by an {@link OverflowPolicy}.
+ * <p>
+ * Adding a message never blocks, all methods are thread safe.
+ */
+class OutboundQueue {
+    private static final String[] PRIORITY_COMMANDS = {"PONG", "QUIT", "PASS", "CAP", "AUTHENTICATE", "NICK", "USER"};
+
+    private final Metrics metrics = new Metrics(this);
+    // Not synchronized, waiting in a monitor would pin a virtual writer thread to its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+
+    private final ArrayDeque<Message> priority = new ArrayDeque<>();
+    // Iteration order is the serving order, a served target moves to the end
+    private final LinkedHashMap<String, ArrayDeque<Message>> targets = new LinkedHashMap<>();
+    private int size = 0;
+
+    private int burst = 5;
+    private long interval = 2000;
+    private long penaltyTimer = 0; // When the server considers the penalty of our lines paid, in ms
+
+    private int targetLimit = 32;
+    private OverflowPolicy policy = OverflowPolicy.DROP_NEWEST;
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    void setFloodControl(int burst, long interval) {
+        lock.lock();
+        try {
+            this.burst = burst;
+            this.interval = interval;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setTargetLimit(int limit, OverflowPolicy policy) {
+        lock.lock();
+        try {
+            this.targetLimit = limit;
+            this.policy = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int prioritySize() {
+        lock.lock();
+        try {
+            return priority.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a message, applying the overflow policy when its target's queue is full.
+     *
+     * @return The message dropped to apply the policy, either {@code msg} or an older one, or null
+     */
+    Message offer(Message msg) {
+        lock.lock();
+        try {
+            String line = msg.getMsg();
+            msg.queuedAt = System.currentTimeMillis();
+            msg.lines = countLines(line);
+            int cmdStart = commandStart(line);
+            int cmdEnd = wordEnd(line, cmdStart);
+            if (isPriority(line, cmdStart, cmdEnd)) {
+                priority.add(msg);
+                size++;
+                ready.signalAll();
+                return null;
+            }
+            String target = line.substring(skipSpaces(line, cmdEnd), wordEnd(line, skipSpaces(line, cmdEnd)));
+            ArrayDeque<Message> queue = targets.get(target);
+            Message dropped = null;
+            if (queue != null && queue.size() >= targetLimit || targetLimit <= 0) {
+                if (policy == OverflowPolicy.DROP_NEWEST || queue == null) {
+                    metrics.droppedMessages++;
+                    return msg;
+                }
+                if (policy == OverflowPolicy.COALESCE && coalesce(queue.peekLast(), msg, line, cmdStart, cmdEnd)) {
+                    metrics.coalescedMessages++;
+                    return null;
+                }
+                dropped = queue.poll();
+                size--;
+                metrics.droppedMessages++;
+            }
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                targets.put(target, queue);
+            }
+            queue.add(msg);
+            size++;
+            ready.signalAll();
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the text of {@code msg} to {@code last}, if both are single line PRIVMSGs or NOTICEs.
+     * CTCP messages, like ACTION, are never merged, their text must stay between its delimiters
+     */
+    private static boolean coalesce(Message last, Message msg, String line, int cmdStart, int cmdEnd) {
+        if (last == null || last.lines != 1 || msg.lines != 1) return false;
+        String lastLine = last.getMsg();
+        int lastCmdStart = commandStart(lastLine);
+        int lastCmdEnd = wordEnd(lastLine, lastCmdStart);
+        if (!line.regionMatches(true, cmdStart, lastLine, lastCmdStart, cmdEnd - cmdStart)
+                || cmdEnd - cmdStart != lastCmdEnd - lastCmdStart
+                || !(isCommand(line, cmdStart, cmdEnd, "PRIVMSG") || isCommand(line, cmdStart, cmdEnd, "NOTICE")))
+            return false;
+        int text = line.indexOf(" :", cmdEnd);
+        int lastText = lastLine.indexOf(" :", lastCmdEnd);
+        if (text < 0 || lastText < 0 || isCtcp(line, text + 2) || isCtcp(lastLine, lastText + 2)) return false;
+        String merged = lastLine + " " + line.substring(text + 2);
+        if (IO.utf8Length(merged, 0, merged.length()) > IO.MAX_LINE_LENGTH - IO.MAX_PREFIX_LENGTH)
+            return false; // Would be truncated, by IO.write or the server relaying it
+        last.setMsg(merged);
+        if (last.merged == null) last.merged = new ArrayList<>();
+        last.merged.add(msg);
+        return true;
+    }
+
+    private static boolean isCtcp(String line, int text) {
+        return text < line.length() && line.charAt(text) == '\u0001';
+    }
+
+    /**
+     * Moves the messages which can be sent now into {@code batch}, priority messages first.
+     *
+     * @return The amount of moved messages
+     */
+    int drainTo(List<Message> batch, int max) {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (penaltyTimer < now) penaltyTimer = now;
+            int moved = 0;
+            Message msg;
+            while (moved < max && (msg = priority.poll()) != null) {
+                take(batch, msg, now);
+                moved++;
+            }
+            while (moved < max && !targets.isEmpty() && (burst <= 0 || penaltyTimer - now < burst * interval)) {
+                Iterator<Map.Entry<String, ArrayDeque<Message>>> it = targets.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Message>> first = it.next();
+                ArrayDeque<Message> queue = first.getValue();
+                take(batch, queue.poll(), now);
+                moved++;
+                it.remove();
+                if (!queue.isEmpty())
+                    targets.put(first.getKey(), queue); // To the end, the next target is served next
+            }
+            return moved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void take(List<Message> batch, Message msg, long now) {
+        batch.add(msg);
+        size--;
+        if (burst > 0)
+            penaltyTimer += msg.lines * interval;
+        long wait = now - msg.queuedAt;
+        metrics.sentMessages++;
+        metrics.totalWaitTime += wait;
+        if (wait > metrics.maxWaitTime) metrics.maxWaitTime = wait;
+    }
+
+    /**
+     * Moves every queued message into {@code unsent}, when the connection is lost.
+     */
+    void clear(List<Message> unsent) {
+        lock.lock();
+        try {
+            unsent.addAll(priority);
+            priority.clear();
+            for (ArrayDeque<Message> queue : targets.values())
+                unsent.addAll(queue);
+            targets.clear();
+            size = 0;
+            penaltyTimer = 0; // A new connection starts without penalty
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets how long until a queued message can be sent.
+     *
+     * @return The delay in milliseconds, 0 if a message can be sent now, or -1 if nothing is queued
+     */
+    long delay() {
+        lock.lock();
+        try {
+            if (!priority.isEmpty()) return 0;
+            if (targets.isEmpty()) return -1;
+            if (burst <= 0) return 0;
+            return Math.max(0, penaltyTimer - burst * interval + 1 - System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the messages which can be sent into {@code batch}, waiting until there are some.
+     * Returns without messages when woken up by {@link #wakeUp()}.
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    void await(List<Message> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            if (drainTo(batch, max) > 0) return;
+            long delay = delay();
+            if (delay < 0) ready.await();
+            else ready.await(delay, TimeUnit.MILLISECONDS);
+            drainTo(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up threads waiting in {@link #await(List, int)}, so they can stop.
+     */
+    void wakeUp() {
+        lock.lock();
+        try {
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int countLines(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == '\n') end--;
+        int lines = 1;
+        for (int i = 0; i < end; i++)
+            if (line.charAt(i) == '\n') lines++;
+        return lines;
+    }
+
+    private static int commandStart(String line) {
+        int i = 0;
+        if (line.startsWith("@")) i = skipSpaces(line, wordEnd(line, 0)); // Client tags
+        return i;
+    }
+
+    private static int wordEnd(String line, int i) {
+        while (i < line.length() && line.charAt(i) != ' ' && line.charAt(i) != '\n') i++;
+        return i;
+    }
+
+    private static int skipSpaces(String line, int i) {
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static boolean isPriority(String line, int start, int end) {
+        for (String cmd : PRIORITY_COMMANDS)
+            if (isCommand(line, start, end, cmd)) return true;
+        return false;
+    }
+
+    private static boolean isCommand(String line, int start, int end, String cmd) {
+        return end - start == cmd.length() && line.regionMatches(true, start, cmd, 0, cmd.length());
+    }
+}
@@ -0,0 +1,24 @@
+package tk.microdroid.blueirc;
+
+/**
+ * What happens to a message sent to a target whose outbound queue is full.
+ * Messages which are dropped fire DATA_SEND_FAIL.
+ *
+ * @see Worker#setTargetQueueLimit(int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest message queued for the target is dropped to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * The text of a PRIVMSG or NOTICE is appended to the last one queued for the target,
+     * When it fits in a single line, otherwise the oldest message is dropped.
+     * Both messages fire DATA_SENT once the merged line is sent
+     */
+    COALESCE
+}
@@ -1,134 +1,500 @@
 package tk.microdroid.blueirc;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * {@code Parser} holds a received IRC command and parses it internally.
- * A {@code Parser} parses the IRC command in the constructor itself.
+ * A {@code Parser} scans the IRC command once in the constructor, recording
+ * Offsets into the raw line, the strings and lists are only built when a getter asks for them.
  * {@code Parser} instances are passed internally in this library, rather
  * Than the raw IRC command, User and Channel messages {@code ArrayList} stores
- * Instances of {@code Parser} hmm
- * 
+ * Instances of {@code Parser}
+ * <p>
+ * IRCv3 message tags ({@code @key=value;...}) in front of the line are skipped by the scanner,
+ * They are only unescaped when asked for through {@link #getTag(String)} or {@link #getTags()}.
+ * <p>
+ * When {@link Worker#setReuseParser(boolean)} is enabled, the {@code Worker} parses every line
+ * Into the same instance, which is only valid until the handlers of the line return.
+ * Use {@link #retain()} to keep a {@code Parser} after that.
+ *
  * @see User
  * @see Channel
  *
  */
-public class Parser {
+public class Parser implements Cloneable {
+	// Ways a range of the line is split into arguments
+	private static final int ARGS_NONE = 0;
+	private static final int ARGS_SPACES = 1; // Like split(" ")
+	private static final int ARGS_WHITESPACE = 2; // Like split("\\s+")
+
 	private MessageType type;
+	private Command command = Command.UNKNOWN;
+	private int numeric = -1;
 	private boolean failed = false;
-
-	// _cmdArgs is command arguments without splitting
-	private boolean hasIdent = false;
+	private boolean hasIdent = true;
 	private String raw = "";
-	private String server = "";
-	private String numberAction = "";
-	private String nick = "";
-	private String username = "";
-	private String host = "";
-	private String action = "";
-	private String msg = "";
-	private String cmd = "";
-	private List<String> actionArgs = new ArrayList<>();
-	private List<String> cmdArgs = new ArrayList<>();
+	private boolean reusable = false;
+
+	// Offsets into raw, a start of -1 means the part isn't there
+	private int tagsStart = -1, tagsEnd;
+	private int serverStart = -1, serverEnd;
+	private int numberStart = -1, numberEnd;
+	private int nickStart = -1, nickEnd;
+	private int usernameStart = -1, usernameEnd;
+	private int hostStart = -1, hostEnd;
+	private int actionStart = -1, actionEnd;
+	private int msgStart = -1, msgEnd;
+	private int cmdStart = -1, cmdEnd;
+	private int actionArgsStart, actionArgsEnd, actionArgsMode = ARGS_NONE;
+	private int cmdArgsStart, cmdArgsEnd, cmdArgsMode = ARGS_NONE;
+
+	// Built on demand
+	private String server, numberAction, nick, username, host, action, msg, cmd;
+	private List<String> actionArgs, cmdArgs;
+	private Map<String, String> tags;
+	private String nickKey; // The nick folded with nickKeyMapping
+	private CaseMapping nickKeyMapping;
 
 	/**
 	 * Parses an IRC command received from server.
-	 * 
+	 *
 	 * @param line the IRC command received from the server
 	 */
 	public Parser(String line) {
-		try {
-			raw = line;
-			hasIdent = true;
-			line = line.trim();
-			String[] lineWords = line.split(" ");
-
-			if (!line.startsWith(":")) {
-				type = MessageType.OTHER;
-				String[] splitter = line.split(" :", 2);
-				String[] splitter2 = splitter[0].split(" ");
-				action = splitter2[0];
-				actionArgs.addAll(Arrays.asList(splitter2));
-				msg = splitter[1];
-				//if (splitter2.length == 2) {
-					//_cmdArgs = splitter2[1];
-				//}
-			} else if (lineWords.length >= 3) {
-				if (lineWords[1].matches("\\d\\d\\d")) {
-					type = MessageType.NUMERIC;
-					server = lineWords[0].substring(1);
-					numberAction = lineWords[1];
-					String afterNumber = line.split(Pattern.quote(numberAction), 2)[1].trim();
-
-					if (afterNumber.contains(" :")) {
-						String[] splitter = afterNumber.split(" :", 2);
-
-						if (!splitter[0].isEmpty()) {
-						    Util.addSplitArgs(actionArgs, splitter[0]);
-						}
-						msg = splitter[1];
-						String[] splitter2 = msg.split(" ", 2);
-						cmd = splitter2[0];
-						String tempArgs = "";
-						if (splitter2.length == 2) tempArgs = splitter2[1];
-						Util.addSplitArgs(cmdArgs, tempArgs);
-
-					} else {
-					    Util.addSplitArgs(actionArgs, afterNumber);
-					}
-				} else {
-					type = MessageType.ACTION;
-					if (lineWords[0].matches(":.+!.+@.+")) {
-						String[] splitter = lineWords[0].split("[!@]");
-						nick = splitter[0].substring(1);
-						username = splitter[1];
-						host = splitter[2];
-					} else {
-						hasIdent = false;
-					}
-					action = lineWords[1];
-					String afterAction = line.split(Pattern.quote(action), 2)[1];
-					if (!afterAction.startsWith(" :")) {
-						afterAction = afterAction.substring(1);
-					}
-					if (afterAction.contains(" :")) {
-						String[] splitter = afterAction.split(" :", 2);
-						if (!splitter[0].isEmpty()) {
-						    Util.addSplitArgs(actionArgs, splitter[0]);
-						}
-						if (splitter.length == 2) {
-							msg = splitter[1];
-							String[] splitter2 = msg.split(" ", 2);
-							cmd = splitter2[0];
-							if (splitter2.length == 2) {
-								Util.addSplitArgs(cmdArgs, splitter2[1]);
-							}
-						}
-					} else {
-					    Util.addSplitArgs(cmdArgs, afterAction);
-					}
-				}
-			} else {
+		parse(line);
+	}
+
+	private Parser() {
+		reusable = true;
+	}
+
+	/**
+	 * Creates a {@code Parser} to be reused for every line through {@link #reset(String)}.
+	 */
+	static Parser reusable() {
+		return new Parser();
+	}
+
+	/**
+	 * Parses a new line into this instance, dropping everything of the previous line.
+	 *
+	 * @param line the IRC command received from the server
+	 * @return This instance
+	 */
+	Parser reset(String line) {
+		type = null;
+		command = Command.UNKNOWN;
+		numeric = -1;
+		failed = false;
+		hasIdent = true;
+		tagsStart = serverStart = numberStart = nickStart = usernameStart = hostStart = -1;
+		actionStart = msgStart = cmdStart = -1;
+		actionArgsMode = cmdArgsMode = ARGS_NONE;
+		server = numberAction = nick = username = host = action = msg = cmd = null;
+		actionArgs = cmdArgs = null;
+		tags = null;
+		nickKey = null;
+		parse(line);
+		return this;
+	}
+
+	private void parse(String line) {
+		raw = line;
+		int start = 0, end = line.length();
+		while (start < end && line.charAt(start) <= ' ') start++;
+		while (end > start && line.charAt(end - 1) <= ' ') end--;
+
+		if (start < end && line.charAt(start) == '@') {
+			tagsStart = start + 1;
+			tagsEnd = line.indexOf(' ', start);
+			if (tagsEnd < 0 || tagsEnd >= end) {
+				// Only tags, no command
+				tagsEnd = end;
 				type = MessageType.UNKNOWN;
 				failed = true;
+				return;
 			}
-			if (msg.equals("") && actionArgs.size() == 1) {
-				msg = actionArgs.get(0);
-			}
-		} catch (Exception e) {
+			start = tagsEnd;
+			while (line.charAt(start) <= ' ') start++;
+		}
+		if (start == end || line.charAt(start) != ':') {
+			parseOther(start, end);
+			return;
+		}
+		int firstSpace = line.indexOf(' ', start);
+		int secondSpace = firstSpace < 0 || firstSpace >= end ? -1 : line.indexOf(' ', firstSpace + 1);
+		if (secondSpace < 0 || secondSpace >= end) {
+			type = MessageType.UNKNOWN;
+			failed = true;
+		} else if (secondSpace - firstSpace == 4 && isDigit(line.charAt(firstSpace + 1))
+				&& isDigit(line.charAt(firstSpace + 2)) && isDigit(line.charAt(firstSpace + 3))) {
+			parseNumeric(start, end, firstSpace, secondSpace);
+		} else {
+			parseAction(start, end, firstSpace, secondSpace);
+		}
+	}
+
+	/**
+	 * Lines which don't start with a prefix, like PING.
+	 * The action itself is the first of the action arguments
+	 */
+	private void parseOther(int start, int end) {
+		type = MessageType.OTHER;
+		int trailing = indexOfTrailing(start, end);
+		int argsEnd = trailing < 0 ? end : trailing;
+		int actionSpace = raw.indexOf(' ', start);
+		actionStart = start;
+		actionEnd = actionSpace < 0 || actionSpace > argsEnd ? argsEnd : actionSpace;
+		command = Command.lookup(raw, actionStart, actionEnd);
+		setActionArgs(start, argsEnd, ARGS_SPACES);
+		if (trailing < 0) {
+			// No message, nothing more to be parsed
 			type = MessageType.UNKNOWN;
-			e.printStackTrace();
 			failed = true;
+		} else {
+			msgStart = trailing + 2;
+			msgEnd = end;
 		}
 	}
 
+	private void parseNumeric(int start, int end, int firstSpace, int secondSpace) {
+		type = MessageType.NUMERIC;
+		serverStart = start + 1;
+		serverEnd = firstSpace;
+		numberStart = firstSpace + 1;
+		numberEnd = secondSpace;
+		command = Command.NUMERIC;
+		numeric = digits(numberStart, 3);
+		int afterNumber = secondSpace;
+		while (raw.charAt(afterNumber) <= ' ') afterNumber++;
+
+		int trailing = indexOfTrailing(afterNumber, end);
+		if (trailing < 0) {
+			setActionArgs(afterNumber, end, ARGS_WHITESPACE);
+		} else {
+			setActionArgs(afterNumber, trailing, ARGS_WHITESPACE);
+			parseMsg(trailing + 2, end, true);
+		}
+	}
+
+	private void parseAction(int start, int end, int firstSpace, int secondSpace) {
+		type = MessageType.ACTION;
+		parseIdent(start, firstSpace);
+		actionStart = firstSpace + 1;
+		actionEnd = secondSpace;
+		command = Command.lookup(raw, actionStart, actionEnd);
+
+		int afterAction = secondSpace;
+		if (afterAction + 1 >= end || raw.charAt(afterAction + 1) != ':')
+			afterAction++;
+		int trailing = indexOfTrailing(afterAction, end);
+		if (trailing < 0) {
+			setCmdArgs(afterAction, end);
+		} else {
+			if (trailing > afterAction)
+				setActionArgs(afterAction, trailing, ARGS_WHITESPACE);
+			parseMsg(trailing + 2, end, false);
+		}
+	}
+
+	/**
+	 * Splits a {@code :nick!username@host} prefix, any '!' or '@' after the nick
+	 * Separates the parts, so the prefix must contain a '!' and later an '@'.
+	 */
+	private void parseIdent(int start, int end) {
+		int bang = -1;
+		for (int i = start + 2; i < end; i++) {
+			if (raw.charAt(i) == '!') {
+				bang = i;
+				break;
+			}
+		}
+		int at = -1;
+		for (int i = end - 2; bang >= 0 && i >= bang + 2; i--) {
+			if (raw.charAt(i) == '@') {
+				at = i;
+				break;
+			}
+		}
+		if (at < 0) {
+			hasIdent = false;
+			return;
+		}
+		int first = -1, second = -1, third = -1;
+		for (int i = start + 1; i < end; i++) {
+			char c = raw.charAt(i);
+			if (c != '!' && c != '@') continue;
+			if (first < 0) {
+				first = i;
+			} else if (second < 0) {
+				second = i;
+			} else {
+				third = i;
+				break;
+			}
+		}
+		nickStart = start + 1;
+		nickEnd = first;
+		usernameStart = first + 1;
+		usernameEnd = second;
+		hostStart = second + 1;
+		hostEnd = third < 0 ? end : third;
+	}
+
+	/**
+	 * The message is the part after ' :', its first word is the cmd
+	 * And the rest are the cmd arguments.
+	 */
+	private void parseMsg(int start, int end, boolean alwaysCmdArgs) {
+		msgStart = start;
+		msgEnd = end;
+		int space = raw.indexOf(' ', start);
+		if (space < 0 || space >= end) {
+			cmdStart = start;
+			cmdEnd = end;
+			if (alwaysCmdArgs) setCmdArgs(end, end);
+		} else {
+			cmdStart = start;
+			cmdEnd = space;
+			setCmdArgs(space + 1, end);
+		}
+	}
+
+	private void setActionArgs(int start, int end, int mode) {
+		actionArgsStart = start;
+		actionArgsEnd = end;
+		actionArgsMode = mode;
+	}
+
+	private void setCmdArgs(int start, int end) {
+		cmdArgsStart = start;
+		cmdArgsEnd = end;
+		cmdArgsMode = ARGS_WHITESPACE;
+	}
+
+	private int indexOfTrailing(int start, int end) {
+		for (int i = start; i < end - 1; i++) {
+			if (raw.charAt(i) == ' ' && raw.charAt(i + 1) == ':') return i;
+		}
+		return -1;
+	}
+
+	private String part(int start, int end) {
+		return start < 0 ? "" : raw.substring(start, end);
+	}
+
+	private List<String> split(int start, int end, int mode) {
+		List<String> list = new ArrayList<>();
+		if (mode == ARGS_NONE)
+			return list;
+		if (start == end) {
+			list.add("");
+			return list;
+		}
+		int index = start;
+		int i = start;
+		while (i < end) {
+			char c = raw.charAt(i);
+			if (mode == ARGS_SPACES ? c == ' ' : isWhitespace(c)) {
+				list.add(raw.substring(index, i));
+				i++;
+				if (mode == ARGS_WHITESPACE)
+					while (i < end && isWhitespace(raw.charAt(i))) i++;
+				index = i;
+			} else {
+				i++;
+			}
+		}
+		list.add(raw.substring(index, end));
+		int size = list.size();
+		while (size > 0 && list.get(size - 1).isEmpty()) list.remove(--size);
+		return list;
+	}
+
+	/**
+	 * Finds the value of the tag {@code key} in the tags section.
+	 * When a key is repeated, the last one wins
+	 *
+	 * @return The index after the '=' of the value, the index after the key if it has no value,
+	 * Or -1 if there's no such tag
+	 */
+	private int indexOfTagValue(String key) {
+		int found = -1;
+		int i = tagsStart;
+		while (i < tagsEnd) {
+			int tagEnd = raw.indexOf(';', i);
+			if (tagEnd < 0 || tagEnd > tagsEnd) tagEnd = tagsEnd;
+			int keyEnd = i + key.length();
+			if (keyEnd <= tagEnd && raw.regionMatches(i, key, 0, key.length())
+					&& (keyEnd == tagEnd || raw.charAt(keyEnd) == '='))
+				found = keyEnd == tagEnd ? keyEnd : keyEnd + 1;
+			i = tagEnd + 1;
+		}
+		return found;
+	}
+
+	private int tagValueEnd(int valueStart) {
+		int end = raw.indexOf(';', valueStart);
+		return end < 0 || end > tagsEnd ? tagsEnd : end;
+	}
+
+	/**
+	 * Unescapes a tag value, as in the IRCv3 message-tags specification.
+	 */
+	private String unescapeTag(int start, int end) {
+		int slash = raw.indexOf('\\', start);
+		if (slash < 0 || slash >= end) return raw.substring(start, end);
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = raw.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (++i == end) break; // A trailing backslash is dropped
+			c = raw.charAt(i);
+			switch (c) {
+				case ':':
+					sb.append(';');
+					break;
+				case 's':
+					sb.append(' ');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a server-time timestamp, {@code YYYY-MM-DDThh:mm:ss[.sss]Z}, without creating any objects.
+	 *
+	 * @return Milliseconds since the epoch, or -1 if the timestamp is invalid
+	 */
+	private long parseTime(int start, int end) {
+		if (end - start < 20 || raw.charAt(end - 1) != 'Z'
+				|| raw.charAt(start + 4) != '-' || raw.charAt(start + 7) != '-' || raw.charAt(start + 10) != 'T'
+				|| raw.charAt(start + 13) != ':' || raw.charAt(start + 16) != ':')
+			return -1;
+		int year = digits(start, 4), month = digits(start + 5, 2), day = digits(start + 8, 2);
+		int hour = digits(start + 11, 2), minute = digits(start + 14, 2), second = digits(start + 17, 2);
+		int millis = 0;
+		if (end - start > 20) {
+			if (raw.charAt(start + 19) != '.') return -1;
+			int fraction = start + 20;
+			for (int i = 0; i < 3; i++) {
+				millis *= 10;
+				if (fraction + i < end - 1) {
+					char c = raw.charAt(fraction + i);
+					if (!isDigit(c)) return -1;
+					millis += c - '0';
+				}
+			}
+		}
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+			return -1;
+		// Days since the epoch of a proleptic Gregorian date, years counted from March
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+	}
+
+	/**
+	 * @return The decimal value of {@code count} digits at {@code start}, or -1 if not all of them are digits
+	 */
+	private int digits(int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = raw.charAt(i);
+			if (!isDigit(c)) return -1;
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+    /**
+     * Creates a copy of this {@code Parser}.
+     * The copy shares the raw line with this instance, nothing is parsed again
+     *
+     * @return A new {@code Parser} of the same line, which is never reused
+     */
+    public Parser copy() {
+        try {
+            Parser copy = (Parser) super.clone();
+            copy.reusable = false;
+            // The lists and the map are mutable, they are rebuilt on demand
+            copy.actionArgs = copy.cmdArgs = null;
+            copy.tags = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Gets a {@code Parser} which is safe to keep after the handlers of the line return.
+     *
+     * @return This instance, or a copy if this instance is reused by the {@code Worker}
+     * @see Worker#setReuseParser(boolean)
+     */
+    public Parser retain() {
+        return reusable ? copy() : this;
+    }
+
+    /**
+     * Checks if this instance is reused by the {@code Worker} for the next lines.
+     *
+     * @return true if this instance is only valid while its line is handled
+     */
+    public boolean isReusable() {
+        return reusable;
+    }
+
     public MessageType getType() {
         return type;
     }
 
+    /**
+     * Gets the command of the line, looked up while parsing.
+     *
+     * @return The command, NUMERIC for numeric replies, or UNKNOWN
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Gets the numeric reply as a number.
+     *
+     * @return The numeric, like 1 for 001, or -1 if this isn't a numeric reply
+     */
+    public int getNumeric() {
+        return numeric;
+    }
+
     public boolean isFailed() {
         return failed;
     }
@@ -142,42 +508,144 @@ public class Parser {
     }
 
     public String getServer() {
+        if (server == null) server = part(serverStart, serverEnd);
         return server;
     }
 
     public String getNumberAction() {
+        if (numberAction == null) numberAction = part(numberStart, numberEnd);
         return numberAction;
     }
 
     public String getNick() {
+        if (nick == null) nick = part(nickStart, nickEnd);
         return nick;
     }
 
+    /**
+     * Gets the nick casefolded, the key of its {@code User} in channels.
+     * Folded once per line, unless the mapping changes
+     *
+     * @param mapping The server's case mapping
+     * @return The folded nick
+     */
+    String nickKey(CaseMapping mapping) {
+        if (nickKey == null || nickKeyMapping != mapping) {
+            nickKey = mapping.fold(getNick());
+            nickKeyMapping = mapping;
+        }
+        return nickKey;
+    }
+
     public String getUsername() {
+        if (username == null) username = part(usernameStart, usernameEnd);
         return username;
     }
 
     public String getHost() {
+        if (host == null) host = part(hostStart, hostEnd);
         return host;
     }
 
     public String getAction() {
+        if (action == null) action = part(actionStart, actionEnd);
         return action;
     }
 
+    /**
+     * Gets everything after the action, as received.
+     *
+     * @return The raw action parameters, empty if there's no action
+     */
+    String afterAction() {
+        return actionStart < 0 ? "" : raw.substring(actionEnd);
+    }
+
     public String getMsg() {
+        if (msg == null) {
+            // Without a message, a single action argument is used as the message
+            if ((msgStart < 0 || msgStart == msgEnd) && !failed && getActionArgs().size() == 1)
+                msg = getActionArgs().get(0);
+            else
+                msg = part(msgStart, msgEnd);
+        }
         return msg;
     }
 
     public String getCmd() {
+        if (cmd == null) cmd = part(cmdStart, cmdEnd);
         return cmd;
     }
 
     public List<String> getActionArgs() {
+        if (actionArgs == null) actionArgs = split(actionArgsStart, actionArgsEnd, actionArgsMode);
         return actionArgs;
     }
 
     public List<String> getCmdArgs() {
+        if (cmdArgs == null) cmdArgs = split(cmdArgsStart, cmdArgsEnd, cmdArgsMode);
         return cmdArgs;
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks if the line has IRCv3 message tags.
+     *
+     * @return true if the line starts with tags, otherwise false
+     */
+    public boolean hasTags() {
+        return tagsStart >= 0;
+    }
+
+    /**
+     * Gets the unescaped value of an IRCv3 message tag.
+     * Only the requested tag is unescaped, the other tags are left untouched
+     *
+     * @param key The tag key, including any vendor or client prefix, like {@code +example.com/foo}
+     * @return The tag value, an empty String if the tag has no value, or null if there's no such tag
+     */
+    public String getTag(String key) {
+        if (tags != null) return tags.get(key);
+        if (tagsStart < 0) return null;
+        int valueStart = indexOfTagValue(key);
+        if (valueStart < 0) return null;
+        return unescapeTag(valueStart, tagValueEnd(valueStart));
+    }
+
+    /**
+     * Gets all the IRCv3 message tags.
+     * The tags are unescaped and decoded into the map on the first call
+     *
+     * @return Map, tag keys as keys, and unescaped tag values as values, empty if the line has no tags
+     */
+    public Map<String, String> getTags() {
+        if (tags == null) {
+            tags = new HashMap<>();
+            int i = tagsStart;
+            while (i >= 0 && i < tagsEnd) {
+                int tagEnd = tagValueEnd(i);
+                int equals = raw.indexOf('=', i);
+                if (tagEnd > i) {
+                    if (equals < 0 || equals > tagEnd)
+                        tags.put(raw.substring(i, tagEnd), "");
+                    else
+                        tags.put(raw.substring(i, equals), unescapeTag(equals + 1, tagEnd));
+                }
+                i = tagEnd + 1;
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Gets the IRCv3 server-time of the line, from the {@code time} tag.
+     * The timestamp is parsed straight from the line, without building the tags map
+     *
+     * @return Milliseconds since the epoch, or -1 if the line has no valid {@code time} tag
+     */
+    public long getServerTime() {
+        if (tagsStart < 0) return -1;
+        int valueStart = indexOfTagValue("time");
+        if (valueStart < 0) return -1;
+        return parseTime(valueStart, tagValueEnd(valueStart));
+    }
+}
@@ -0,0 +1,395 @@
+package tk.microdroid.blueirc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map, changed by building new maps which share most of their nodes with the old one.
+ * The entries are in a trie of 32-way nodes indexed by 5 bits of the hash at a time, adding or removing
+ * An entry copies the few nodes on its path, so it takes a small constant time whatever the size.
+ * <p>
+ * The state read by other threads (channels, users, members) is kept in these maps, behind volatile fields:
+ * A reader gets a map which never changes, while the {@code Worker} thread replaces it as it goes.
+ * Values can't be null.
+ */
+final class PersistentMap<K, V> extends AbstractMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+    private Set<Entry<K, V>> entrySet;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root == null || key == null ? null : (V) root.find(0, hash(key), key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets a map with an entry added or replaced.
+     *
+     * @return The new map, or this one if it already has the entry
+     */
+    PersistentMap<K, V> plus(K key, V value) {
+        if (value == null) throw new NullPointerException("value");
+        boolean[] added = new boolean[1];
+        Node node = (root == null ? BitmapNode.EMPTY : root).put(0, hash(key), key, value, added);
+        return node == root ? this : new PersistentMap<>(node, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Gets a map without an entry.
+     *
+     * @return The new map, or this one if it has no such entry
+     */
+    PersistentMap<K, V> minus(Object key) {
+        if (root == null || key == null) return this;
+        Node node = root.remove(0, hash(key), key);
+        return node == root ? this : node == null ? empty() : new PersistentMap<>(node, size - 1);
+    }
+
+    /**
+     * Gets a map with the entries of another one added or replaced.
+     * When they're more than the entries of this map, the trie is built at once instead of added to entry by entry
+     *
+     * @return The new map
+     */
+    PersistentMap<K, V> plusAll(Map<? extends K, ? extends V> entries) {
+        if (entries.size() <= size) {
+            PersistentMap<K, V> map = this;
+            for (Entry<? extends K, ? extends V> entry : entries.entrySet())
+                map = map.plus(entry.getKey(), entry.getValue());
+            return map;
+        }
+        int count = size + entries.size();
+        Object[] keys = new Object[count];
+        Object[] values = new Object[count];
+        int n = 0;
+        for (Entry<K, V> entry : entrySet()) {
+            if (entries.containsKey(entry.getKey())) continue;
+            keys[n] = entry.getKey();
+            values[n++] = entry.getValue();
+        }
+        for (Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            if (entry.getValue() == null) throw new NullPointerException("value");
+            keys[n] = entry.getKey();
+            values[n++] = entry.getValue();
+        }
+        if (n == 0) return empty();
+        int[] hashes = new int[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(keys[i]);
+            order[i] = i;
+        }
+        return new PersistentMap<>(build(0, keys, values, hashes, order, 0, n, new int[n]), n);
+    }
+
+    /**
+     * Builds the node of entries order[from..to), which share their hash bits below shift.
+     */
+    private static Node build(int shift, Object[] keys, Object[] values, int[] hashes, int[] order, int from, int to, int[] scratch) {
+        int hash = hashes[order[from]];
+        boolean collide = true;
+        for (int i = from + 1; i < to && collide; i++)
+            collide = hashes[order[i]] == hash;
+        if (collide) {
+            Object[] array = new Object[2 * (to - from)];
+            for (int i = from; i < to; i++) {
+                array[2 * (i - from)] = keys[order[i]];
+                array[2 * (i - from) + 1] = values[order[i]];
+            }
+            return new CollisionNode(hash, array);
+        }
+        int[] counts = new int[33];
+        for (int i = from; i < to; i++)
+            counts[((hashes[order[i]] >>> shift) & 31) + 1]++;
+        int bitmap = 0;
+        for (int b = 0; b < 32; b++) {
+            if (counts[b + 1] > 0) bitmap |= 1 << b;
+            counts[b + 1] += counts[b];
+        }
+        int[] starts = counts.clone();
+        for (int i = from; i < to; i++) // Sorting by the bits of this level
+            scratch[from + counts[(hashes[order[i]] >>> shift) & 31]++] = order[i];
+        System.arraycopy(scratch, from, order, from, to - from);
+        Object[] array = new Object[2 * Integer.bitCount(bitmap)];
+        int slot = 0;
+        for (int b = 0; b < 32; b++) {
+            int start = from + starts[b];
+            int end = from + starts[b + 1];
+            if (start == end) continue;
+            if (end - start == 1) {
+                array[slot] = keys[order[start]];
+                array[slot + 1] = values[order[start]];
+            } else {
+                array[slot + 1] = build(shift + 5, keys, values, hashes, order, start, end, scratch);
+            }
+            slot += 2;
+        }
+        return new BitmapNode(bitmap, array);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * A node of the trie, its array holds pairs of keys and values, or of null and a child node.
+     */
+    private interface Node {
+        Object find(int shift, int hash, Object key);
+
+        Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * @return The node without the key, null if it's then empty
+         */
+        Node remove(int shift, int hash, Object key);
+
+        Object[] array();
+    }
+
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap; // The 5 bit indices present in the array
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, grown);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(shift + 5, hash, key, value, added);
+                return child == v ? this : with(i, null, child);
+            }
+            if (key.equals(k))
+                return value == v ? this : with(i, k, value);
+            added[0] = true;
+            return with(i, null, split(shift + 5, k, v, hash, key, value));
+        }
+
+        private static Node split(int shift, Object k, Object v, int hash, Object key, Object value) {
+            int h = hash(k);
+            if (h == hash)
+                return new CollisionNode(hash, new Object[]{k, v, key, value});
+            boolean[] added = new boolean[1];
+            return EMPTY.put(shift, h, k, v, added).put(shift, hash, key, value, added);
+        }
+
+        private BitmapNode with(int i, Object key, Object value) {
+            Object[] copy = array.clone();
+            copy[i] = key;
+            copy[i + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node removed = child.remove(shift + 5, hash, key);
+                if (removed == child) return this;
+                if (removed != null) return with(i, null, removed);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, shrunk);
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+    }
+
+    /**
+     * The keys with the same hash.
+     */
+    private static final class CollisionNode implements Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i])) return i;
+            return -1;
+        }
+
+        @Override
+        public Object find(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) { // Pushed down under a node which tells them apart
+                Node node = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[]{null, this});
+                return node.put(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, grown);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+
+        @Override
+        public Object[] array() {
+            return array;
+        }
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<Integer> indices = new ArrayDeque<>();
+        private Object[] array;
+        private int i;
+        private Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) array = root.array();
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (array != null) {
+                if (i == array.length) {
+                    array = arrays.poll();
+                    i = array == null ? 0 : indices.pop();
+                    continue;
+                }
+                Object k = array[i];
+                Object v = array[i + 1];
+                i += 2;
+                if (k != null) {
+                    next = new SimpleImmutableEntry<>((K) k, (V) v);
+                    return;
+                }
+                arrays.push(array);
+                indices.push(i);
+                array = ((Node) v).array();
+                i = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+
+/**
+ * The library's own handling of IRC commands.
+ * These handlers keep the state of a {@code Worker} (channels, users, MOTD, lag,
+ * Server capabilities..) updated, and fire the {@code Event}s. They are registered
+ * To every {@code Worker}'s dispatcher before any user handler.
+ *
+ */
+final class ProtocolHandlers {
+
+    private ProtocolHandlers() {
+    }
+
+    static void register(CommandDispatcher dispatcher) {
+        dispatcher.add("PING", ProtocolHandlers::ping);
+        dispatcher.add("PONG", ProtocolHandlers::pong);
+        dispatcher.add("PRIVMSG", ProtocolHandlers::privmsg);
+        dispatcher.add("CAP", ProtocolHandlers::cap);
+        dispatcher.add("JOIN", ProtocolHandlers::join);
+        dispatcher.add("PART", ProtocolHandlers::part);
+        dispatcher.add("KICK", ProtocolHandlers::kick);
+        dispatcher.add("QUIT", ProtocolHandlers::quit);
+        dispatcher.add("NICK", ProtocolHandlers::nick);
+        dispatcher.add("TOPIC", ProtocolHandlers::topic);
+        dispatcher.add("CHGHOST", ProtocolHandlers::chghost);
+        dispatcher.add(1, ProtocolHandlers::welcome);
+        dispatcher.add(5, ProtocolHandlers::isupport);
+        dispatcher.add(332, ProtocolHandlers::topicReply);
+        dispatcher.add(353, ProtocolHandlers::names);
+        dispatcher.add(366, ProtocolHandlers::endOfNames);
+        dispatcher.add(375, ProtocolHandlers::motdStart);
+        dispatcher.add(372, ProtocolHandlers::motd);
+        dispatcher.add(376, ProtocolHandlers::motdEnd);
+        dispatcher.add(421, ProtocolHandlers::unknownCommand);
+        dispatcher.add(433, ProtocolHandlers::nickInUse);
+    }
+
+    /**
+     * Gets the first parameter of a command, whether it's sent as "JOIN #chan",
+     * "JOIN :#chan", or with more parameters like extended-join's "JOIN #chan account :Real name".
+     */
+    static String firstParam(Parser p) {
+        if (!p.getActionArgs().isEmpty()) return p.getActionArgs().get(0);
+        if (!p.getCmdArgs().isEmpty()) return p.getCmdArgs().get(0);
+        return p.getMsg();
+    }
+
+    private static void ping(Worker worker, Parser p) {
+        worker.send("PONG" + p.afterAction());
+    }
+
+    private static void pong(Worker worker, Parser p) {
+        if (p.getMsg().equals("blueirc." + worker.lagPingId)) { // Used in lag measurement
+            worker.finishedLagMeasurement = true;
+            worker.lag = System.currentTimeMillis() - worker.lagStart;
+            worker.fire(Event.LAG_MEASURED, worker.lag);
+        }
+    }
+
+    private static void privmsg(Worker worker, Parser p) {
+        if (p.getActionArgs().get(0).startsWith("#")) { // Add new message to chan and user
+            Channel chan = worker.channel(p.getActionArgs().get(0));
+            if (chan == null) return;
+            User user = chan.getUserByKey(p.nickKey(worker.caseMapping)); // Null when not seen in NAMES
+            if (worker.historyStorage == HistoryStorage.PARSERS
+                    && (chan.getMessages().getCapacity() > 0 || user != null && user.getMessages().getCapacity() > 0))
+                p = p.retain(); // One copy shared by both, when the parser is reused
+            if (user != null)
+                user.addMessage(p);
+            chan.addMessage(p);
+            MessageLog log = worker.messageLog;
+            if (log != null) {
+                try {
+                    log.append(worker.caseMapping.fold(chan.getName()), p.getRaw());
+                } catch (IOException e) {
+                    worker.fire(Event.UNKNOWN_ERROR, e);
+                }
+            }
+        }
+    }
+
+    private static void cap(Worker worker, Parser p) {
+        worker.ircv3Support = true;
+        String capType = p.getActionArgs().get(1);
+        if (capType.equals("LS")) {
+            worker.ircv3Capabilities = p.getMsg().split(" ");
+            String[] reqCpbs = {"multi-prefix"}; // Requested capabilities
+            for (String reqCpb : reqCpbs)
+                if (worker.hasCapability(reqCpb))
+                    worker.send("CAP REQ " + reqCpb);
+            worker.send("CAP END");
+            worker.register(worker.serverInfo.nick);
+        } else if (capType.equals("NAK"))
+            worker.fire(
+                    Event.IRCV3_CAPABILITY_REJECTED, p.getMsg());
+        else if (capType.equals("ACK"))
+            worker.fire(
+                    Event.IRCV3_CAPABILITY_ACCEPTED, p.getAction());
+    }
+
+    private static void join(Worker worker, Parser p) { // Create new Channel
+        String name = firstParam(p);
+        if (p.isHasIdent() && worker.isCurrentNick(p.getNick())) // Our hostmask, as others see it
+            worker.hostmask = p.getNick() + "!" + p.getUsername() + "@" + p.getHost();
+        String key = worker.caseMapping.fold(name);
+        Channel chan = worker.chans.get(key);
+        if (!worker.isCurrentNick(p.getNick())) {
+            if (chan != null)
+                chan.addUser(p.getNick(), p.nickKey(worker.caseMapping), "");
+        } else if (chan == null) {
+            worker.chans = worker.chans.plus(key, new Channel(worker, name));
+        } else {
+            chan.rejoin();
+        }
+    }
+
+    private static void part(Worker worker, Parser p) { // Remove channel (When not preserving them) or user in channel
+        String name = firstParam(p);
+        String key = worker.caseMapping.fold(name);
+        Channel chan = worker.chans.get(key);
+        if (worker.isCurrentNick(p.getNick())) {
+            worker.fire(Event.LEFT_CHANNEL, name);
+            if (chan != null) chan.leave();
+            if (!worker.preserveChannels && chan != null) {
+                worker.chans = worker.chans.minus(key);
+                chan.getMessages().release();
+            }
+        } else if (chan != null) {
+            chan.removeUserByKey(p.nickKey(worker.caseMapping));
+        }
+    }
+
+    private static void kick(Worker worker, Parser p) { // Remove channel (If not preserving them) or user in channel
+        String key = worker.caseMapping.fold(p.getActionArgs().get(0));
+        Channel chan = worker.chans.get(key);
+        if (worker.isCurrentNick(p.getActionArgs().get(1))) {
+            worker.fire(Event.KICKED, p);
+            if (chan != null) chan.leave();
+            if (!worker.preserveChannels && chan != null) {
+                worker.chans = worker.chans.minus(key);
+                chan.getMessages().release();
+            }
+        } else if (chan != null) {
+            chan.removeUser(p.getActionArgs().get(1));
+        }
+    }
+
+    private static void quit(Worker worker, Parser p) { // Remove user from the channels it's in
+        String key = p.nickKey(worker.caseMapping);
+        User user = worker.users.get(key);
+        if (user != null) {
+            for (Channel chan : user.channels.keySet()) { // A snapshot, while the user leaves them
+                chan.removeUserByKey(key);
+            }
+        }
+        for (Channel chan : worker.listingNames) // Which may have listed the user, not published yet
+            chan.removeUserByKey(key);
+    }
+
+    private static void nick(Worker worker, Parser p) { // Rename the user in the channels it's in
+        String newNick = firstParam(p);
+        if (worker.isCurrentNick(p.getNick())) {
+            worker.nick = newNick;
+            String mask = worker.hostmask;
+            if (mask != null)
+                worker.hostmask = newNick + mask.substring(mask.indexOf('!'));
+        }
+        String oldKey = p.nickKey(worker.caseMapping);
+        String newKey = worker.caseMapping.fold(newNick);
+        User user = worker.users.get(oldKey);
+        if (user != null) {
+            user.setNick(newNick);
+            worker.users = worker.users.minus(oldKey).plus(newKey, user);
+            for (Channel chan : user.channels.keySet()) {
+                chan.renameUser(oldKey, newKey, newNick);
+            }
+        }
+        for (Channel chan : worker.listingNames) // Which may have listed the user, not published yet
+            chan.renameUser(oldKey, newKey, newNick);
+    }
+
+    private static void chghost(Worker worker, Parser p) { // Our username or host changed
+        if (worker.isCurrentNick(p.getNick()) && p.getActionArgs().size() >= 2)
+            worker.hostmask = p.getNick() + "!" + p.getActionArgs().get(0) + "@" + p.getActionArgs().get(1);
+    }
+
+    private static void topic(Worker worker, Parser p) { // Update topic upon change
+        Channel chan = worker.channel(p.getActionArgs().get(0));
+        if (chan != null)
+            chan.setTopic(p.getMsg());
+    }
+
+    private static void topicReply(Worker worker, Parser p) { // The topic sent upon join
+        Channel chan = worker.channel(p.getActionArgs().get(1));
+        if (chan != null)
+            chan.setTopic(p.getMsg());
+    }
+
+    private static void welcome(Worker worker, Parser p) { // Welcome to the server
+        worker.fire(Event.CONNECTED, p.getServer());
+        worker.onRegistered();
+    }
+
+    private static void unknownCommand(Worker worker, Parser p) { // Unknown command CAP (i.e. the server doesn't support IRCv3)
+        if (p.getActionArgs().get(1).equals("CAP"))
+            worker.register(worker.serverInfo.nick);
+    }
+
+    private static void names(Worker worker, Parser p) { // NAMES response
+        Channel chan = worker.channel(p.getActionArgs().get(2));
+        if (chan != null)
+            chan.addNames(p.getMsg());
+    }
+
+    private static void isupport(Worker worker, Parser p) { // Server capabilities, sent upon connection
+        for (String spec : p.getActionArgs()) {
+            String[] kvSplitter = spec.split("=", 2);
+            String key = kvSplitter[0].toUpperCase();
+            String value = kvSplitter.length == 2 ? kvSplitter[1]
+                    : "";
+            switch (key) {
+                case "PREFIX":
+                    worker.prefixModes = Worker.prefixModes(value);
+                    break;
+                case "CASEMAPPING":
+                    worker.setCaseMapping(CaseMapping.of(value));
+                    break;
+                case "NETWORK":
+                    worker.serverName = value;
+                    worker.fire(Event.GOT_SERVER_NAME,
+                            value);
+            }
+        }
+    }
+
+    private static void motdStart(Worker worker, Parser p) { // Start of MOTD
+        worker.motd = new StringBuilder();
+    }
+
+    private static void motd(Worker worker, Parser p) { // MOTD message
+        worker.motd.append("\n").append(p.getMsg());
+    }
+
+    private static void motdEnd(Worker worker, Parser p) { // End of MOTD
+        worker.motd.trimToSize();
+        worker.fire(Event.GOT_MOTD, worker.motd.toString()
+                .substring(1));
+    }
+
+    private static void endOfNames(Worker worker, Parser p) { // Channel joined
+        Channel chan = worker.channel(p.getActionArgs().get(1));
+        if (chan != null)
+            chan.endOfNames();
+        worker.fire(Event.JOINED_CHANNEL, p.getActionArgs().get(1));
+    }
+
+    private static void nickInUse(Worker worker, Parser p) { // Nickname in use
+        if (!worker.usingSecondNick) {
+            worker.fire(Event.FIRST_NICK_IN_USE,
+                    worker.serverInfo.nick);
+            worker.usingSecondNick = true;
+            worker.register(worker.serverInfo.secondNick);
+        } else {
+            worker.fire(Event.ALL_NICKS_IN_USE,
+                    worker.serverInfo.secondNick);
+            worker.running = false;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package tk.microdroid.blueirc;
+
+/**
+ * Receives every line as raw bytes, before it's decoded and parsed.
+ * Useful for relaying or logging lines as they were received, without decoding them.
+ * The bytes are a slice of the {@code Worker}'s read buffer, they are only valid
+ * Until {@link #onRawLine(Worker, byte[], int, int)} returns, copy them to keep them.
+ *
+ * @see Worker#setRawLineHandler(RawLineHandler)
+ */
+public interface RawLineHandler {
+
+    /**
+     * Handles a received line.
+     *
+     * @param worker The {@code Worker} that received the line
+     * @param bytes The buffer containing the line
+     * @param offset The index of the first byte of the line
+     * @param length The length of the line, without the line ending
+     * @return true to decode and parse the line as usual, false to drop it. Dropped lines are
+     * Not handled at all, not even PINGs
+     */
+    boolean onRawLine(Worker worker, byte[] bytes, int offset, int length);
+}
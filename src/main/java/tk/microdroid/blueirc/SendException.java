@@ -0,0 +1,52 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+
+/**
+ * Thrown, through the future returned by {@link Worker#sendAsync(String)}, when a message isn't sent.
+ */
+public class SendException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /**
+         * The queue of the message's target was full.
+         */
+        OVERFLOW,
+        /**
+         * The connection was lost or closed before the message was written.
+         */
+        DISCONNECTED,
+        /**
+         * Writing to the socket failed, the message may have been partly sent.
+         */
+        WRITE_FAILED
+    }
+
+    private final Reason reason;
+    private final Message msg;
+
+    SendException(Reason reason, Message msg, Throwable cause) {
+        super(reason + ": " + msg.getMsg(), cause);
+        this.reason = reason;
+        this.msg = msg;
+    }
+
+    /**
+     * Gets why the message wasn't sent.
+     *
+     * @return The reason
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Gets the message which wasn't sent.
+     *
+     * @return The message
+     */
+    public Message getUnsentMessage() {
+        return msg;
+    }
+}
@@ -0,0 +1,65 @@
+package tk.microdroid.blueirc;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads of {@code Worker}s when no {@code ThreadFactory} or {@code Executor} is set.
+ * These are platform threads, unless virtual threads are enabled with the system property
+ * {@code blueirc.virtualThreads=true} on Java 21 and later, so thousands of {@code Worker}s can block on
+ * Their sockets without a platform thread each. Virtual threads are always daemon threads, they don't
+ * Keep the JVM running while the {@code Worker}s are connected.
+ * <p>
+ * Virtual threads are looked up by reflection, the library is still built for Java 8.
+ */
+final class Threads {
+    private static final Method OF_VIRTUAL; // Thread.ofVirtual()
+    private static final Method UNSTARTED; // Thread.Builder.unstarted(Runnable)
+    private static final Method NAME; // Thread.Builder.name(String)
+
+    static {
+        Method ofVirtual = null, unstarted = null, name = null;
+        if ("true".equals(System.getProperty("blueirc.virtualThreads"))) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                name = builder.getMethod("name", String.class);
+            } catch (ReflectiveOperationException e) {
+                ofVirtual = null; // Before Java 21
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+        NAME = name;
+    }
+
+    private Threads() {
+    }
+
+    /**
+     * Checks if threads are virtual.
+     *
+     * @return true when running on Java 21 or later, and virtual threads are enabled
+     */
+    static boolean virtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an unstarted thread.
+     *
+     * @param task The task the thread runs
+     * @param name The name of the thread
+     * @return A virtual thread if supported, otherwise a platform thread
+     */
+    static Thread newThread(Runnable task, String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (ReflectiveOperationException ignored) {
+                // Fall back to a platform thread
+            }
+        }
+        return new Thread(task, name);
+    }
+}
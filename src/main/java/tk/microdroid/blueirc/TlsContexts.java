@@ -0,0 +1,130 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * The TLS contexts shared by all {@code Worker}s, one per trust configuration.
+ * A context caches the sessions of the servers it connected to, so sockets and engines
+ * Created from the same context for the same server and port resume the session
+ * On reconnection, skipping the key exchange and certificate checks of a full handshake.
+ */
+final class TlsContexts {
+    private static SSLContext verified;
+    private static SSLContext trustAll;
+
+    private TlsContexts() {
+    }
+
+    /**
+     * Gets the shared context of a trust configuration, created on first use.
+     *
+     * @param invalidSSL Whether any certificate is accepted
+     * @return The context
+     * @throws IOException When TLS isn't available
+     */
+    static synchronized SSLContext get(boolean invalidSSL) throws IOException {
+        try {
+            if (!invalidSSL) {
+                if (verified == null)
+                    verified = SSLContext.getDefault();
+                return verified;
+            }
+            if (trustAll == null) {
+                // For now this ignores the certificate, however, this will be changed to do certificate
+                // pinning (i.e. generating a fingerprint and asking the user to accept it or not,
+                // rather than just ignoring it
+                TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return new X509Certificate[0];
+                    }
+
+                    public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                    }
+
+                    public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                    }
+                }};
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, trustAllCerts, null);
+                trustAll = context;
+            }
+            return trustAll;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS is unavailable", e);
+        }
+    }
+
+    /**
+     * Connects a blocking socket and completes its handshake.
+     *
+     * @param server     The server
+     * @param port       The port
+     * @param invalidSSL Whether any certificate is accepted, otherwise the server's name is verified too
+     * @param metrics    Where the handshake time is reported
+     * @return The connected socket
+     * @throws IOException When unable to connect or the handshake fails
+     */
+    static SSLSocket connect(String server, int port, boolean invalidSSL, Metrics metrics) throws IOException {
+        SSLSocket socket = (SSLSocket) get(invalidSSL).getSocketFactory().createSocket(server, port);
+        try {
+            if (!invalidSSL) {
+                SSLParameters params = socket.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                socket.setSSLParameters(params);
+            }
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            socket.startHandshake();
+            handshaken(socket.getSession(), start, startNanos, metrics);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Creates a client engine for a non-blocking connection, its handshake is left to the caller.
+     * The server's name and port are hints for session resumption and SNI.
+     *
+     * @param server     The server
+     * @param port       The port
+     * @param invalidSSL Whether any certificate is accepted, otherwise the server's name is verified too
+     * @return The engine
+     * @throws IOException When TLS isn't available
+     */
+    static SSLEngine engine(String server, int port, boolean invalidSSL) throws IOException {
+        SSLEngine engine = get(invalidSSL).createSSLEngine(server, port);
+        engine.setUseClientMode(true);
+        if (!invalidSSL) {
+            SSLParameters params = engine.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(params);
+        }
+        return engine;
+    }
+
+    /**
+     * Reports a completed handshake.
+     * A session created before the handshake started was resumed from the context's cache.
+     *
+     * @param session    The session of the handshake
+     * @param start      When the handshake started, from {@link System#currentTimeMillis()}
+     * @param startNanos When the handshake started, from {@link System#nanoTime()}
+     * @param metrics    Where the handshake is reported
+     */
+    static void handshaken(SSLSession session, long start, long startNanos, Metrics metrics) {
+        long time = (System.nanoTime() - startNanos) / 1000;
+        metrics.handshaken(time, session.getCreationTime() < start);
+    }
+}
@@ -1,33 +1,34 @@
 package tk.microdroid.blueirc;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 
 /**
  * Represents an IRC user.
  * Contains informations about a user, well, it doesn't contain a lot for now
  * But it's meant to be improved to have more informations about the user.
+ * There's one {@code User} per nick of the network, shared by all the channels
+ * Of a {@code Worker} the user is in, and renamed when the user changes nick.
  *
  */
 public class User {
-	static int bufferLength = Integer.MAX_VALUE;
-	private String nick;
-	private String prefix;
-	private ArrayList<Parser> messages;
+	private volatile String nick;
+	private volatile String prefix = "";
+	private final MessageBuffer messages;
+	volatile PersistentMap<Channel, Boolean> channels = PersistentMap.empty(); // Our channels this user is in, as keys
 	
-	User(String nick, String prefix) {
+	User(String nick, int bufferLength, HistoryStorage storage, MemoryBudget budget) {
 		this.nick = nick;
-		this.prefix = prefix;
-		messages = new ArrayList<>();
+		messages = new MessageBuffer(bufferLength, storage, budget);
 	}
 	
 	/**
 	 * Add a message to the user messages list.
+	 * Reused {@code Parser}s are copied, and only if messages are kept at all
 	 * 
 	 * @param p The parser that contains the message
 	 */
 	public void addMessage(Parser p) {
-		Util.addMessage(bufferLength, messages, p);
+		messages.add(p);
 	}
 	
 	/**
@@ -39,23 +40,52 @@ public class User {
 		return nick;
 	}
 	
+	void setNick(String nick) {
+		this.nick = nick;
+	}
+	
+	/**
+	 * Gets the channels of ours this user is in.
+	 * 
+	 * @return The channels, as a snapshot which doesn't change as the user joins and leaves channels
+	 */
+	public Set<Channel> getChannels() {
+		return channels.keySet();
+	}
+	
 	/**
 	 * Gets user prefix.
 	 * Since this library supports IRCv3, if it's connected to an IRCv3 enabled server
 	 * Then this method will return a multi-prefix
 	 * 
-	 * @return User prefix
+	 * @return User prefix, in the channel the user was last listed in
+	 * @deprecated A user has a prefix per channel, use {@link Channel#getPrefix(String)}
 	 */
+	@Deprecated
 	public String getPrefix() {
 		return prefix;
 	}
 	
+	void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+	
 	/**
 	 * Gets user messages.
 	 * 
-	 * @return User messages
+	 * @return User messages, oldest first
 	 */
-	public List<Parser> getMessages() {
+	public MessageBuffer getMessages() {
 		return messages;
 	}
+	
+	/**
+	 * Sets the maximum amount of messages of this user.
+	 * Overrides {@link Worker#setUserBufferLength(int)} until it's called again
+	 * 
+	 * @param value User buffer length, 0 to keep no messages
+	 */
+	public void setBufferLength(int value) {
+		messages.setCapacity(value);
+	}
 }
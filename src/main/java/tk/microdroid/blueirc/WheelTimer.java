@@ -0,0 +1,181 @@
+package tk.microdroid.blueirc;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed wheel timer, running the timed tasks of many {@code Worker}s on one thread.
+ * Lag pings, ping timeouts, flood control and reconnections of every {@code Worker} are
+ * Scheduled here, instead of each {@code Worker} having its own timer thread.
+ * <p>
+ * Time is split in ticks, and tasks are put in the slot of the tick they're due at,
+ * So scheduling and cancelling a task is O(1), and a tick only looks at the tasks of its slot,
+ * However many are scheduled. Tasks run up to one tick late.
+ * <p>
+ * Tasks run on the timer thread, they should be short, like queueing a message.
+ * By default all {@code Worker}s share one timer, see {@link Worker#setTimer(WheelTimer)}.
+ */
+public class WheelTimer {
+    private final static AtomicInteger idGen = new AtomicInteger(0);
+    private static WheelTimer shared;
+
+    private final long tickNanos;
+    private final Timeout[] wheel; // Heads of doubly linked lists, only used by the timer thread
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private long tick = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a timer with 100 ms ticks and 512 slots, running on a daemon thread.
+     */
+    public WheelTimer() {
+        this(100, 512, task -> {
+            Thread thread = new Thread(task, "blueirc-timer-" + idGen.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a timer and starts its thread.
+     *
+     * @param tickMillis The precision of the timer in milliseconds
+     * @param slots      The amount of slots of the wheel, rounded up to a power of two.
+     *                   Tasks due more than {@code tickMillis * slots} later wait for more turns of the wheel
+     * @param factory    Creates the timer thread
+     */
+    public WheelTimer(long tickMillis, int slots, ThreadFactory factory) {
+        if (tickMillis <= 0 || slots <= 0)
+            throw new IllegalArgumentException("tickMillis and slots must be positive");
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) size <<= 1;
+        wheel = new Timeout[size];
+        mask = size - 1;
+        factory.newThread(this::run).start();
+    }
+
+    /**
+     * Gets the timer shared by {@code Worker}s which don't have one set.
+     */
+    static synchronized WheelTimer shared() {
+        if (shared == null)
+            shared = new WheelTimer();
+        return shared;
+    }
+
+    /**
+     * Runs {@code task} on the timer thread after {@code delay} milliseconds.
+     * Safe to call from any thread
+     *
+     * @param task  The task to run
+     * @param delay The delay in milliseconds
+     * @return The timeout, which can be cancelled
+     */
+    Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer, tasks which haven't run yet never will.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                continue; // Woken up too early
+            }
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Puts the newly scheduled timeouts in their slots.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long due = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+            due = Math.max(due, tick); // Already late, run on this tick
+            timeout.rounds = (due - tick) / wheel.length;
+            int slot = (int) (due & mask);
+            timeout.next = wheel[slot];
+            if (wheel[slot] != null) wheel[slot].prev = timeout;
+            wheel[slot] = timeout;
+            timeout.slot = slot;
+        }
+    }
+
+    /**
+     * Runs the due timeouts of a slot, and removes them and the cancelled ones.
+     */
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                remove(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                remove(timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) { // One failing task mustn't stop the timer
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else wheel[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled = false;
+        private long rounds;
+        private int slot;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, it won't run if it hasn't started yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
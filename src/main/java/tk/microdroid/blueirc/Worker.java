@@ -4,22 +4,19 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.X509Certificate;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 /**
  * This is the heart of this library, each instance of {@code Worker}
@@ -29,39 +26,81 @@ import javax.net.ssl.X509TrustManager;
  * You create an instance by passing server connection informations, informations are
  * NOT validated, you MUST validate the informations before creating an instance of {@code Worker}.
  * <p>
- * Each {@code Worker} runs two {@code Threads}, one main thread and one for writing.
- * Everything is managed here, all the other classes are containers of helpers, however,
- * I think this should be split into multiple classes.
+ * Each {@code Worker} runs two {@code Threads}, one for reading and one for writing,
+ * Unless it's served by an {@code EventLoop}, see {@link #setEventLoop(EventLoop)}.
+ * Those are platform threads, which keep the JVM running while connected, unless virtual threads are
+ * Enabled with the system property {@code blueirc.virtualThreads=true} on Java 21 and later, virtual threads
+ * Are daemon threads and don't. They can be created by a {@code ThreadFactory}
+ * Or run on an {@code Executor} instead, see {@link #setThreadFactory(ThreadFactory)}.
+ * Received lines are dispatched by command to {@code CommandHandler}s, the library's own
+ * Handling lives in {@code ProtocolHandlers}, and more handlers can be added through
+ * {@link #addCommandHandler(String, CommandHandler)}. Those handlers and the events can run
+ * Off the reading thread, see {@link #setAsyncDispatcher(AsyncDispatcher)}.
  */
 public class Worker {
     private final static AtomicInteger idGen = new AtomicInteger(0);
+    private final static AtomicInteger workerIdGen = new AtomicInteger(0);
+    static final int MAX_WRITE_BATCH = 64; // Messages written with one flush
+    private static final long MAX_RECONNECT_DELAY = 300000;
 
-    private ServerInfo serverInfo;
-    private Thread writerThread;
-    private Thread mainThread;
-    private IO io;
-
-    private IEventHandler eventHandler = (event, args) -> {
-    };
-    private Socket socket;
-    private SSLSocket sslSocket;
-    private BlockingQueue<Message> writingQueue = new ArrayBlockingQueue<>(32);
-    private boolean usingSecondNick = false;
-
-    private boolean ircv3Support = false;
-    private String[] ircv3Capabilities = {};
-    private HashMap<Character, Character> prefixes = new HashMap<>(); // Server prefixes, from 005
-    private String serverName; // The server name received from 005
-    private StringBuilder motd;
-
-    private HashMap<String, Channel> chans = new HashMap<>();
-    private boolean preserveChannels = false;
-
-    private long lag = 0;
-    private long lagStart = 0;
-    private int lagPingId = 0;
-    private boolean finishedLagMeasurement = true;
-    private Timer lagTimer = new Timer();
+    ServerInfo serverInfo;
+    private final int workerId = workerIdGen.incrementAndGet();
+    private ThreadFactory threadFactory;
+    private Executor executor;
+    private WheelTimer timer; // null for the shared one
+    IO io;
+    private EventLoop eventLoop;
+    private volatile NioConnection connection;
+
+    private final EventBus events = new EventBus();
+    private final CommandDispatcher protocol = new CommandDispatcher(); // The library's own handlers
+    private final CommandDispatcher dispatcher = new CommandDispatcher(); // Those added by the user
+    private volatile AsyncDispatcher asyncDispatcher; // Where events and added handlers run, if not inline
+    private volatile Socket socket;
+    private volatile SSLSocket sslSocket;
+    private volatile IOException closeCause; // Why the socket was closed by closeConnection()
+    final OutboundQueue outbound = new OutboundQueue();
+    boolean usingSecondNick = false;
+    volatile boolean running = true;
+    private boolean reuseParser = false;
+    private Parser reusableParser;
+    private Charset fallbackCharset = StandardCharsets.ISO_8859_1;
+    private volatile RawLineHandler rawLineHandler;
+
+    boolean ircv3Support = false;
+    String[] ircv3Capabilities = {};
+    volatile char[] prefixModes = prefixModes("(ov)@+"); // The mode of each prefix character, from 005
+    String serverName; // The server name received from 005
+    volatile String hostmask; // Our nick!user@host, known once we joined a channel
+    StringBuilder motd;
+
+    volatile PersistentMap<String, Channel> chans = PersistentMap.empty(); // Keyed by the casefolded names, replaced as they change
+    volatile CaseMapping caseMapping = CaseMapping.RFC1459; // From 005
+    volatile PersistentMap<String, User> users = PersistentMap.empty(); // Everyone in our channels, keyed by the casefolded nicks
+    volatile String nick; // Our nick once changed after registration, see currentNick()
+    final ArrayList<Channel> listingNames = new ArrayList<>(); // Channels receiving NAMES, told of QUIT and NICK of the nicks they listed
+    boolean preserveChannels = false;
+    int channelBufferLength = Integer.MAX_VALUE; // For new channels, see setChannelBufferLength()
+    int userBufferLength = Integer.MAX_VALUE;
+    HistoryStorage historyStorage = HistoryStorage.PARSERS;
+    MemoryBudget memoryBudget; // Shared by the message buffers, if any
+    volatile MessageLog messageLog; // Where channel messages are persisted, if any
+    volatile MessageIndex messageIndex; // Of the channel messages, if they're searchable
+
+    long lag = 0;
+    long lagStart = 0;
+    int lagPingId = 0;
+    boolean finishedLagMeasurement = true;
+
+    private long lagInterval = 30000;
+    private long pingTimeout = 300000;
+    private long reconnectDelay = 0;
+    private volatile long lastReceived;
+    // Increased on disconnection, timed tasks of a previous connection stop when it changed
+    private volatile int generation = 0;
+    private volatile boolean quitting = false;
+    private int reconnectAttempts = 0;
+    private List<String> rejoinChannels = Collections.emptyList();
 
     public Worker(String server, int port, String nick, String secondNick,
                   String username, String nickservPass, String serverPass,
@@ -76,18 +115,246 @@ public class Worker {
         serverInfo.serverPass = serverPass;
         serverInfo.ssl = ssl;
         serverInfo.invalidSSL = invalidSSL;
+        ProtocolHandlers.register(protocol);
     }
 
     public Worker(ServerInfo info) {
         serverInfo = info;
+        ProtocolHandlers.register(protocol);
     }
 
     /**
      * Start the {@code Worker} instance.
      */
     public void start() {
-        mainThread = new Thread(new IRCWorkerRunnable(this));
-        mainThread.start();
+        running = true;
+        quitting = false;
+        generation++;
+        hostmask = null;
+        nick = null;
+        reusableParser = reuseParser ? Parser.reusable() : null;
+        if (eventLoop != null) {
+            connection = new NioConnection(this, eventLoop);
+            connection.connect(serverInfo.server, serverInfo.port, serverInfo.ssl, serverInfo.invalidSSL);
+            return;
+        }
+        execute(new IRCWorkerRunnable(this), "reader");
+    }
+
+    /**
+     * Runs a task on the executor if set, otherwise on a new thread.
+     *
+     * @param task The task
+     * @param role The role of the thread, used in its name
+     */
+    private void execute(Runnable task, String role) {
+        if (executor != null)
+            executor.execute(task);
+        else
+            newThread(task, role).start();
+    }
+
+    private Thread newThread(Runnable task, String role) {
+        if (threadFactory != null)
+            return threadFactory.newThread(task);
+        return Threads.newThread(task, "blueirc-" + role + "-" + workerId);
+    }
+
+    /**
+     * Runs {@code task} on this {@code Worker}'s timer after {@code delay} milliseconds.
+     *
+     * @return The timeout, which can be cancelled
+     */
+    WheelTimer.Timeout schedule(Runnable task, long delay) {
+        return (timer != null ? timer : WheelTimer.shared()).schedule(task, delay);
+    }
+
+    /**
+     * Schedules {@code task} to run after {@code delay} milliseconds, unless disconnected by then.
+     */
+    private void scheduleForConnection(Runnable task, long delay) {
+        int generation = this.generation;
+        schedule(() -> {
+            if (generation == this.generation)
+                task.run();
+        }, delay);
+    }
+
+    /**
+     * Called once registered, starts measuring the lag and rejoins channels after a reconnection.
+     */
+    void onRegistered() {
+        reconnectAttempts = 0;
+        if (lagInterval > 0)
+            scheduleForConnection(this::lagPing, 0);
+        for (String chan : rejoinChannels)
+            send("JOIN " + chan);
+        rejoinChannels = Collections.emptyList();
+    }
+
+    private void checkPingTimeout() {
+        long idle = System.currentTimeMillis() - lastReceived;
+        if (idle >= pingTimeout)
+            closeConnection(new SocketTimeoutException("Nothing received for " + idle + " ms"));
+        else
+            scheduleForConnection(this::checkPingTimeout, pingTimeout - idle);
+    }
+
+    /**
+     * Closes the connection from any thread, the reading thread or the {@code EventLoop} then disconnects.
+     *
+     * @param cause The reason, passed to {@link #onDisconnected(IOException)}
+     */
+    void closeConnection(IOException cause) {
+        NioConnection nio = connection;
+        if (nio != null) {
+            nio.closeLater(cause);
+            return;
+        }
+        closeCause = cause;
+        try {
+            if (sslSocket != null) sslSocket.close();
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Called once connected, before any line is read.
+     *
+     * @param io The {@code IO} of the new connection
+     */
+    void onConnected(IO io) {
+        this.io = io;
+        lastReceived = System.currentTimeMillis();
+        if (pingTimeout > 0)
+            scheduleForConnection(this::checkPingTimeout, pingTimeout);
+        send("CAP LS");
+    }
+
+    /**
+     * Decodes, parses and handles a received line.
+     *
+     * @param framer The framer containing the line
+     */
+    void onLine(LineFramer framer) {
+        lastReceived = System.currentTimeMillis();
+        RawLineHandler raw = rawLineHandler;
+        if (raw != null && !raw.onRawLine(this, framer.buffer(), framer.lineStart(), framer.lineLength()))
+            return;
+        String line = framer.decode(fallbackCharset);
+        Parser p = reusableParser != null ? reusableParser.reset(line) : new Parser(line);
+        fire(Event.DATA_RECEIVED, p);
+        protocol.dispatch(this, p);
+        AsyncDispatcher async = asyncDispatcher;
+        if (async == null) {
+            dispatcher.dispatch(this, p);
+        } else if (dispatcher.handles(p)) {
+            Parser kept = p.retain();
+            async.execute(targetOf(kept), () -> dispatcher.dispatch(this, kept));
+        }
+    }
+
+    /**
+     * Called once the connection is lost or closed, or failed to be made.
+     *
+     * @param cause The reason, or null when the connection was closed normally
+     */
+    void onDisconnected(IOException cause) {
+        if (cause instanceof UnknownHostException)
+            fire(Event.UNKNOWN_HOST, cause);
+        else if (cause instanceof SocketTimeoutException)
+            fire(Event.TIMEOUT, cause);
+        else if (cause != null)
+            fire(Event.UNKNOWN_ERROR, cause);
+        fire(Event.DISCONNECTED, serverInfo.server);
+        generation++;
+        ArrayList<Message> unsent = new ArrayList<>();
+        outbound.clear(unsent);
+        fireFailed(unsent, SendException.Reason.DISCONNECTED, cause);
+        if (reconnectDelay > 0 && running && !quitting && (eventLoop == null || !eventLoop.isShutdown()))
+            scheduleReconnect();
+    }
+
+    /**
+     * Starts again after the reconnection delay, doubled after each failed attempt.
+     * Joined channels are joined again once registered
+     */
+    private void scheduleReconnect() {
+        ArrayList<String> joined = new ArrayList<>();
+        for (Channel chan : chans.values()) {
+            if (!chan.hasLeft()) {
+                joined.add(chan.getName());
+                chan.leave();
+            }
+        }
+        if (!preserveChannels) {
+            for (Channel chan : chans.values())
+                chan.getMessages().release();
+            chans = PersistentMap.empty();
+        }
+        for (User user : users.values()) // Those in no channel, the others were forgotten as they left
+            user.getMessages().release();
+        users = PersistentMap.empty();
+        if (!joined.isEmpty())
+            rejoinChannels = joined;
+        long delay = Math.min(reconnectDelay << Math.min(reconnectAttempts, 16), Math.max(reconnectDelay, MAX_RECONNECT_DELAY));
+        reconnectAttempts++;
+        fire(Event.RECONNECTING, delay);
+        scheduleForConnection(() -> {
+            if (!quitting) {
+                usingSecondNick = false;
+                ircv3Support = false;
+                ircv3Capabilities = new String[0];
+                prefixModes = prefixModes("(ov)@+");
+                setCaseMapping(CaseMapping.RFC1459);
+                finishedLagMeasurement = true;
+                start();
+            }
+        }, delay);
+    }
+
+    /**
+     * Fires DATA_SENT for each message, and for the messages coalesced into them,
+     * And completes their futures.
+     *
+     * @param batch The sent messages
+     */
+    void fireSent(List<Message> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Message msg = batch.get(i);
+            sent(msg);
+            if (msg.merged != null)
+                for (Message merged : msg.merged)
+                    sent(merged);
+        }
+    }
+
+    private void sent(Message msg) {
+        fire(Event.DATA_SENT, msg);
+        if (msg.future != null) msg.future.complete(msg);
+    }
+
+    /**
+     * Fires DATA_SEND_FAIL for each message, and for the messages coalesced into them,
+     * And fails their futures.
+     *
+     * @param batch  The unsent messages
+     * @param reason Why they weren't sent
+     * @param cause  The exception which caused it, or null
+     */
+    void fireFailed(List<Message> batch, SendException.Reason reason, Throwable cause) {
+        for (int i = 0; i < batch.size(); i++) {
+            Message msg = batch.get(i);
+            failed(msg, reason, cause);
+            if (msg.merged != null)
+                for (Message merged : msg.merged)
+                    failed(merged, reason, cause);
+        }
+    }
+
+    private void failed(Message msg, SendException.Reason reason, Throwable cause) {
+        fire(Event.DATA_SEND_FAIL, msg);
+        if (msg.future != null) msg.future.completeExceptionally(new SendException(reason, msg, cause));
     }
 
     /**
@@ -106,194 +373,48 @@ public class Worker {
 
         @Override
         public void run() {
+            IOException cause = null;
+            AtomicBoolean writerStopped = new AtomicBoolean(false);
+            closeCause = null;
             try {
                 if (serverInfo.ssl) {
-                    SSLSocketFactory sslFactory;
-                    if (serverInfo.invalidSSL) {
-                        // For now this ignores the certificate, however, this will be changed to do certificate
-                        // pinning (i.e. generating a fingerprint and asking the user to accept it or not,
-                        // rather than just ignoring it
-                        TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-                            public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                                return new X509Certificate[0];
-                            }
-
-                            public void checkClientTrusted(
-                                    java.security.cert.X509Certificate[] certs,
-                                    String authType) {
-                            }
-
-                            public void checkServerTrusted(
-                                    java.security.cert.X509Certificate[] certs,
-                                    String authType) {
-                            }
-                        }};
-                        SSLContext sc = SSLContext.getInstance("SSL");
-                        sc.init(null, trustAllCerts,
-                                new java.security.SecureRandom());
-                        sslFactory = sc.getSocketFactory();
-                    } else
-                        sslFactory = (SSLSocketFactory) SSLSocketFactory
-                                .getDefault();
-                    sslSocket = (SSLSocket) sslFactory.createSocket(
-                            serverInfo.server, serverInfo.port);
+                    sslSocket = TlsContexts.connect(serverInfo.server, serverInfo.port,
+                            serverInfo.invalidSSL, outbound.metrics());
                 } else {
                     socket = new Socket(serverInfo.server, serverInfo.port);
                 }
-                io = new IO(serverInfo.ssl ? sslSocket : socket);
-                send("CAP LS");
-                // Writes data in writingQueue to the socket
-                writerThread = new Thread(() -> {
-
-                    while (true) {
-                        Message msg = new Message("");
+                onConnected(new IO(serverInfo.ssl ? sslSocket : socket));
+                // Writes data in the outbound queue to the socket, everything flood control lets through is written with one flush
+                execute(() -> {
+                    ArrayList<Message> batch = new ArrayList<>();
+                    while (!writerStopped.get()) {
                         try {
-                            msg = writingQueue.take();
-                            io.write(msg.getMsg());
-                            eventHandler.onEvent(Event.DATA_SENT, msg);
-                        } catch (Exception e) {
-                            eventHandler.onEvent(Event.DATA_SEND_FAIL, msg == null ? new Message("") : msg);
-                        }
-
-                    }
-                });
-                writerThread.start();
-                while (io.read() != null) {
-                    Parser p = new Parser(io.line);
-                    eventHandler.onEvent(Event.DATA_RECEIVED, p);
-                    if (p.getAction().equals("PING")) {
-                        send("PONG" + io.line.substring(4));
-                    } else if (p.getAction().equals("PONG") && p.getMsg().equals("blueirc." + lagPingId)) { // Used in lag measurement
-                        finishedLagMeasurement = true;
-                        lag = System.currentTimeMillis() - lagStart;
-                        eventHandler.onEvent(Event.LAG_MEASURED, lag);
-                    } else if (p.getAction().equals("PRIVMSG") && p.getActionArgs().get(0).startsWith("#")) { // Add new message to chan and user
-                        Channel chan = chans.get(p.getActionArgs().get(0));
-                        chan.getUsers().get(p.getNick()).addMessage(p);
-                        chan.addMessage(p);
-                    } else if (p.getAction().equals("CAP")) {
-                        ircv3Support = true;
-                        String capType = p.getActionArgs().get(1);
-                        if (capType.equals("LS")) {
-                            ircv3Capabilities = p.getMsg().split(" ");
-                            String[] reqCpbs = {"multi-prefix"}; // Requested capabilities
-                            for (String reqCpb : reqCpbs)
-                                if (hasCapability(reqCpb))
-                                    send("CAP REQ " + reqCpb);
-                            send("CAP END");
-                            register(serverInfo.nick);
-                        } else if (capType.equals("NAK"))
-                            eventHandler.onEvent(
-                                    Event.IRCV3_CAPABILITY_REJECTED, p.getMsg());
-                        else if (capType.equals("ACK"))
-                            eventHandler.onEvent(
-                                    Event.IRCV3_CAPABILITY_ACCEPTED, p.getAction());
-                    } else if (p.getAction().equals("JOIN")) { // Create new Channel
-                        if (!chans.containsKey(p.getMsg()))
-                            chans.put(p.getMsg(), new Channel(worker, p.getMsg()));
-                        else
-                            chans.get(p.getMsg()).rejoin();
-                    } else if (p.getAction().equals("PART")) { // Remove channel (When not preserving them) or user in channel
-                        if (p.getNick()
-                                .equals(usingSecondNick ? serverInfo.secondNick
-                                        : serverInfo.nick)) {
-                            eventHandler.onEvent(Event.LEFT_CHANNEL,
-                                    p.getActionArgs().get(0));
-                            chans.get(p.getActionArgs().get(0)).leave();
-                            if (!preserveChannels)
-                                chans.remove(p.getActionArgs().get(0));
-                        } else {
-                            chans.get(p.getActionArgs().get(0)).removeUser(p.getNick());
-                        }
-                    } else if (p.getAction().equals("KICK")) { // Remove channel (If not preserving them) or user in channel
-                        if (p.getActionArgs().get(1).equals(
-                                usingSecondNick ? serverInfo.secondNick
-                                        : serverInfo.nick)) {
-                            eventHandler.onEvent(Event.KICKED, p);
-                            chans.get(p.getActionArgs().get(0)).leave();
-                            if (!preserveChannels)
-                                chans.remove(p.getActionArgs().get(0));
-                        } else {
-                            chans.get(p.getActionArgs().get(0)).removeUser(
-                                    p.getActionArgs().get(1));
+                            outbound.await(batch, MAX_WRITE_BATCH);
+                        } catch (InterruptedException e) {
+                            return;
                         }
-                    } else if (p.getAction().equals("QUIT")) { // Remove user from all the channels
-                        for (Channel chan : chans.values()) {
-                            chan.removeUser(p.getNick());
-                        }
-                    } else if (p.getAction().equals("TOPIC") && chans.containsKey(p.getActionArgs().get(0))) { // Update topic upon change
-                        chans.get(p.getActionArgs().get(0)).setTopic(p.getMsg());
-                    } else if (p.getNumberAction().equals("332") && chans.containsKey(p.getActionArgs().get(1))) { // The topic sent upon join
-                        chans.get(p.getActionArgs().get(1)).setTopic(p.getMsg());
-                    } else if (p.getNumberAction().equals("001")) { // Welcome to the server
-                        eventHandler.onEvent(Event.CONNECTED, p.getServer());
-                        lagTimer.schedule(new LagPing(), 0, 30000);
-                    } else if (p.getNumberAction().equals("421")
-                            && p.getActionArgs().get(1).equals("CAP")) { // Unknown command CAP (i.e. the server doesn't support IRCv3)
-                        register(serverInfo.nick);
-                    } else if (p.getNumberAction().equals("353")) { // NAMES response
-                        if (chans.containsKey(p.getActionArgs().get(2))) {
-                            Channel chan = chans.get(p.getActionArgs().get(2));
-                            for (String user : p.getMsg().split(" "))
-                                chan.addUser(user, prefixes);
-                        }
-                    } else if (p.getNumberAction().equals("005")) { // Server capabilities, sent upon connection
-                        for (String spec : p.getActionArgs()) {
-                            String[] kvSplitter = spec.split("=", 2);
-                            String key = kvSplitter[0].toUpperCase();
-                            String value = kvSplitter.length == 2 ? kvSplitter[1]
-                                    : "";
-                            switch (key) {
-                                case "PREFIX":
-                                    String[] splitter = value.substring(1).split("\\)");
-                                    for (int i = 0; i < splitter[0].length(); i++) {
-                                        prefixes.put(splitter[1].charAt(i),
-                                                splitter[0].charAt(i));
-                                    }
-                                    break;
-                                case "NETWORK":
-                                    serverName = value;
-                                    eventHandler.onEvent(Event.GOT_SERVER_NAME,
-                                            value);
-                            }
-                        }
-                    } else if (p.getNumberAction().equals("375")) { // Start of MOTD
-                        motd = new StringBuilder();
-                    } else if (p.getNumberAction().equals("372")) { // MOTD message
-                        motd.append("\n" + p.getMsg());
-                    } else if (p.getNumberAction().equals("376")) { // End of MOTD
-                        motd.trimToSize();
-                        eventHandler.onEvent(Event.GOT_MOTD, motd.toString()
-                                .substring(1));
-                    } else if (p.getNumberAction().equals("366")) { // Channel joined
-                        eventHandler.onEvent(Event.JOINED_CHANNEL, p.getActionArgs().get(1));
-                    } else if (p.getNumberAction().equals("433")) { // Nickname in use
-                        if (!usingSecondNick) {
-                            eventHandler.onEvent(Event.FIRST_NICK_IN_USE,
-                                    serverInfo.nick);
-                            register(serverInfo.secondNick);
-                        } else {
-                            eventHandler.onEvent(Event.ALL_NICKS_IN_USE,
-                                    serverInfo.secondNick);
-                            break;
+                        if (batch.isEmpty()) continue;
+                        try {
+                            io.write(batch);
+                            fireSent(batch);
+                        } catch (Exception e) {
+                            fireFailed(batch, SendException.Reason.WRITE_FAILED, e);
                         }
+                        batch.clear();
                     }
+                }, "writer");
+                while (running && io.readLine()) {
+                    onLine(io.framer);
                 }
-            } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                // Never's gonna happen
-            } catch (UnknownHostException e) {
-                eventHandler.onEvent(Event.UNKNOWN_HOST, e);
-            } catch (SocketTimeoutException e) {
-                eventHandler.onEvent(Event.TIMEOUT, e);
             } catch (IOException e) {
-                eventHandler.onEvent(Event.UNKNOWN_ERROR, e);
+                cause = closeCause != null ? closeCause : e;
             } finally {
-                eventHandler.onEvent(Event.DISCONNECTED, serverInfo.server);
-                lagTimer.cancel();
-                writerThread.interrupt();
+                onDisconnected(cause);
+                writerStopped.set(true);
+                outbound.wakeUp();
                 try {
-                    if (serverInfo.ssl) sslSocket.close();
-                    else socket.close();
+                    if (sslSocket != null) sslSocket.close();
+                    if (socket != null) socket.close();
                 } catch (IOException ignored) {}
             }
         }
@@ -303,9 +424,8 @@ public class Worker {
      * Registers on the network
      *
      * @param nick The nickname to use
-     * @throws IOException When registration fails
      */
-    private void register(String nick) throws IOException {
+    void register(String nick) {
         send(IO.compile("NICK", new String[]{nick}, ""));
         send(IO.compile("USER", new String[]{serverInfo.username, "0", "*"},
                 "MicroIRC Android client"));
@@ -381,7 +501,261 @@ public class Worker {
      * @param handler The events handler
      */
     public void setEventHandler(IEventHandler handler) {
-        this.eventHandler = handler;
+        events.setHandler(handler);
+    }
+
+    /**
+     * Runs the events and added command handlers off the reading thread, ordered per channel or nick.
+     * The library still handles each line on the reading thread, so a slow handler doesn't delay
+     * PING replies or the state of the channels. Reused {@code Parser}s are copied before being queued.
+     * Should be set before {@link #start()}, the dispatcher isn't shut down by the {@code Worker}
+     *
+     * @param dispatcher The dispatcher, or null to run them on the reading thread, which is the default
+     */
+    public void setAsyncDispatcher(AsyncDispatcher dispatcher) {
+        asyncDispatcher = dispatcher;
+    }
+
+    /**
+     * Gets the dispatcher of the events and added command handlers.
+     *
+     * @return The dispatcher, or null if they run on the reading thread
+     */
+    public AsyncDispatcher getAsyncDispatcher() {
+        return asyncDispatcher;
+    }
+
+    /**
+     * Adds a listener for a single event, with its arguments typed.
+     * Listeners are invoked after the event handler, in the order they were added, and only
+     * For their own event, so events nobody listens to aren't built at all
+     *
+     * @param type     The event, like {@code EventType.JOINED_CHANNEL}
+     * @param listener The listener
+     * @param <T>      The type of the arguments of the event
+     */
+    public <T> void addListener(EventType<T> type, EventListener<? super T> listener) {
+        events.add(type, listener);
+    }
+
+    /**
+     * Removes a listener added by {@link #addListener(EventType, EventListener)}.
+     *
+     * @param type     The event the listener was added for
+     * @param listener The listener
+     * @param <T>      The type of the arguments of the event
+     */
+    public <T> void removeListener(EventType<T> type, EventListener<? super T> listener) {
+        events.remove(type, listener);
+    }
+
+    /**
+     * Fires an event to the event handler and the listeners of the event.
+     */
+    void fire(Event event, Object args) {
+        AsyncDispatcher async = asyncDispatcher;
+        if (async == null) {
+            events.fire(this, event, args);
+        } else if (events.wants(event)) {
+            Object kept = args instanceof Parser ? ((Parser) args).retain() : args;
+            async.execute(targetOf(kept), () -> events.fire(this, event, kept));
+        }
+    }
+
+    /**
+     * Fires an event with a number, only boxed when someone gets the event.
+     */
+    void fire(Event event, long args) {
+        if (events.wants(event))
+            fire(event, (Object) args);
+    }
+
+    /**
+     * Gets the target events are ordered by, when they're dispatched asynchronously.
+     *
+     * @return The casefolded channel, or the nick of the sender of a line about no channel, or ""
+     */
+    private String targetOf(Object args) {
+        if (args instanceof Parser) {
+            Parser p = (Parser) args;
+            String channel = CommandDispatcher.channelOf(p);
+            if (channel != null) return caseMapping.fold(channel);
+            return p.isHasIdent() ? p.nickKey(caseMapping) : "";
+        }
+        if (args instanceof String && CommandDispatcher.isChannel((String) args)) // JOINED_CHANNEL and LEFT_CHANNEL
+            return caseMapping.fold((String) args);
+        return "";
+    }
+
+    /**
+     * Adds a handler for a certain IRC command.
+     * Handlers are invoked on the reading thread, or by the {@code AsyncDispatcher} if there's one,
+     * For every received line of {@code command}, after the library has handled the line itself.
+     * Handlers should be added before {@link #start()}
+     *
+     * @param command The command, like PRIVMSG, or a numeric like 372
+     * @param handler The handler
+     */
+    public void addCommandHandler(String command, CommandHandler handler) {
+        dispatcher.add(command, handler);
+    }
+
+    /**
+     * Adds a handler for a certain numeric reply.
+     *
+     * @param numeric The numeric, like 372 for MOTD lines
+     * @param handler The handler
+     * @see #addCommandHandler(String, CommandHandler)
+     */
+    public void addNumericHandler(int numeric, CommandHandler handler) {
+        dispatcher.add(numeric, handler);
+    }
+
+    /**
+     * Removes a handler added by {@link #addCommandHandler(String, CommandHandler)}.
+     *
+     * @param command The command the handler was added for
+     * @param handler The handler
+     */
+    public void removeCommandHandler(String command, CommandHandler handler) {
+        dispatcher.remove(command, handler);
+    }
+
+    /**
+     * Adds a handler for a certain IRC command, only for the lines about a channel.
+     * The channel of a line is its first parameter, like the target of a PRIVMSG, or for numerics
+     * The first parameter after our nick which is a channel name, like in 332 or 353.
+     * Channel names are compared casefolded, handlers for the channel are invoked after the others
+     *
+     * @param command The command, like PRIVMSG, or a numeric like 332
+     * @param channel The channel name
+     * @param handler The handler
+     * @see #addCommandHandler(String, CommandHandler)
+     */
+    public void addCommandHandler(String command, String channel, CommandHandler handler) {
+        dispatcher.add(command, channel, handler);
+    }
+
+    /**
+     * Removes a handler added by {@link #addCommandHandler(String, String, CommandHandler)}.
+     *
+     * @param command The command the handler was added for
+     * @param channel The channel the handler was added for
+     * @param handler The handler
+     */
+    public void removeCommandHandler(String command, String channel, CommandHandler handler) {
+        dispatcher.remove(command, channel, handler);
+    }
+
+    /**
+     * Removes a handler added by {@link #addNumericHandler(int, CommandHandler)}.
+     *
+     * @param numeric The numeric the handler was added for
+     * @param handler The handler
+     */
+    public void removeNumericHandler(int numeric, CommandHandler handler) {
+        dispatcher.remove(numeric, handler);
+    }
+
+    /**
+     * Gets the nickname currently used on the server.
+     *
+     * @return The first nick, or the second nick if the first was in use
+     */
+    String currentNick() {
+        String changed = nick;
+        if (changed != null) return changed;
+        return usingSecondNick ? serverInfo.secondNick : serverInfo.nick;
+    }
+
+    /**
+     * Builds the table of the channel prefixes advertised by PREFIX in 005, like "(ov)@+".
+     * The table is indexed by the prefix characters, holding their modes, or 0 for other characters
+     *
+     * @param value The value of PREFIX
+     * @return The table
+     */
+    static char[] prefixModes(String value) {
+        char[] modes = new char[128];
+        int close = value.indexOf(')');
+        if (value.startsWith("(") && close > 0) {
+            for (int i = 1; i < close && close + i < value.length(); i++) {
+                char prefix = value.charAt(close + i);
+                if (prefix < modes.length)
+                    modes[prefix] = value.charAt(i);
+            }
+        }
+        return modes;
+    }
+
+    /**
+     * Checks if a nick is ours, with the server's case mapping.
+     */
+    boolean isCurrentNick(String nick) {
+        return caseMapping.fold(nick).equals(caseMapping.fold(currentNick()));
+    }
+
+    /**
+     * Gets a channel by its name as received, with the server's case mapping.
+     */
+    Channel channel(String name) {
+        return chans.get(caseMapping.fold(name));
+    }
+
+    /**
+     * Changes the case mapping, keying the channels and the users again if it's different.
+     */
+    void setCaseMapping(CaseMapping mapping) {
+        if (mapping == caseMapping) return;
+        caseMapping = mapping;
+        dispatcher.setCaseMapping(mapping);
+        PersistentMap<String, Channel> refolded = PersistentMap.empty();
+        for (Channel chan : chans.values()) {
+            chan.refold(mapping);
+            refolded = refolded.plus(mapping.fold(chan.getName()), chan);
+        }
+        chans = refolded;
+        PersistentMap<String, User> refoldedUsers = PersistentMap.empty();
+        for (User user : users.values())
+            refoldedUsers = refoldedUsers.plus(mapping.fold(user.getNick()), user);
+        users = refoldedUsers;
+    }
+
+    /**
+     * Gets the {@code User} of a nick, creating it when it's in none of our channels yet.
+     *
+     * @param nick The nick
+     * @param key  The casefolded nick
+     */
+    User registerUser(String nick, String key) {
+        User user = users.get(key);
+        if (user == null) {
+            user = new User(nick, userBufferLength, historyStorage, memoryBudget);
+            users = users.plus(key, user);
+        }
+        return user;
+    }
+
+    /**
+     * Gets a user of our channels.
+     * Nicks are compared with the server's case mapping
+     *
+     * @param nick The nick
+     * @return The user, shared by the channels it's in, or null if it's in none of them
+     * @see User#getChannels()
+     */
+    public User getUser(String nick) {
+        return users.get(caseMapping.fold(nick));
+    }
+
+    /**
+     * Gets the way the server compares nicks and channel names, from CASEMAPPING in 005.
+     * Channels and users are looked up with it
+     *
+     * @return The case mapping, RFC1459 until the server tells otherwise
+     */
+    public CaseMapping getCaseMapping() {
+        return caseMapping;
     }
 
     /**
@@ -420,22 +794,257 @@ public class Worker {
      * Sets the maximum amount of channel messages.
      * For example, if {@code value} was 50, then only the last 50 messages
      * of the channel are kept, older ones are removed
+     * Applies to the channels of this {@code Worker} only, including already joined ones,
+     * {@link Channel#setBufferLength(int)} sets it for a single channel
      *
-     * @param value Channel buffer length
+     * @param value Channel buffer length, 0 to keep no messages
      */
     public void setChannelBufferLength(int value) {
-        Channel.bufferLength = value;
+        channelBufferLength = value;
+        for (Channel chan : chans.values())
+            chan.setBufferLength(value);
     }
 
     /**
      * Sets the maximum amount of user messages.
      * For example, if {@code value} was 50, then only the last 50 messages
      * of the user are kept, older ones are removed
+     * Applies to the users of this {@code Worker} only, including already known ones,
+     * {@link User#setBufferLength(int)} sets it for a single user
      *
-     * @param value User buffer length
+     * @param value User buffer length, 0 to keep no messages
      */
     public void setUserBufferLength(int value) {
-        User.bufferLength = value;
+        userBufferLength = value;
+        for (User user : users.values())
+            user.setBufferLength(value);
+    }
+
+    /**
+     * Sets how channel and user messages are kept.
+     * Keeping only the raw lines, in chunks of bytes on the heap or off it, takes a fraction of the
+     * Memory of the {@code Parser}s, which are then built again each time a message is read.
+     * Applies to the channels and users seen afterwards, so it should be set before {@link #start()}
+     *
+     * @param storage The storage, default is {@link HistoryStorage#PARSERS}
+     */
+    public void setHistoryStorage(HistoryStorage storage) {
+        historyStorage = storage;
+    }
+
+    /**
+     * Limits the memory taken by the channel and user messages, besides the buffer lengths.
+     * Messages are evicted across channels and users by the policy of the budget once it's reached.
+     * A budget can be shared by several {@code Worker}s, to limit them all at once.
+     * Applies to the channels and users seen afterwards, so it should be set before {@link #start()}
+     *
+     * @param budget The budget, or null for none, which is the default
+     */
+    public void setMemoryBudget(MemoryBudget budget) {
+        memoryBudget = budget;
+    }
+
+    /**
+     * Gets the memory budget of the messages.
+     *
+     * @return The budget, or null if there's none
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Persists the channel messages to a log, besides keeping them in memory.
+     * Messages are appended with the channel name casefolded by {@link #getCaseMapping()} as their target,
+     * A failed append fires {@code Event.UNKNOWN_ERROR}. The log isn't closed by the {@code Worker}
+     *
+     * @param log The log, or null to stop persisting, which is the default
+     */
+    public void setMessageLog(MessageLog log) {
+        messageLog = log;
+    }
+
+    /**
+     * Gets the log channel messages are persisted to.
+     *
+     * @return The log, or null if messages aren't persisted
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Indexes the channel messages, to search them with {@link #getMessageIndex()}.
+     * The messages added to channels afterwards are indexed, as long as their channel keeps them
+     *
+     * @param value Whether to index messages, default is false
+     */
+    public void setMessageIndexing(boolean value) {
+        if (value != (messageIndex != null))
+            messageIndex = value ? new MessageIndex(this) : null;
+    }
+
+    /**
+     * Gets the full-text index of the channel messages.
+     *
+     * @return The index, or null if messages aren't indexed
+     * @see #setMessageIndexing(boolean)
+     */
+    public MessageIndex getMessageIndex() {
+        return messageIndex;
+    }
+
+    /**
+     * Serves this {@code Worker}'s connection by an {@code EventLoop}.
+     * Instead of running its own reading and writing threads, the connection is
+     * Read and written by the loop thread, which can serve many {@code Worker}s.
+     * Events and handlers are then fired on the loop thread, they shouldn't block.
+     * SSL connections are served too, their handshake is done by the loop thread.
+     * Must be set before {@link #start()}
+     *
+     * @param loop The loop, or null to use the {@code Worker}'s own threads, which is the default
+     */
+    public void setEventLoop(EventLoop loop) {
+        eventLoop = loop;
+    }
+
+    /**
+     * Sets the charset of received lines which aren't valid UTF-8.
+     * Lines are decoded as UTF-8 when possible, on networks where some clients still
+     * Send a legacy charset, their lines are decoded with this one.
+     * Must be set before {@link #start()}
+     *
+     * @param charset The fallback charset, default is ISO-8859-1
+     */
+    public void setFallbackCharset(Charset charset) {
+        fallbackCharset = charset;
+    }
+
+    /**
+     * Sets a handler receiving every line as raw bytes, before it's decoded.
+     * The handler can drop lines, which are then never decoded nor parsed
+     *
+     * @param handler The handler, or null to remove it
+     * @see RawLineHandler
+     */
+    public void setRawLineHandler(RawLineHandler handler) {
+        rawLineHandler = handler;
+    }
+
+    /**
+     * Parses every received line into the same {@code Parser} instance.
+     * This avoids creating garbage for each line, which suits bots that don't keep
+     * History, but the {@code Parser} passed to events and handlers is only valid until they return,
+     * Call {@link Parser#retain()} to keep it. Channel and user messages are copied when kept.
+     * Must be set before {@link #start()}
+     *
+     * @param value true to reuse the {@code Parser}, default is false
+     */
+    public void setReuseParser(boolean value) {
+        reuseParser = value;
+    }
+
+    /**
+     * Sets the factory of the reading and writing threads.
+     * By default these are platform threads, which keep the JVM running while connected, or virtual threads
+     * With the system property {@code blueirc.virtualThreads=true} on Java 21 and later, which don't.
+     * A factory like {@code Thread.ofVirtual().factory()} gives virtual threads to a single {@code Worker}.
+     * Ignored when the {@code Worker} is served by an {@code EventLoop}.
+     * Must be set before {@link #start()}
+     *
+     * @param factory The factory, or null for the default
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        threadFactory = factory;
+    }
+
+    /**
+     * Runs the reading and writing loops on an {@code Executor} instead of their own threads.
+     * Each loop blocks for as long as the connection lasts, the executor must be able to
+     * Run both of them at once for each {@code Worker}, like a cached thread pool or a virtual thread per task executor.
+     * Must be set before {@link #start()}
+     *
+     * @param executor The executor, or null to use threads of the thread factory
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the timer running timed tasks, like lag measurement and ping timeouts.
+     * By default all {@code Worker}s share one timer thread.
+     * Must be set before {@link #start()}
+     *
+     * @param timer The timer, or null for the shared one
+     */
+    public void setTimer(WheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Sets how often the lag is measured.
+     * Must be set before {@link #start()}
+     *
+     * @param interval The interval in milliseconds, default is 30000, 0 disables lag measurement
+     */
+    public void setLagInterval(long interval) {
+        lagInterval = interval;
+    }
+
+    /**
+     * Sets how long the connection can stay silent before it's considered lost.
+     * The server answers lag measurement pings, so the connection is never silent for long.
+     * A lost connection fires TIMEOUT, then DISCONNECTED.
+     * Must be set before {@link #start()}
+     *
+     * @param timeout The timeout in milliseconds, default is 300000, 0 disables it
+     */
+    public void setPingTimeout(long timeout) {
+        pingTimeout = timeout;
+    }
+
+    /**
+     * Reconnects after the connection is lost, unless we quit or all nicks were in use.
+     * The delay doubles after each failed attempt, up to 5 minutes, RECONNECTING is fired
+     * With the delay before each attempt. Joined channels are joined again.
+     *
+     * @param delay The delay before reconnecting in milliseconds, default is 0 which doesn't reconnect
+     */
+    public void setReconnectDelay(long delay) {
+        reconnectDelay = delay;
+    }
+
+    /**
+     * Sets the flood control, so the server doesn't disconnect us for flooding.
+     * Up to {@code burst} lines are sent at once, then one line every {@code interval} milliseconds,
+     * Which is how most servers count penalties. PONG, registration and QUIT are never held back,
+     * But they count as well.
+     *
+     * @param burst    The amount of lines sent at once, default is 5, 0 disables flood control
+     * @param interval The time a line costs in milliseconds, default is 2000
+     */
+    public void setFloodControl(int burst, long interval) {
+        outbound.setFloodControl(burst, interval);
+    }
+
+    /**
+     * Sets how many messages can wait to be sent to a single target, like a channel or a nick.
+     * Messages are queued per target, so a long paste to one target doesn't hold back others.
+     *
+     * @param limit  The maximum amount of messages queued per target, default is 32
+     * @param policy What to drop when the queue is full, default is {@link OverflowPolicy#DROP_NEWEST}
+     */
+    public void setTargetQueueLimit(int limit, OverflowPolicy policy) {
+        outbound.setTargetLimit(limit, policy);
+    }
+
+    /**
+     * Gets the statistics of this {@code Worker}, like the depth of its outbound queue.
+     *
+     * @return The metrics, updated live
+     */
+    public Metrics getMetrics() {
+        return outbound.metrics();
     }
 
     /**
@@ -478,37 +1087,118 @@ public class Worker {
 
     /**
      * Queue {@code data} to be flushed to the server.
+     * This never blocks, messages are sent as fast as flood control allows,
+     * When the queue of the message's target is full, DATA_SEND_FAIL is fired for the dropped message
      *
      * @param data
-     * @return Message ID, -1 if {@code data} is invalid
+     * @return Message ID, -1 if {@code data} is invalid or was dropped
+     * @see #setFloodControl(int, long)
+     * @see #setTargetQueueLimit(int, OverflowPolicy)
      */
     public int send(String data) {
         if (data == null || data.equals(""))
             return -1;
         Message msg = new Message(data);
-        try {
-            writingQueue.put(msg);
-            return msg.getId();
-        } catch (Exception e) {
-            eventHandler.onEvent(Event.DATA_SEND_FAIL, new Message(data));
+        return queue(msg) ? msg.getId() : -1;
+    }
+
+    /**
+     * Queue {@code data} to be flushed to the server, and get notified once it is.
+     * Like {@link #send(String)} this never blocks, DATA_SENT and DATA_SEND_FAIL are fired as well.
+     * The future is completed on the writing thread, or the {@code EventLoop}'s thread,
+     * Actions chained without an {@code Executor} run there and shouldn't block
+     *
+     * @param data The data to be sent
+     * @return A future completed with the message once it's written to the socket,
+     * Or failed with a {@link SendException} if it's dropped or the connection is lost before,
+     * Or with an {@code IllegalArgumentException} if {@code data} is invalid
+     */
+    public CompletableFuture<Message> sendAsync(String data) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        if (data == null || data.equals("")) {
+            future.completeExceptionally(new IllegalArgumentException("Empty message"));
+            return future;
+        }
+        Message msg = new Message(data);
+        msg.future = future;
+        queue(msg);
+        return future;
+    }
+
+    /**
+     * Queue a PRIVMSG to be flushed to the server, split into as many lines as needed.
+     * Lines are as long as the server can relay them with our hostmask, which is known
+     * Once a channel is joined, before that they leave room for the longest usual one.
+     * Each line is queued as its own message, long pastes may need a higher target queue limit
+     *
+     * @param target The receiver of {@code msg}
+     * @param msg    The message to be sent
+     * @return The amount of queued lines, lines dropped by the target queue aren't counted
+     * @see IO#split(String, String, String, int, List)
+     * @see #setTargetQueueLimit(int, OverflowPolicy)
+     */
+    public int privmsg(String target, String msg) {
+        ArrayList<String> lines = new ArrayList<>();
+        IO.split("PRIVMSG", target, msg, prefixLength(), lines);
+        int queued = 0;
+        for (int i = 0; i < lines.size(); i++)
+            if (queue(new Message(lines.get(i)))) queued++;
+        return queued;
+    }
+
+    /**
+     * Gets the length of the ":nick!user@host " prefix the server adds to the lines it relays from us.
+     */
+    int prefixLength() {
+        String mask = hostmask;
+        if (mask == null) {
+            String nick = currentNick();
+            return IO.MAX_PREFIX_LENGTH - 30 + IO.utf8Length(nick, 0, nick.length());
         }
-        return -1;
+        return IO.utf8Length(mask, 0, mask.length()) + 2;
+    }
+
+    /**
+     * Gets our hostmask, as the server relays our messages to others.
+     *
+     * @return nick!user@host, or null until a channel is joined
+     */
+    public String getHostmask() {
+        return hostmask;
+    }
+
+    /**
+     * Adds a message to the outbound queue, and wakes up the {@code EventLoop} if there's one.
+     *
+     * @return false if {@code msg} was dropped
+     */
+    private boolean queue(Message msg) {
+        if (msg.getMsg().regionMatches(true, 0, "QUIT", 0, 4))
+            quitting = true; // Don't reconnect once the server closes the connection
+        Message dropped = outbound.offer(msg);
+        if (dropped != null)
+            fireFailed(Collections.singletonList(dropped), SendException.Reason.OVERFLOW, null);
+        NioConnection nio = connection;
+        if (nio != null) nio.requestDrain();
+        return dropped != msg;
     }
 
     /**
      * Gets a channel object by name.
+     * Names are compared with the server's case mapping
      *
      * @param channelName The name of the channel
      * @return null if channel doesn't exist
      */
     public Channel getChannel(String channelName) {
-        return chans.get(channelName);
+        return channel(channelName);
     }
 
     /**
      * Get a {@code Collection} of all the channels.
      * If {@code preserveChannels} is true, then this returns also left channels
-     * You can check if the channel has been left by the hasLeft() method in the channel
+     * You can check if the channel has been left by the hasLeft() method in the channel.
+     * The collection is a snapshot, it doesn't change as channels are joined and left
      *
      * @return Collection of all the channels
      */
@@ -522,6 +1212,7 @@ public class Worker {
      * @param quitMsg The quit message
      */
     public void disconnect(String quitMsg) {
+        quitting = true;
         send("QUIT :" + quitMsg);
     }
 
@@ -536,14 +1227,14 @@ public class Worker {
                 - lagStart;
     }
 
-    class LagPing extends TimerTask {
-        @Override
-        public void run() {
-            if (!finishedLagMeasurement)
-                return;
-            lagStart = System.currentTimeMillis();
-            finishedLagMeasurement = false;
-            send("PING :blueirc." + (lagPingId = idGen.incrementAndGet()));
+    private void lagPing() {
+        if (!finishedLagMeasurement) {
+            scheduleForConnection(this::lagPing, lagInterval);
+            return;
         }
+        lagStart = System.currentTimeMillis();
+        finishedLagMeasurement = false;
+        send("PING :blueirc." + (lagPingId = idGen.incrementAndGet()));
+        scheduleForConnection(this::lagPing, lagInterval);
     }
 }
\ No newline at end of file
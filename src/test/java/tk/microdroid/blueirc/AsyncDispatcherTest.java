@@ -0,0 +1,155 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncDispatcherTest {
+    private AsyncDispatcher dispatcher;
+
+    @AfterEach
+    void shutdown() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    /**
+     * Occupies the stripe of a target until the returned latch is counted down.
+     */
+    private CountDownLatch block(String target) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        dispatcher.execute(target, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (dispatcher.getQueued() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        Thread.sleep(50); // The last task, polled but maybe still running
+    }
+
+    @Test
+    void keepsTheOrderOfEachTarget() throws Exception {
+        dispatcher = new AsyncDispatcher(4, 10000, DispatchPolicy.BLOCK);
+        ConcurrentHashMap<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        String[] targets = {"#a", "#b", "#c", "nick", ""};
+        CountDownLatch done = new CountDownLatch(targets.length * 1000);
+        for (int i = 0; i < 1000; i++)
+            for (String target : targets) {
+                int n = i;
+                dispatcher.execute(target, () -> {
+                    seen.computeIfAbsent(target, t -> Collections.synchronizedList(new ArrayList<>())).add(n);
+                    done.countDown();
+                });
+            }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (String target : targets) {
+            List<Integer> numbers = seen.get(target);
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, (int) numbers.get(i));
+        }
+        assertEquals(0, dispatcher.getDropped());
+    }
+
+    @Test
+    void dropsTheNewestWhenFull() throws Exception {
+        dispatcher = new AsyncDispatcher(1, 2, DispatchPolicy.DROP_NEWEST);
+        CountDownLatch release = block("");
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            dispatcher.execute("", () -> ran.add(n));
+        }
+        assertEquals(2, dispatcher.getQueued());
+        assertEquals(3, dispatcher.getDropped());
+        release.countDown();
+        awaitIdle();
+        assertEquals(Arrays.asList(0, 1), ran);
+    }
+
+    @Test
+    void dropsTheOldestWhenFull() throws Exception {
+        dispatcher = new AsyncDispatcher(1, 2, DispatchPolicy.DROP_OLDEST);
+        CountDownLatch release = block("");
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            dispatcher.execute("", () -> ran.add(n));
+        }
+        assertEquals(3, dispatcher.getDropped());
+        release.countDown();
+        awaitIdle();
+        assertEquals(Arrays.asList(3, 4), ran);
+    }
+
+    @Test
+    void blocksUntilThereIsRoom() throws Exception {
+        dispatcher = new AsyncDispatcher(1, 1, DispatchPolicy.BLOCK);
+        CountDownLatch release = block("");
+        dispatcher.execute("", () -> { });
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            dispatcher.execute("", () -> { });
+            queued.countDown();
+        });
+        producer.start();
+        assertFalse(queued.await(200, TimeUnit.MILLISECONDS)); // Waiting for room
+        release.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getDropped());
+    }
+
+    @Test
+    void shutdownDrainsTheQueueAndDropsLaterEvents() throws Exception {
+        dispatcher = new AsyncDispatcher(1, 100, DispatchPolicy.BLOCK);
+        CountDownLatch release = block("");
+        CountDownLatch ran = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++)
+            dispatcher.execute("", ran::countDown);
+        dispatcher.shutdown();
+        dispatcher.execute("", ran::countDown);
+        assertEquals(1, dispatcher.getDropped());
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void runsWorkerHandlersOffTheReadingThread() throws Exception {
+        dispatcher = new AsyncDispatcher(2, 100, DispatchPolicy.BLOCK);
+        Worker worker = Lines.worker();
+        worker.setAsyncDispatcher(dispatcher);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch handled = new CountDownLatch(2);
+        worker.addCommandHandler("PRIVMSG", (w, p) -> {
+            threads.add(Thread.currentThread().getName() + " " + p.getMsg());
+            handled.countDown();
+        });
+        worker.addListener(EventType.KICKED, (w, p) -> {
+            threads.add(Thread.currentThread().getName() + " kicked");
+            handled.countDown();
+        });
+        Lines.receive(worker, ":me!u@h JOIN #chan", ":a!u@h PRIVMSG #chan :hi", ":op!u@h KICK #chan me :out");
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(2, threads.size(), threads.toString());
+        for (String thread : threads)
+            assertTrue(thread.startsWith("blueirc-dispatch-"), thread);
+        assertTrue(threads.get(0).endsWith(" hi")); // Same channel, so in order
+    }
+}
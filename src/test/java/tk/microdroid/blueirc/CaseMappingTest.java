@@ -0,0 +1,48 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaseMappingTest {
+
+    @Test
+    void foldsAccordingToTheMapping() {
+        assertEquals("nick[]\\^", CaseMapping.ASCII.fold("NICK[]\\^"));
+        assertEquals("nick{}|~", CaseMapping.RFC1459.fold("NICK[]\\^"));
+        assertEquals("nick{}|^", CaseMapping.STRICT_RFC1459.fold("NICK[]\\^"));
+    }
+
+    @Test
+    void keepsFoldedNames() {
+        String name = "#already_folded";
+        assertSame(name, CaseMapping.RFC1459.fold(name));
+    }
+
+    @Test
+    void parsesTokens() {
+        assertEquals(CaseMapping.ASCII, CaseMapping.of("ascii"));
+        assertEquals(CaseMapping.RFC1459, CaseMapping.of("RFC1459"));
+        assertEquals(CaseMapping.STRICT_RFC1459, CaseMapping.of("strict-rfc1459"));
+        assertEquals("strict-rfc1459", CaseMapping.STRICT_RFC1459.getToken());
+    }
+
+    @Test
+    void unknownMappingsFallBackToAscii() {
+        assertEquals(CaseMapping.ASCII, CaseMapping.of("rfc7613"));
+    }
+
+    @Test
+    void workerUsesTheAdvertisedMapping() {
+        Worker worker = Lines.worker();
+        assertEquals(CaseMapping.RFC1459, worker.getCaseMapping());
+        Lines.receive(worker, ":irc.example.net 005 me CASEMAPPING=rfc7613 :are supported by this server",
+                ":me!u@h JOIN #Chan",
+                ":Foo[1]!u@h JOIN #chan");
+        assertEquals(CaseMapping.ASCII, worker.getCaseMapping());
+        Channel chan = worker.getChannel("#CHAN");
+        assertNotNull(chan);
+        assertTrue(chan.hasUser("foo[1]"));
+        assertFalse(chan.hasUser("foo{1}"));
+    }
+}
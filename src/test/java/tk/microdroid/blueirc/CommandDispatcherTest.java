@@ -0,0 +1,70 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandDispatcherTest {
+
+    @Test
+    void dispatchesByCommandInOrder() {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        List<String> calls = new ArrayList<>();
+        dispatcher.add("PRIVMSG", (w, p) -> calls.add("first"));
+        dispatcher.add("PRIVMSG", (w, p) -> calls.add("second"));
+        dispatcher.add("NOTICE", (w, p) -> calls.add("notice"));
+        dispatcher.dispatch(null, new Parser(":a!b@c PRIVMSG #chan :hi"));
+        assertEquals(Arrays.asList("first", "second"), calls);
+    }
+
+    @Test
+    void dispatchesNumerics() {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        List<Integer> calls = new ArrayList<>();
+        dispatcher.add("372", (w, p) -> calls.add(p.getNumeric()));
+        dispatcher.add(376, (w, p) -> calls.add(p.getNumeric()));
+        dispatcher.dispatch(null, new Parser(":s 372 me :- motd"));
+        dispatcher.dispatch(null, new Parser(":s 376 me :End"));
+        dispatcher.dispatch(null, new Parser(":s 375 me :Start"));
+        assertEquals(Arrays.asList(372, 376), calls);
+    }
+
+    @Test
+    void dispatchesUnknownCommandsByName() {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        List<String> calls = new ArrayList<>();
+        dispatcher.add("FOOBAR", (w, p) -> calls.add(p.getAction()));
+        dispatcher.dispatch(null, new Parser(":a!b@c FOOBAR x"));
+        dispatcher.dispatch(null, new Parser(":a!b@c OTHER x"));
+        assertEquals(Collections.singletonList("FOOBAR"), calls);
+    }
+
+    @Test
+    void removesHandlers() {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        List<String> calls = new ArrayList<>();
+        CommandHandler handler = (w, p) -> calls.add("known");
+        CommandHandler other = (w, p) -> calls.add("other");
+        dispatcher.add("PRIVMSG", handler);
+        dispatcher.add("FOOBAR", other);
+        dispatcher.remove("PRIVMSG", handler);
+        dispatcher.remove("FOOBAR", other);
+        dispatcher.dispatch(null, new Parser(":a!b@c PRIVMSG #chan :hi"));
+        dispatcher.dispatch(null, new Parser(":a!b@c FOOBAR x"));
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void userHandlersRunAfterProtocolHandling() {
+        Worker worker = Lines.worker();
+        List<Boolean> joined = new ArrayList<>();
+        worker.addCommandHandler("JOIN", (w, p) -> joined.add(w.getChannel("#chan") != null));
+        Lines.receive(worker, ":me!user@host JOIN #chan");
+        assertEquals(Collections.singletonList(true), joined);
+    }
+}
@@ -0,0 +1,98 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventListenerTest {
+
+    @Test
+    void listenersGetTypedArgumentsAfterTheHandler() {
+        Worker worker = Lines.worker();
+        List<String> calls = new ArrayList<>();
+        worker.setEventHandler((event, args) -> {
+            if (event == Event.KICKED) calls.add("handler");
+        });
+        worker.addListener(EventType.KICKED, (w, p) -> calls.add("listener " + p.getActionArgs().get(0)));
+        worker.addListener(EventType.JOINED_CHANNEL, (w, chan) -> calls.add("joined " + chan));
+        Lines.receive(worker, ":me!u@h JOIN #chan", ":op!u@h KICK #chan me :out");
+        assertEquals(Arrays.asList("handler", "listener #chan"), calls);
+    }
+
+    @Test
+    void removedListenersAreNotCalled() {
+        Worker worker = Lines.worker();
+        List<String> joined = new ArrayList<>();
+        EventListener<String> listener = (w, chan) -> joined.add(chan);
+        worker.addListener(EventType.JOINED_CHANNEL, listener);
+        Lines.receive(worker, ":me!u@h JOIN #a", ":s 366 me #a :End");
+        worker.removeListener(EventType.JOINED_CHANNEL, listener);
+        Lines.receive(worker, ":me!u@h JOIN #b", ":s 366 me #b :End");
+        assertEquals(Collections.singletonList("#a"), joined);
+    }
+
+    @Test
+    void channelHandlersOnlyGetTheirChannel() {
+        Worker worker = Lines.worker();
+        List<String> calls = new ArrayList<>();
+        worker.addCommandHandler("PRIVMSG", "#Chan", (w, p) -> calls.add(p.getMsg()));
+        worker.addCommandHandler("332", "#chan", (w, p) -> calls.add("topic " + p.getMsg()));
+        Lines.receive(worker, ":me!u@h JOIN #chan", ":me!u@h JOIN #other",
+                ":a!u@h PRIVMSG #CHAN :mine",
+                ":a!u@h PRIVMSG #other :not mine",
+                ":s 332 me #chan :the topic",
+                ":s 332 me #other :other topic");
+        assertEquals(Arrays.asList("mine", "topic the topic"), calls);
+    }
+
+    @Test
+    void channelHandlersFollowTheCaseMapping() {
+        Worker worker = Lines.worker();
+        List<String> calls = new ArrayList<>();
+        CommandHandler handler = (w, p) -> calls.add(p.getMsg());
+        worker.addCommandHandler("PRIVMSG", "#chan[1]", handler);
+        Lines.receive(worker, ":me!u@h JOIN #chan[1]", ":a!u@h PRIVMSG #chan{1} :rfc1459");
+        Lines.receive(worker, ":s 005 me CASEMAPPING=ascii :are supported by this server",
+                ":a!u@h PRIVMSG #chan{1} :ascii", ":a!u@h PRIVMSG #CHAN[1] :same");
+        worker.removeCommandHandler("PRIVMSG", "#chan[1]", handler);
+        Lines.receive(worker, ":a!u@h PRIVMSG #chan[1] :removed");
+        assertEquals(Arrays.asList("rfc1459", "same"), calls);
+    }
+
+    @Test
+    void handlersAddedConcurrentlyAreAllKept() throws Exception {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        AtomicInteger calls = new AtomicInteger();
+        int threads = 8, perThread = 500;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> adders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    dispatcher.add("PRIVMSG", (w, p) -> calls.incrementAndGet());
+                    dispatcher.add(1, (w, p) -> calls.incrementAndGet());
+                }
+            });
+            thread.start();
+            adders.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : adders)
+            thread.join();
+        dispatcher.dispatch(null, new Parser(":a!b@c PRIVMSG #chan :hi"));
+        dispatcher.dispatch(null, new Parser(":s 001 me :Welcome"));
+        assertEquals(2 * threads * perThread, calls.get());
+    }
+}
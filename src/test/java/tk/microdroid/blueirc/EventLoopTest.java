@@ -0,0 +1,105 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopTest {
+
+    private static Worker worker(String server, int port, EventLoop loop, BlockingQueue<Event> events) {
+        Worker worker = new Worker(server, port, "me", "me_", "user", null, null, false, false);
+        worker.setEventLoop(loop);
+        worker.setEventHandler((event, args) -> {
+            if (event != Event.DATA_RECEIVED && event != Event.DATA_SENT) events.add(event);
+        });
+        return worker;
+    }
+
+    @Test
+    void registersAndAnswersPing() throws Exception {
+        EventLoop loop = new EventLoop();
+        try (FakeServer server = new FakeServer()) {
+            BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+            Worker worker = worker("localhost", server.port(), loop, events);
+            worker.setReconnectDelay(0);
+            worker.start();
+            assertEquals("CAP LS", server.next());
+            server.send(":irc.example.net CAP * LS :multi-prefix");
+            assertEquals("NICK me", server.expect("NICK"));
+            server.send(":irc.example.net 001 me :Welcome");
+            assertEquals(Event.CONNECTED, events.poll(5, TimeUnit.SECONDS));
+            server.send("PING :token");
+            assertEquals("PONG :token", server.expect("PONG"));
+        } finally {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    void unknownHostIsReported() throws Exception {
+        EventLoop loop = new EventLoop();
+        try {
+            BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+            Worker worker = worker("host.invalid", 6667, loop, events);
+            worker.setReconnectDelay(0);
+            worker.start();
+            assertEquals(Event.UNKNOWN_HOST, events.poll(10, TimeUnit.SECONDS));
+            assertEquals(Event.DISCONNECTED, events.poll(5, TimeUnit.SECONDS));
+        } finally {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    void noReconnectAfterShutdown() throws Exception {
+        EventLoop loop = new EventLoop();
+        try (FakeServer server = new FakeServer()) {
+            BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+            Worker worker = worker("localhost", server.port(), loop, events);
+            worker.setReconnectDelay(50);
+            worker.start();
+            assertEquals("CAP LS", server.next());
+            loop.shutdown();
+            assertEquals(Event.DISCONNECTED, events.poll(5, TimeUnit.SECONDS));
+            assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(1, server.accepted());
+        }
+    }
+
+    @Test
+    void connectingOnAStoppedLoopIsReported() throws Exception {
+        EventLoop loop = new EventLoop();
+        loop.shutdown();
+        BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        Worker worker = worker("localhost", 6667, loop, events);
+        worker.setReconnectDelay(50);
+        worker.start();
+        assertEquals(Event.UNKNOWN_ERROR, events.poll(5, TimeUnit.SECONDS));
+        assertEquals(Event.DISCONNECTED, events.poll(5, TimeUnit.SECONDS));
+        assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failingHandlerIsReported() throws Exception {
+        EventLoop loop = new EventLoop();
+        try (FakeServer server = new FakeServer()) {
+            BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+            Worker worker = worker("localhost", server.port(), loop, events);
+            worker.setReconnectDelay(0);
+            worker.addCommandHandler("PRIVMSG", (w, p) -> {
+                throw new IllegalStateException("broken handler");
+            });
+            worker.start();
+            assertEquals("CAP LS", server.next());
+            server.send(":a!b@c PRIVMSG me :hi");
+            assertEquals(Event.UNKNOWN_ERROR, events.poll(5, TimeUnit.SECONDS));
+            assertEquals(Event.DISCONNECTED, events.poll(5, TimeUnit.SECONDS));
+        } finally {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package tk.microdroid.blueirc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local IRC server for tests, which records the received lines and sends what it's told to.
+ */
+final class FakeServer implements AutoCloseable {
+    private final ServerSocket server = new ServerSocket(0);
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile Socket client;
+
+    FakeServer() throws IOException {
+        Thread thread = new Thread(this::accept, "fake-irc-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    int accepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Waits for the next line received from the client.
+     *
+     * @return The line, or null after 5 seconds
+     */
+    String next() throws InterruptedException {
+        return received.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for a line starting with {@code prefix}, skipping the others.
+     */
+    String expect(String prefix) throws InterruptedException {
+        String line;
+        while ((line = next()) != null)
+            if (line.startsWith(prefix))
+                return line;
+        return null;
+    }
+
+    /**
+     * Starts a {@code Worker} on its own threads, connected to this server, without flood control.
+     *
+     * @return The worker, once its first line is received
+     */
+    Worker connect() throws InterruptedException {
+        Worker worker = new Worker("localhost", port(), "me", "me_", "user", null, null, false, false);
+        worker.setReconnectDelay(0);
+        worker.setFloodControl(0, 0);
+        worker.setTargetQueueLimit(1000, OverflowPolicy.DROP_NEWEST);
+        worker.start();
+        if (!"CAP LS".equals(next()))
+            throw new AssertionError("The worker didn't connect");
+        return worker;
+    }
+
+    void send(String line) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                client = socket;
+                accepted.incrementAndGet();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null)
+                    received.add(line);
+            }
+        } catch (IOException ignored) {
+            // Closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Socket socket = client;
+        if (socket != null) socket.close();
+    }
+}
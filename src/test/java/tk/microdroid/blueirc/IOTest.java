@@ -0,0 +1,141 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IOTest {
+    private static final String HEADER = "PRIVMSG #chan :";
+
+    private static List<String> split(String text, int prefixLength) {
+        List<String> lines = new ArrayList<>();
+        IO.split("PRIVMSG", "#chan", text, prefixLength, lines);
+        return lines;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++)
+            builder.append(s);
+        return builder.toString();
+    }
+
+    private static String joined(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            assertTrue(line.startsWith(HEADER));
+            text.append(line, HEADER.length(), line.length());
+        }
+        return text.toString();
+    }
+
+    @Test
+    void shortMessageIsOneLine() {
+        assertEquals(Arrays.asList("PRIVMSG #chan :hello"), split("hello", 20));
+    }
+
+    @Test
+    void splitsOnNewlinesAndSkipsEmptyLines() {
+        assertEquals(Arrays.asList("PRIVMSG #chan :a", "PRIVMSG #chan :b"), split("a\r\n\nb\n", 20));
+    }
+
+    @Test
+    void splitsBetweenWordsWithinTheBudget() {
+        int prefix = 40;
+        String text = repeat("word ", 300).trim();
+        List<String> lines = split(text, prefix);
+        assertTrue(lines.size() > 1);
+        for (String line : lines) {
+            assertTrue(line.getBytes(StandardCharsets.UTF_8).length + prefix <= IO.MAX_LINE_LENGTH, line);
+            assertTrue(line.endsWith("word"), line);
+        }
+        assertEquals(text.replace(" ", ""), joined(lines).replace(" ", ""));
+    }
+
+    @Test
+    void neverCutsMultibyteCharacters() {
+        int prefix = 37;
+        String text = repeat("é€😀", 200); // 2, 3 and 4 bytes, without spaces
+        List<String> lines = split(text, prefix);
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            assertTrue(bytes.length + prefix <= IO.MAX_LINE_LENGTH);
+            assertEquals(line, new String(bytes, StandardCharsets.UTF_8));
+            assertFalse(Character.isHighSurrogate(line.charAt(line.length() - 1)));
+        }
+        assertEquals(text, joined(lines));
+    }
+
+    @Test
+    void longerPrefixMakesShorterLines() {
+        String text = repeat("x", 2000);
+        assertTrue(split(text, IO.MAX_PREFIX_LENGTH).size() > split(text, 20).size());
+        assertEquals(text, joined(split(text, IO.MAX_PREFIX_LENGTH)));
+    }
+
+    @Test
+    void splitsLargePastes() {
+        String text = repeat("lorem ipsum dolor sit amet été\n", 3500); // About 100 KB
+        List<String> lines = split(text, IO.MAX_PREFIX_LENGTH);
+        assertEquals(text.replace("\n", "").replace(" ", ""), joined(lines).replace(" ", ""));
+    }
+
+    @Test
+    void utf8LengthMatchesTheEncoder() {
+        String s = "aé€😀";
+        assertEquals(s.getBytes(StandardCharsets.UTF_8).length, IO.utf8Length(s, 0, s.length()));
+        assertEquals(1, IO.utf8Length("\ud83d", 0, 1)); // Written as '?'
+    }
+
+    @Test
+    void privmsgJoinsLinesWithNewlines() {
+        String msg = IO.privmsg("#chan", repeat("y", 1000));
+        for (String line : msg.split("\n"))
+            assertTrue(line.length() + IO.MAX_PREFIX_LENGTH <= IO.MAX_LINE_LENGTH);
+        assertEquals(repeat("y", 1000), joined(Arrays.asList(msg.split("\n"))));
+    }
+
+    @Test
+    void privmsgOfAnEmptyMessageHasNoText() {
+        assertEquals("PRIVMSG #chan", IO.privmsg("#chan", ""));
+    }
+
+    @Test
+    void writeTruncatesEachLineAtACharacter() throws Exception {
+        try (FakeServer server = new FakeServer()) {
+            Worker worker = server.connect();
+            String long1 = "PRIVMSG #chan :" + repeat("€", 200);
+            worker.send(long1 + "\nPRIVMSG #chan :second");
+            String received = server.expect("PRIVMSG");
+            assertTrue(long1.startsWith(received));
+            assertTrue(received.getBytes(StandardCharsets.UTF_8).length <= IO.MAX_LINE_LENGTH);
+            assertTrue(received.getBytes(StandardCharsets.UTF_8).length > IO.MAX_LINE_LENGTH - 3);
+            assertEquals("PRIVMSG #chan :second", server.expect("PRIVMSG"));
+        }
+    }
+
+    @Test
+    void workerPrivmsgUsesOurHostmask() throws Exception {
+        try (FakeServer server = new FakeServer()) {
+            Worker worker = server.connect();
+            server.send(":me!u@h JOIN #chan");
+            while (worker.getHostmask() == null)
+                Thread.sleep(10);
+            assertEquals("me!u@h", worker.getHostmask());
+            String text = repeat("z", 1200);
+            assertEquals(3, worker.privmsg("#chan", text));
+            StringBuilder got = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                String line = server.expect("PRIVMSG");
+                assertTrue(line.length() + "me!u@h".length() + 2 <= IO.MAX_LINE_LENGTH);
+                got.append(line.substring(HEADER.length()));
+            }
+            assertEquals(text, got.toString());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineFramerTest {
+    private static final Charset LATIN_1 = StandardCharsets.ISO_8859_1;
+
+    private static List<String> lines(LineFramer framer) {
+        List<String> lines = new ArrayList<>();
+        while (framer.next())
+            lines.add(framer.decode(LATIN_1));
+        return lines;
+    }
+
+    @Test
+    void splitsCrLfAndBareLf() throws IOException {
+        LineFramer framer = new LineFramer();
+        framer.feed(ByteBuffer.wrap("PING :a\r\nPING :b\nPING :c\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Arrays.asList("PING :a", "PING :b", "PING :c"), lines(framer));
+    }
+
+    @Test
+    void keepsPartialLinesUntilComplete() throws IOException {
+        LineFramer framer = new LineFramer();
+        framer.feed(ByteBuffer.wrap("PING :fir".getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(lines(framer).isEmpty());
+        framer.feed(ByteBuffer.wrap("st\r".getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(lines(framer).isEmpty());
+        framer.feed(ByteBuffer.wrap("\nPING".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Collections.singletonList("PING :first"), lines(framer));
+    }
+
+    @Test
+    void readsFromStreamsAndChannels() throws IOException {
+        byte[] bytes = "a\r\nb\r\n".getBytes(StandardCharsets.US_ASCII);
+        LineFramer framer = new LineFramer();
+        assertEquals(bytes.length, framer.fill(new ByteArrayInputStream(bytes)));
+        assertEquals(Arrays.asList("a", "b"), lines(framer));
+        framer = new LineFramer();
+        assertEquals(bytes.length, framer.fill(Channels.newChannel(new ByteArrayInputStream(bytes))));
+        assertEquals(Arrays.asList("a", "b"), lines(framer));
+    }
+
+    @Test
+    void growsForLongLines() throws IOException {
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'x');
+        String line = new String(chars);
+        LineFramer framer = new LineFramer();
+        for (int i = 0; i < line.length(); i += 1000)
+            framer.feed(ByteBuffer.wrap(line.substring(i, i + 1000).getBytes(StandardCharsets.US_ASCII)));
+        framer.feed(ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Collections.singletonList(line), lines(framer));
+    }
+
+    @Test
+    void rejectsEndlessLines() {
+        LineFramer framer = new LineFramer();
+        byte[] chunk = new byte[8192];
+        Arrays.fill(chunk, (byte) 'x');
+        assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 20; i++)
+                framer.feed(ByteBuffer.wrap(chunk));
+        });
+    }
+
+    @Test
+    void decodesUtf8OrFallsBack() {
+        byte[] utf8 = "héllo ✓".getBytes(StandardCharsets.UTF_8);
+        assertEquals("héllo ✓", LineFramer.decode(utf8, 0, utf8.length, LATIN_1));
+        byte[] latin1 = "héllo".getBytes(LATIN_1);
+        assertEquals("héllo", LineFramer.decode(latin1, 0, latin1.length, LATIN_1));
+        byte[] overlong = {'a', (byte) 0xC0, (byte) 0xAF};
+        assertEquals("a\u00C0\u00AF", LineFramer.decode(overlong, 0, overlong.length, LATIN_1));
+        byte[] surrogate = {(byte) 0xED, (byte) 0xA0, (byte) 0x80};
+        assertEquals("\u00ED\u00A0\u0080", LineFramer.decode(surrogate, 0, surrogate.length, LATIN_1));
+    }
+
+    @Test
+    void decodesSlices() {
+        byte[] bytes = "xxabcxx".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("abc", LineFramer.decode(bytes, 2, 3, LATIN_1));
+    }
+}
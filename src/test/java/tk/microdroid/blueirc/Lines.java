@@ -0,0 +1,32 @@
+package tk.microdroid.blueirc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Feeds received lines to a {@code Worker}, as its connection would.
+ */
+final class Lines {
+    private Lines() {
+    }
+
+    static Worker worker() {
+        return new Worker("irc.example.net", 6667, "me", "me_", "user", null, null, false, false);
+    }
+
+    static void receive(Worker worker, String... lines) {
+        LineFramer framer = new LineFramer();
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line).append("\r\n");
+        try {
+            framer.feed(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        while (framer.next())
+            worker.onLine(framer);
+    }
+}
@@ -0,0 +1,118 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+    private static final Parser MESSAGE = new Parser(":a!b@c PRIVMSG #chan :hi");
+
+    private static long size() {
+        MessageBuffer buffer = new MessageBuffer(1);
+        buffer.add(MESSAGE);
+        return buffer.getRetainedSize();
+    }
+
+    private static MessageBuffer buffer(MemoryBudget budget) {
+        return new MessageBuffer(1000, HistoryStorage.PARSERS, budget);
+    }
+
+    private static void add(MessageBuffer buffer, int count) {
+        for (int i = 0; i < count; i++)
+            buffer.add(MESSAGE);
+    }
+
+    @Test
+    void countsTheKeptMessages() {
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        MessageBuffer a = buffer(budget), b = buffer(budget);
+        add(a, 3);
+        add(b, 2);
+        assertEquals(5, budget.getMessageCount());
+        assertEquals(5 * size(), budget.getUsage());
+        a.clear();
+        assertEquals(2, budget.getMessageCount());
+        assertEquals(2 * size(), budget.getUsage());
+        assertEquals(0, budget.getEvictions());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyActiveBufferFirst() {
+        MemoryBudget budget = new MemoryBudget(10 * size());
+        MessageBuffer quiet = buffer(budget), busy = buffer(budget);
+        add(quiet, 5);
+        add(busy, 5);
+        add(busy, 3);
+        assertEquals(10 * size(), budget.getUsage());
+        assertEquals(2, quiet.size());
+        assertEquals(8, busy.size());
+        assertEquals(3, budget.getEvictions());
+    }
+
+    @Test
+    void evictsTheOldestMessagesFirst() {
+        MemoryBudget budget = new MemoryBudget(4 * size());
+        budget.setPolicy(EvictionPolicy.OLDEST_FIRST);
+        MessageBuffer a = buffer(budget), b = buffer(budget);
+        add(a, 2);
+        add(b, 2);
+        add(a, 2); // Evicts the first two of a, rather than b's which are older than the last ones of a
+        assertEquals(2, a.size());
+        assertEquals(2, b.size());
+        add(a, 1);
+        assertEquals(1, b.size());
+    }
+
+    @Test
+    void keepsTheMinimumMessagesOfEachBuffer() {
+        MemoryBudget budget = new MemoryBudget(size());
+        budget.setMinimumMessages(2);
+        MessageBuffer a = buffer(budget), b = buffer(budget);
+        add(a, 5);
+        add(b, 5);
+        assertEquals(2, a.size());
+        assertEquals(2, b.size());
+        assertTrue(budget.getUsage() > budget.getMaxBytes()); // Exceeded for the guarantees
+    }
+
+    @Test
+    void lowerLimitEvictsAtOnce() {
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        MessageBuffer a = buffer(budget);
+        add(a, 10);
+        budget.setMaxBytes(4 * size());
+        assertEquals(4, a.size());
+        assertEquals(4, budget.getMessageCount());
+        assertEquals(6, budget.getEvictions());
+    }
+
+    @Test
+    void releasedBuffersAreNoLongerCounted() {
+        MemoryBudget budget = new MemoryBudget(5 * size());
+        MessageBuffer a = buffer(budget), b = buffer(budget);
+        add(a, 4);
+        a.release();
+        assertEquals(0, budget.getUsage());
+        add(b, 5);
+        add(a, 10);
+        assertEquals(14, a.size()); // Only limited by its length now
+        assertEquals(5, b.size());
+    }
+
+    @Test
+    void sharedByWorkers() {
+        MemoryBudget budget = new MemoryBudget(10 * size());
+        Worker first = Lines.worker(), second = Lines.worker();
+        first.setMemoryBudget(budget);
+        second.setMemoryBudget(budget);
+        Lines.receive(first, ":me!u@h JOIN #a");
+        Lines.receive(second, ":me!u@h JOIN #b");
+        for (int i = 0; i < 8; i++) {
+            Lines.receive(first, ":a!b@c PRIVMSG #a :hi");
+            Lines.receive(second, ":a!b@c PRIVMSG #b :hi");
+        }
+        assertTrue(budget.getUsage() <= budget.getMaxBytes());
+        assertTrue(budget.getEvictions() > 0);
+        assertTrue(first.getChannel("#a").getMessages().size() < 8);
+    }
+}
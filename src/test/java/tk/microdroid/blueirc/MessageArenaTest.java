@@ -0,0 +1,72 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageArenaTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void readsLinesBack(boolean direct) {
+        MessageArena arena = new MessageArena(direct);
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            positions.add(arena.append("PRIVMSG #chan :héllo " + i));
+        MessageArena.View view = arena.view();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("PRIVMSG #chan :héllo " + i, view.read(positions.get(i)));
+            assertEquals(("PRIVMSG #chan :héllo " + i).length() + 1, view.length(positions.get(i)));
+        }
+    }
+
+    @Test
+    void keepsLinesLongerThanAChunk() {
+        MessageArena arena = new MessageArena(false);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            sb.append('x');
+        long position = arena.append(sb.toString());
+        assertEquals(sb.toString(), arena.view().read(position));
+        assertTrue(arena.reserved() >= 10004);
+    }
+
+    @Test
+    void releasesChunksOfRemovedLines() {
+        MessageArena arena = new MessageArena(false);
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            positions.add(arena.append("line " + i));
+        long full = arena.reserved();
+        MessageArena.View before = arena.view();
+        arena.release(positions.get(9000));
+        assertTrue(arena.reserved() < full);
+        assertEquals("line 9000", arena.view().read(positions.get(9000)));
+        assertEquals("line 0", before.read(positions.get(0))); // Views keep the released chunks
+        arena.clear();
+        assertEquals(0, arena.reserved());
+        assertEquals("new", arena.view().read(arena.append("new")));
+    }
+
+    @Test
+    void workerKeepsRawLines() {
+        Worker worker = Lines.worker();
+        worker.setHistoryStorage(HistoryStorage.DIRECT);
+        worker.setChannelBufferLength(2);
+        Lines.receive(worker, ":me!u@h JOIN #chan",
+                ":a!u@h PRIVMSG #chan :one",
+                ":a!u@h PRIVMSG #chan :two",
+                ":a!u@h PRIVMSG #chan :three");
+        MessageBuffer messages = worker.getChannel("#chan").getMessages();
+        assertEquals(2, messages.size());
+        assertEquals("two", messages.get(0).getMsg());
+        assertEquals("a", messages.get(1).getNick());
+        assertNotSame(messages.get(1), messages.get(1)); // Parsed again on each call
+        assertTrue(messages.getStorageSize() > 0);
+    }
+}
@@ -0,0 +1,108 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageBufferTest {
+
+    private static Parser message(int i) {
+        return new Parser(":nick!user@host PRIVMSG #chan :" + i);
+    }
+
+    private static List<String> texts(List<Parser> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Parser p : messages)
+            texts.add(p.getMsg());
+        return texts;
+    }
+
+    @ParameterizedTest
+    @EnumSource(HistoryStorage.class)
+    void keepsTheLatestMessages(HistoryStorage storage) {
+        MessageBuffer buffer = new MessageBuffer(100, storage, null);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(buffer.add(message(i)));
+        assertEquals(100, buffer.size());
+        assertEquals("900", buffer.get(0).getMsg());
+        assertEquals("999", buffer.get(99).getMsg());
+        assertEquals(1000, buffer.added());
+        assertNull(buffer.getAdded(899));
+        assertEquals("950", buffer.getAdded(950).getMsg());
+    }
+
+    @ParameterizedTest
+    @EnumSource(HistoryStorage.class)
+    void snapshotsDontSeeLaterMessages(HistoryStorage storage) {
+        MessageBuffer buffer = new MessageBuffer(10, storage, null);
+        for (int i = 0; i < 5; i++)
+            buffer.add(message(i));
+        List<Parser> snapshot = buffer.snapshot();
+        for (int i = 5; i < 8; i++)
+            buffer.add(message(i));
+        assertEquals(5, snapshot.size());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), texts(snapshot));
+        assertEquals(Arrays.asList("5", "6", "7"), texts(buffer.last(3)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(HistoryStorage.class)
+    void snapshotsKeepEvictedMessages(HistoryStorage storage) {
+        MessageBuffer buffer = new MessageBuffer(10, storage, null);
+        for (int i = 0; i < 10; i++)
+            buffer.add(message(i));
+        List<Parser> snapshot = buffer.snapshot();
+        for (int i = 10; i < 300; i++) // Evicting the chunks of the snapshot
+            buffer.add(message(i));
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), texts(snapshot));
+        assertEquals("290", buffer.get(0).getMsg());
+    }
+
+    @Test
+    void evictedChunksAreDropped() {
+        MessageBuffer buffer = new MessageBuffer(10);
+        Parser first = message(0);
+        WeakReference<Parser> evicted = new WeakReference<>(first);
+        buffer.add(first);
+        first = null;
+        for (int i = 1; i < 200; i++)
+            buffer.add(message(i));
+        for (int i = 0; i < 10 && evicted.get() != null; i++)
+            System.gc();
+        assertNull(evicted.get());
+    }
+
+    @ParameterizedTest
+    @EnumSource(HistoryStorage.class)
+    void retainedSizeFollowsEvictions(HistoryStorage storage) {
+        MessageBuffer buffer = new MessageBuffer(10, storage, null);
+        for (int i = 0; i < 10; i++)
+            buffer.add(message(i));
+        long full = buffer.getRetainedSize();
+        assertTrue(full > 0);
+        buffer.add(message(1)); // Same length as the evicted one
+        assertEquals(full, buffer.getRetainedSize());
+        buffer.setCapacity(5);
+        assertEquals(5, buffer.size());
+        assertEquals(full / 2, buffer.getRetainedSize());
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getRetainedSize());
+        buffer.add(message(42));
+        assertEquals("42", buffer.get(0).getMsg());
+    }
+
+    @Test
+    void zeroCapacityKeepsNothing() {
+        MessageBuffer buffer = new MessageBuffer(0);
+        assertFalse(buffer.add(message(0)));
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageIndexTest {
+    private Worker worker;
+    private MessageIndex index;
+
+    @BeforeEach
+    void join() {
+        worker = Lines.worker();
+        worker.setMessageIndexing(true);
+        index = worker.getMessageIndex();
+        Lines.receive(worker, ":me!u@h JOIN #a", ":me!u@h JOIN #b");
+    }
+
+    private static List<String> texts(List<MessageIndex.Hit> hits) {
+        List<String> texts = new ArrayList<>();
+        for (MessageIndex.Hit hit : hits)
+            texts.add(hit.getMessage().getMsg());
+        return texts;
+    }
+
+    @Test
+    void findsMessagesWithAllTheWordsNewestFirst() {
+        Lines.receive(worker, ":alice!u@h PRIVMSG #a :The build failed again",
+                ":bob!u@h PRIVMSG #b :build passed",
+                ":alice!u@h PRIVMSG #b :BUILD FAILED, sorry");
+        List<MessageIndex.Hit> hits = index.search("build failed", 10);
+        assertEquals(2, hits.size());
+        assertEquals("BUILD FAILED, sorry", hits.get(0).getMessage().getMsg());
+        assertEquals("#b", hits.get(0).getChannel().getName());
+        assertEquals("alice", hits.get(0).getNick());
+        assertEquals(1, index.search("build", 1).size());
+        assertTrue(index.search("build missing", 10).isEmpty());
+    }
+
+    @Test
+    void matchesPrefixes() {
+        Lines.receive(worker, ":a!u@h PRIVMSG #a :failing test",
+                ":a!u@h PRIVMSG #a :failure",
+                ":a!u@h PRIVMSG #a :fail test",
+                ":a!u@h PRIVMSG #a :nothing");
+        assertEquals(3, index.search("fail*", 10).size());
+        assertEquals(2, index.search("fail* test", 10).size());
+        assertTrue(index.search("zzz*", 10).isEmpty());
+    }
+
+    @Test
+    void filtersByNickChannelAndTime() {
+        Lines.receive(worker, "@time=2020-01-01T00:00:00Z :Alice!u@h PRIVMSG #a :hello one",
+                "@time=2020-01-02T00:00:00Z :bob!u@h PRIVMSG #a :hello two",
+                "@time=2020-01-03T00:00:00Z :alice!u@h PRIVMSG #b :hello three");
+        assertEquals(2, index.search("hello", "ALICE", null, Long.MIN_VALUE, Long.MAX_VALUE, 10).size());
+        assertEquals(2, index.search("hello", null, "#A", Long.MIN_VALUE, Long.MAX_VALUE, 10).size());
+        long day2 = Instant.parse("2020-01-02T00:00:00Z").toEpochMilli();
+        List<MessageIndex.Hit> hits = index.search("", null, null, day2, Long.MAX_VALUE, 10);
+        assertEquals(2, hits.size());
+        assertEquals(day2, hits.get(1).getTime());
+        assertTrue(index.search("hello", "nobody", null, Long.MIN_VALUE, Long.MAX_VALUE, 10).isEmpty());
+    }
+
+    @Test
+    void evictedMessagesAndLeftChannelsDontMatch() {
+        worker.setChannelBufferLength(2);
+        Lines.receive(worker, ":me!u@h JOIN #c",
+                ":a!u@h PRIVMSG #c :old word",
+                ":a!u@h PRIVMSG #c :filler",
+                ":a!u@h PRIVMSG #c :filler",
+                ":a!u@h PRIVMSG #a :word in a");
+        assertEquals(1, index.search("word", 10).size());
+        Lines.receive(worker, ":me!u@h PART #a");
+        assertTrue(index.search("word", 10).isEmpty());
+    }
+
+    @Test
+    void compactionForgetsLeftChannelsAndTheirNicks() throws Exception {
+        worker.setPreserveChannels(false);
+        worker.setChannelBufferLength(100);
+        Lines.receive(worker, ":me!u@h JOIN #old", ":gone!u@h PRIVMSG #old :unique words here");
+        WeakReference<Channel> old = new WeakReference<>(worker.getChannel("#old"));
+        int lists = index.getListCount();
+        Lines.receive(worker, ":me!u@h PART #old");
+        for (int i = 0; i < 5000; i++)
+            Lines.receive(worker, ":a!u@h PRIVMSG #a :same");
+        assertTrue(index.size() < 5000); // Compacted
+        assertTrue(index.getListCount() < lists);
+        assertTrue(index.search("", "gone", null, Long.MIN_VALUE, Long.MAX_VALUE, 10).isEmpty());
+        assertEquals(3, index.search("same", 3).size());
+        assertEquals("#a", index.search("same", 1).get(0).getChannel().getName());
+        for (int i = 0; i < 10 && old.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(old.get(), "the left channel is still referenced");
+    }
+}
@@ -0,0 +1,176 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+    @TempDir
+    Path dir;
+
+    private static List<Long> sequencesFrom(MessageLog log, String target, long sequence) {
+        List<Long> sequences = new ArrayList<>();
+        log.readFrom(target, sequence, (s, time, line) -> sequences.add(s));
+        return sequences;
+    }
+
+    private static long segments(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void readsFromTheMiddleOfASegment() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, log.append(i % 2 == 0 ? "#even" : "#odd", 1000 + i, "PRIVMSG #chan :" + i));
+            List<Long> all = sequencesFrom(log, null, 700);
+            assertEquals(300, all.size());
+            assertEquals(700, (long) all.get(0));
+            assertEquals(999, (long) all.get(299));
+            List<Long> odd = sequencesFrom(log, "#odd", 700);
+            assertEquals(150, odd.size());
+            assertEquals(701, (long) odd.get(0));
+            assertTrue(sequencesFrom(log, null, 1000).isEmpty());
+            assertEquals(1000, sequencesFrom(log, null, 0).size());
+        }
+    }
+
+    @Test
+    void readsAcrossSegments() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            log.setSegmentSize(4096);
+            for (int i = 0; i < 500; i++)
+                log.append("#chan", 1000 + i, "PRIVMSG #chan :message number " + i);
+            assertTrue(segments(dir) > 1);
+            List<Long> from = sequencesFrom(log, "#chan", 123);
+            assertEquals(377, from.size());
+            assertEquals(123, (long) from.get(0));
+            List<Parser> since = log.since("#chan", 1400);
+            assertEquals(100, since.size());
+            assertEquals("message number 400", since.get(0).getMsg());
+        }
+    }
+
+    @Test
+    void readsTheLastLinesOfATarget() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            for (int i = 0; i < 100; i++)
+                log.append(i % 10 == 0 ? "#rare" : "#chan", 1000 + i, "PRIVMSG #chan :" + i);
+            List<Parser> last = log.last("#rare", 3);
+            assertEquals(3, last.size());
+            assertEquals(Arrays.asList("70", "80", "90"),
+                    Arrays.asList(last.get(0).getMsg(), last.get(1).getMsg(), last.get(2).getMsg()));
+            assertEquals(10, log.last("#rare", 50).size());
+        }
+    }
+
+    @Test
+    void usesTheServerTimeOfTaggedLines() throws Exception {
+        String time = "2020-01-02T03:04:05.678Z";
+        try (MessageLog log = new MessageLog(dir)) {
+            long before = System.currentTimeMillis();
+            log.append("#chan", "@time=" + time + " :a!b@c PRIVMSG #chan :tagged");
+            log.append("#chan", ":a!b@c PRIVMSG #chan :untagged");
+            List<Long> times = new ArrayList<>();
+            log.readFrom(null, 0, (sequence, t, line) -> times.add(t));
+            assertEquals(Instant.parse(time).toEpochMilli(), (long) times.get(0));
+            assertTrue(times.get(1) >= before);
+        }
+    }
+
+    @Test
+    void logsTheChannelMessagesOfAWorker() throws Exception {
+        Worker worker = Lines.worker();
+        try (MessageLog log = new MessageLog(dir)) {
+            worker.setMessageLog(log);
+            String time = "2020-01-02T03:04:05.678Z";
+            Lines.receive(worker, ":me!user@host JOIN #chan",
+                    "@time=" + time + " :a!b@c PRIVMSG #Chan :tagged",
+                    ":a!b@c PRIVMSG #chan :untagged");
+            List<Long> times = new ArrayList<>();
+            log.readFrom("#chan", 0, (sequence, t, line) -> times.add(t));
+            assertEquals(2, times.size());
+            assertEquals(Instant.parse(time).toEpochMilli(), (long) times.get(0));
+        }
+    }
+
+    @Test
+    void keepsTimesWhichGoBack() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            log.append("#chan", 2000, "a");
+            log.append("#chan", 1000, "b");
+            List<Long> times = new ArrayList<>();
+            log.readFrom(null, 0, (sequence, t, line) -> times.add(t));
+            assertEquals(Arrays.asList(2000L, 1000L), times);
+        }
+    }
+
+    @Test
+    void readsSinceATimeAfterATimeInTheFuture() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            log.append("#chan", 1000, "early");
+            log.append("#chan", Long.MAX_VALUE / 2, "future");
+            for (int i = 0; i < 1000; i++)
+                log.append("#chan", 2000 + i, "m" + i);
+            List<Long> times = new ArrayList<>();
+            log.readSince(null, 2500, (sequence, t, line) -> times.add(t));
+            assertEquals(501, times.size());
+            assertEquals(Long.MAX_VALUE / 2, (long) times.get(0));
+            assertEquals(2500L, (long) times.get(1));
+            assertEquals(2999L, (long) times.get(500));
+        }
+    }
+
+    @Test
+    void reopensAndContinuesTheSequence() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            for (int i = 0; i < 10; i++)
+                log.append("#chan", 1000 + i, "line " + i);
+        }
+        try (MessageLog log = new MessageLog(dir)) {
+            assertEquals(10, log.getNextSequence());
+            assertEquals(10, log.append("#chan", 2000, "line 10"));
+            List<String> lines = new ArrayList<>();
+            log.readFrom("#chan", 8, (sequence, t, line) -> lines.add(StandardCharsets.UTF_8.decode(line).toString()));
+            assertEquals(Arrays.asList("line 8", "line 9", "line 10"), lines);
+        }
+    }
+
+    @Test
+    void retentionDeletesTheOldestSegments() throws Exception {
+        try (MessageLog log = new MessageLog(dir)) {
+            log.setSegmentSize(4096);
+            for (int i = 0; i < 500; i++)
+                log.append("#chan", 1000 + i, "PRIVMSG #chan :message number " + i);
+            long size = log.getSize();
+            log.setRetention(0, 8192);
+            assertTrue(log.getSize() < size);
+            assertTrue(log.getSize() <= 8192 + 4096);
+            List<Long> all = sequencesFrom(log, null, 0);
+            assertEquals(499, (long) all.get(all.size() - 1));
+            assertTrue(all.get(0) > 0);
+        }
+    }
+
+    @Test
+    void syncsAndRejectsAppendsOnceClosed() throws Exception {
+        MessageLog log = new MessageLog(dir);
+        log.append("#chan", 1000, "line");
+        log.sync();
+        log.close();
+        assertThrows(IOException.class, () -> log.append("#chan", 1001, "late"));
+    }
+}
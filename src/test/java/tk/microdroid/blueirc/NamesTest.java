@@ -0,0 +1,117 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NamesTest {
+    private Worker worker;
+    private Channel chan;
+
+    @BeforeEach
+    void join() {
+        worker = Lines.worker();
+        Lines.receive(worker, ":me!u@h JOIN #chan");
+        chan = worker.getChannel("#chan");
+    }
+
+    @Test
+    void membersArePublishedAtTheEndOfNames() {
+        Lines.receive(worker, ":s 353 me = #chan :@op +voice plain");
+        assertFalse(chan.hasUser("op"));
+        Lines.receive(worker, ":s 353 me = #chan :more", ":s 366 me #chan :End of /NAMES list.");
+        assertEquals(4, chan.getUsers().size());
+        assertEquals("@", chan.getPrefix("op"));
+        assertEquals("+", chan.getPrefix("voice"));
+        assertEquals("", chan.getPrefix("plain"));
+        assertEquals("o", chan.getModes("op"));
+        assertEquals("v", chan.getModes("voice"));
+        assertNull(chan.getPrefix("nobody"));
+    }
+
+    @Test
+    void usesThePrefixesOfTheServer() {
+        Lines.receive(worker, ":s 005 me PREFIX=(qaohv)~&@%+ :are supported by this server",
+                ":s 353 me = #chan :~owner &admin %half -notaprefix",
+                ":s 366 me #chan :End of /NAMES list.");
+        assertEquals("q", chan.getModes("owner"));
+        assertEquals("a", chan.getModes("admin"));
+        assertEquals("h", chan.getModes("half"));
+        assertTrue(chan.hasUser("-notaprefix"));
+    }
+
+    @Test
+    void keepsEveryPrefixAndDropsUserhosts() {
+        Lines.receive(worker, ":s 353 me = #chan :@+both!u@host.example plain!x@y",
+                ":s 366 me #chan :End of /NAMES list.");
+        assertEquals("@+", chan.getPrefix("both"));
+        assertEquals("ov", chan.getModes("both"));
+        assertEquals("both", chan.getUser("both").getNick());
+        assertTrue(chan.hasUser("plain"));
+    }
+
+    @Test
+    void newListReplacesTheUsers() {
+        Lines.receive(worker, ":s 353 me = #chan :@me gone stays", ":s 366 me #chan :End");
+        Lines.receive(worker, ":s 353 me = #chan :@me +stays", ":s 366 me #chan :End");
+        assertFalse(chan.hasUser("gone"));
+        assertNull(worker.getUser("gone"));
+        assertEquals("+", chan.getPrefix("stays"));
+    }
+
+    @Test
+    void keepsTheChangesMadeDuringTheList() {
+        Lines.receive(worker, ":s 353 me = #chan :@me alice bob carol dave",
+                ":new!u@h JOIN #chan",
+                ":bob!u@h QUIT :gone",
+                ":carol!u@h PART #chan",
+                ":dave!u@h NICK david",
+                ":s 353 me = #chan :erin",
+                ":s 366 me #chan :End of /NAMES list.");
+        assertTrue(chan.hasUser("new"));
+        assertSame(worker.getUser("new"), chan.getUser("new"));
+        assertFalse(chan.hasUser("bob"));
+        assertNull(worker.getUser("bob"));
+        assertFalse(chan.hasUser("carol"));
+        assertFalse(chan.hasUser("dave"));
+        assertEquals("david", chan.getUser("david").getNick());
+        assertEquals(5, chan.getUsers().size()); // me, alice, new, david and erin
+    }
+
+    @Test
+    void keepsTheChangesToPublishedMembersDuringANewList() {
+        Lines.receive(worker, ":s 353 me = #chan :@me alice bob", ":s 366 me #chan :End");
+        Lines.receive(worker, ":s 353 me = #chan :@me alice bob",
+                ":new!u@h JOIN #chan",
+                ":bob!u@h QUIT :gone",
+                ":s 366 me #chan :End");
+        assertTrue(chan.hasUser("new"));
+        assertTrue(worker.getUser("new").getChannels().contains(chan));
+        assertFalse(chan.hasUser("bob"));
+        assertNull(worker.getUser("bob"));
+    }
+
+    @Test
+    void firesJoinedChannel() {
+        List<Object> joined = new ArrayList<>();
+        worker.setEventHandler((event, args) -> {
+            if (event == Event.JOINED_CHANNEL) joined.add(args);
+        });
+        Lines.receive(worker, ":s 353 me = #chan :@me", ":s 366 me #chan :End");
+        assertEquals(1, joined.size());
+        assertEquals("#chan", joined.get(0));
+    }
+
+    @Test
+    void snapshotsKeepTheirMembers() {
+        Lines.receive(worker, ":s 353 me = #chan :a b", ":s 366 me #chan :End");
+        Channel.Snapshot before = chan.snapshot();
+        Lines.receive(worker, ":c!u@h JOIN #chan");
+        assertEquals(2, before.getUsers().size());
+        assertTrue(chan.hasUser("c"));
+    }
+}
@@ -0,0 +1,154 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    private static List<String> drain(OutboundQueue queue, int max) {
+        List<Message> batch = new ArrayList<>();
+        queue.drainTo(batch, max);
+        List<String> lines = new ArrayList<>();
+        for (Message msg : batch)
+            lines.add(msg.getMsg());
+        return lines;
+    }
+
+    @Test
+    void holdsBackLinesAfterTheBurst() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(3, 60000);
+        for (int i = 0; i < 5; i++)
+            queue.offer(new Message("PRIVMSG #chan :" + i));
+        assertEquals(3, drain(queue, 64).size());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void sendsEverythingWithoutFloodControl() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        for (int i = 0; i < 20; i++)
+            queue.offer(new Message("PRIVMSG #chan :" + i));
+        assertEquals(20, drain(queue, 64).size());
+        assertEquals(-1, queue.delay());
+    }
+
+    @Test
+    void priorityLinesGoFirstAndAreNeverHeldBack() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(1, 60000);
+        queue.offer(new Message("PRIVMSG #chan :a"));
+        queue.offer(new Message("PRIVMSG #chan :b"));
+        queue.offer(new Message("PONG :token"));
+        assertEquals(Arrays.asList("PONG :token"), drain(queue, 64)); // Which still counts against the timer
+        queue.offer(new Message("QUIT :bye"));
+        assertEquals(1, queue.prioritySize());
+        assertEquals(0, queue.delay());
+        assertEquals(Arrays.asList("QUIT :bye"), drain(queue, 64));
+    }
+
+    @Test
+    void servesTargetsInTurn() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        for (int i = 0; i < 3; i++)
+            queue.offer(new Message("PRIVMSG #paste :" + i));
+        queue.offer(new Message("PRIVMSG #other :x"));
+        assertEquals(Arrays.asList("PRIVMSG #paste :0", "PRIVMSG #other :x", "PRIVMSG #paste :1", "PRIVMSG #paste :2"),
+                drain(queue, 64));
+    }
+
+    @Test
+    void limitsBatches() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        for (int i = 0; i < 10; i++)
+            queue.offer(new Message("PRIVMSG #chan :" + i));
+        assertEquals(4, drain(queue, 4).size());
+        assertEquals(6, queue.size());
+    }
+
+    @Test
+    void dropsNewestWhenFull() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        queue.setTargetLimit(2, OverflowPolicy.DROP_NEWEST);
+        queue.offer(new Message("PRIVMSG #chan :1"));
+        queue.offer(new Message("PRIVMSG #chan :2"));
+        Message third = new Message("PRIVMSG #chan :3");
+        assertSame(third, queue.offer(third));
+        assertEquals(1, queue.metrics().getDroppedMessages());
+        assertEquals(Arrays.asList("PRIVMSG #chan :1", "PRIVMSG #chan :2"), drain(queue, 64));
+    }
+
+    @Test
+    void dropsOldestWhenFull() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        queue.setTargetLimit(2, OverflowPolicy.DROP_OLDEST);
+        Message first = new Message("PRIVMSG #chan :1");
+        queue.offer(first);
+        queue.offer(new Message("PRIVMSG #chan :2"));
+        assertSame(first, queue.offer(new Message("PRIVMSG #chan :3")));
+        assertEquals(Arrays.asList("PRIVMSG #chan :2", "PRIVMSG #chan :3"), drain(queue, 64));
+    }
+
+    @Test
+    void coalescesTextWhenFull() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        queue.setTargetLimit(1, OverflowPolicy.COALESCE);
+        Message first = new Message("PRIVMSG #chan :hello");
+        queue.offer(first);
+        Message second = new Message("PRIVMSG #chan :world");
+        assertNull(queue.offer(second));
+        assertEquals(1, queue.metrics().getCoalescedMessages());
+        assertEquals(Arrays.asList("PRIVMSG #chan :hello world"), drain(queue, 64));
+        assertEquals(Arrays.asList(second), first.merged);
+    }
+
+    @Test
+    void coalescesOnlyTheSameCommand() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        queue.setTargetLimit(1, OverflowPolicy.COALESCE);
+        Message first = new Message("PRIVMSG #chan :hello");
+        queue.offer(first);
+        assertSame(first, queue.offer(new Message("NOTICE #chan :world")));
+        assertEquals(Arrays.asList("NOTICE #chan :world"), drain(queue, 64));
+    }
+
+    @Test
+    void neverCoalescesCtcp() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(0, 0);
+        queue.setTargetLimit(1, OverflowPolicy.COALESCE);
+        Message action = new Message("PRIVMSG #chan :\u0001ACTION waves\u0001");
+        queue.offer(action);
+        assertSame(action, queue.offer(new Message("PRIVMSG #chan :hi")));
+        assertEquals(Arrays.asList("PRIVMSG #chan :hi"), drain(queue, 64));
+        Message text = new Message("PRIVMSG #chan :hi");
+        queue.offer(text);
+        assertSame(text, queue.offer(new Message("PRIVMSG #chan :\u0001ACTION waves\u0001")));
+        assertEquals(0, queue.metrics().getCoalescedMessages());
+    }
+
+    @Test
+    void clearReturnsEverything() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setFloodControl(1, 60000);
+        queue.offer(new Message("PRIVMSG #a :1"));
+        queue.offer(new Message("PRIVMSG #b :2"));
+        queue.offer(new Message("NICK me"));
+        List<Message> unsent = new ArrayList<>();
+        queue.clear(unsent);
+        assertEquals(3, unsent.size());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,81 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParserTagsTest {
+
+    @Test
+    void skipsTagsWhenParsing() {
+        Parser p = new Parser("@id=123;+example.com/foo=bar :nick!user@host PRIVMSG #chan :hi");
+        assertTrue(p.hasTags());
+        assertEquals(Command.PRIVMSG, p.getCommand());
+        assertEquals("nick", p.getNick());
+        assertEquals("hi", p.getMsg());
+    }
+
+    @Test
+    void getsSingleTag() {
+        Parser p = new Parser("@id=123;+example.com/foo=bar;flag :a!b@c TAGMSG #chan");
+        assertEquals("123", p.getTag("id"));
+        assertEquals("bar", p.getTag("+example.com/foo"));
+        assertEquals("", p.getTag("flag"));
+        assertNull(p.getTag("missing"));
+        assertNull(p.getTag("i"));
+    }
+
+    @Test
+    void unescapesValues() {
+        Parser p = new Parser("@msg=a\\:b\\sc\\\\d\\re\\nf\\ :a!b@c PRIVMSG #chan :x");
+        assertEquals("a;b c\\d\re\nf", p.getTag("msg"));
+        assertEquals("a;b c\\d\re\nf", p.getTags().get("msg"));
+    }
+
+    @Test
+    void lastRepeatedKeyWins() {
+        Parser p = new Parser("@k=1;k=2 :a!b@c PRIVMSG #chan :x");
+        assertEquals("2", p.getTag("k"));
+    }
+
+    @Test
+    void buildsTagsMap() {
+        Map<String, String> tags = new Parser("@a=1;b;c=x\\sy :a!b@c PRIVMSG #chan :x").getTags();
+        assertEquals(3, tags.size());
+        assertEquals("1", tags.get("a"));
+        assertEquals("", tags.get("b"));
+        assertEquals("x y", tags.get("c"));
+    }
+
+    @Test
+    void linesWithoutTags() {
+        Parser p = new Parser(":a!b@c PRIVMSG #chan :x");
+        assertFalse(p.hasTags());
+        assertNull(p.getTag("time"));
+        assertTrue(p.getTags().isEmpty());
+        assertEquals(-1, p.getServerTime());
+    }
+
+    @Test
+    void parsesServerTime() {
+        String time = "2019-02-28T23:59:58.123Z";
+        Parser p = new Parser("@time=" + time + " :a!b@c PRIVMSG #chan :x");
+        assertEquals(Instant.parse(time).toEpochMilli(), p.getServerTime());
+        p = new Parser("@time=2024-02-29T00:00:00Z :a!b@c PRIVMSG #chan :x");
+        assertEquals(Instant.parse("2024-02-29T00:00:00Z").toEpochMilli(), p.getServerTime());
+    }
+
+    @Test
+    void rejectsInvalidServerTime() {
+        assertEquals(-1, new Parser("@time=yesterday :a!b@c PRIVMSG #chan :x").getServerTime());
+        assertEquals(-1, new Parser("@time=2019-13-01T00:00:00Z :a!b@c PRIVMSG #chan :x").getServerTime());
+    }
+
+    @Test
+    void onlyTagsFails() {
+        assertTrue(new Parser("@a=1").isFailed());
+    }
+}
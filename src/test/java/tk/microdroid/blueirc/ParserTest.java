@@ -0,0 +1,94 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParserTest {
+
+    @Test
+    void parsesActionWithIdent() {
+        Parser p = new Parser(":nick!user@host.example PRIVMSG #chan :hello there world");
+        assertEquals(MessageType.ACTION, p.getType());
+        assertEquals(Command.PRIVMSG, p.getCommand());
+        assertFalse(p.isFailed());
+        assertTrue(p.isHasIdent());
+        assertEquals("nick", p.getNick());
+        assertEquals("user", p.getUsername());
+        assertEquals("host.example", p.getHost());
+        assertEquals("PRIVMSG", p.getAction());
+        assertEquals(Collections.singletonList("#chan"), p.getActionArgs());
+        assertEquals("hello there world", p.getMsg());
+        assertEquals("hello", p.getCmd());
+        assertEquals(Arrays.asList("there", "world"), p.getCmdArgs());
+    }
+
+    @Test
+    void parsesNumeric() {
+        Parser p = new Parser(":irc.example.net 353 me = #chan :@op +voice user");
+        assertEquals(MessageType.NUMERIC, p.getType());
+        assertEquals(Command.NUMERIC, p.getCommand());
+        assertEquals(353, p.getNumeric());
+        assertEquals("irc.example.net", p.getServer());
+        assertEquals("353", p.getNumberAction());
+        assertEquals(Arrays.asList("me", "=", "#chan"), p.getActionArgs());
+        assertEquals("@op +voice user", p.getMsg());
+    }
+
+    @Test
+    void findsNumericByPositionRatherThanFirstOccurrence() {
+        Parser p = new Parser(":irc001.example.net 001 me :Welcome");
+        assertEquals(1, p.getNumeric());
+        assertEquals("irc001.example.net", p.getServer());
+        assertEquals("Welcome", p.getMsg());
+    }
+
+    @Test
+    void parsesLineWithoutPrefix() {
+        Parser p = new Parser("PING :irc.example.net");
+        assertEquals(MessageType.OTHER, p.getType());
+        assertEquals(Command.PING, p.getCommand());
+        assertEquals("irc.example.net", p.getMsg());
+    }
+
+    @Test
+    void keepsServerPrefixWithoutIdent() {
+        Parser p = new Parser(":irc.example.net NOTICE * :Looking up your hostname");
+        assertEquals(Command.NOTICE, p.getCommand());
+        assertFalse(p.isHasIdent());
+        assertEquals(Collections.singletonList("*"), p.getActionArgs());
+    }
+
+    @Test
+    void trimsLineEndings() {
+        Parser p = new Parser(":a!b@c JOIN #chan\r\n");
+        assertEquals(Command.JOIN, p.getCommand());
+        assertEquals(Collections.singletonList("#chan"), p.getCmdArgs());
+    }
+
+    @Test
+    void unknownCommandsKeepTheirName() {
+        Parser p = new Parser(":a!b@c FOOBAR #chan :x");
+        assertEquals(Command.UNKNOWN, p.getCommand());
+        assertEquals("FOOBAR", p.getAction());
+    }
+
+    @Test
+    void lineWithoutCommandFails() {
+        Parser p = new Parser(":onlyaprefix");
+        assertTrue(p.isFailed());
+        assertEquals(MessageType.UNKNOWN, p.getType());
+    }
+
+    @Test
+    void copyIsIndependent() {
+        Parser p = new Parser(":a!b@c PRIVMSG #chan :hi");
+        Parser copy = p.copy();
+        assertNotSame(p, copy);
+        assertEquals(p.getRaw(), copy.getRaw());
+        assertEquals("hi", copy.getMsg());
+    }
+}
@@ -0,0 +1,54 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReusableParserTest {
+
+    @Test
+    void resetDropsThePreviousLine() {
+        Parser p = Parser.reusable();
+        p.reset("@time=2020-01-01T00:00:00Z :a!b@c PRIVMSG #chan :first");
+        assertEquals("first", p.getMsg());
+        assertEquals("a", p.getNick());
+        assertSame(p, p.reset(":irc.example.net 001 me :Welcome"));
+        assertEquals(Command.NUMERIC, p.getCommand());
+        assertEquals(1, p.getNumeric());
+        assertEquals("irc.example.net", p.getServer());
+        assertFalse(p.hasTags());
+        assertEquals(-1, p.getServerTime());
+        assertEquals(Collections.singletonList("me"), p.getActionArgs());
+        assertEquals("Welcome", p.getMsg());
+    }
+
+    @Test
+    void retainCopiesOnlyReusedParsers() {
+        Parser reused = Parser.reusable().reset(":a!b@c PRIVMSG #chan :hi");
+        assertTrue(reused.isReusable());
+        Parser kept = reused.retain();
+        assertNotSame(reused, kept);
+        assertFalse(kept.isReusable());
+        reused.reset(":d!e@f NOTICE #other :later");
+        assertEquals("hi", kept.getMsg());
+        assertEquals("a", kept.getNick());
+
+        Parser plain = new Parser(":a!b@c PRIVMSG #chan :hi");
+        assertSame(plain, plain.retain());
+    }
+
+    @Test
+    void keptMessagesSurviveReuse() {
+        Worker worker = Lines.worker();
+        Lines.receive(worker, ":me!user@host JOIN #chan");
+        Channel chan = worker.getChannel("#chan");
+        Parser reused = Parser.reusable();
+        chan.addMessage(reused.reset(":a!b@c PRIVMSG #chan :one"));
+        chan.addMessage(reused.reset(":a!b@c PRIVMSG #chan :two"));
+        assertEquals("one", chan.getMessages().get(0).getMsg());
+        assertEquals("two", chan.getMessages().get(1).getMsg());
+        assertNotSame(reused, chan.getMessages().get(1));
+    }
+}
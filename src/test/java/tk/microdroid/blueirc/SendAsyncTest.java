@@ -0,0 +1,56 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SendAsyncTest {
+
+    @Test
+    void futureCompletesOnceWritten() throws Exception {
+        try (FakeServer server = new FakeServer()) {
+            Worker worker = server.connect();
+            CompletableFuture<Message> future = worker.sendAsync("PRIVMSG #chan :hi");
+            assertEquals("PRIVMSG #chan :hi", future.get(5, TimeUnit.SECONDS).getMsg());
+            assertEquals("PRIVMSG #chan :hi", server.expect("PRIVMSG"));
+        }
+    }
+
+    @Test
+    void futureFailsWhenDropped() throws Exception {
+        Worker worker = Lines.worker();
+        worker.setTargetQueueLimit(0, OverflowPolicy.DROP_NEWEST);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> worker.sendAsync("PRIVMSG #chan :hi").get(5, TimeUnit.SECONDS));
+        assertEquals(SendException.Reason.OVERFLOW, ((SendException) e.getCause()).getReason());
+        assertEquals(-1, worker.send("PRIVMSG #chan :again"));
+    }
+
+    @Test
+    void futureFailsWhenDisconnected() throws Exception {
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        try (FakeServer server = new FakeServer()) {
+            Worker worker = server.connect();
+            worker.setFloodControl(1, 60000);
+            for (int i = 0; i < 3; i++)
+                futures.add(worker.sendAsync("PRIVMSG #chan :" + i));
+        }
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> futures.get(2).get(5, TimeUnit.SECONDS));
+        assertEquals(SendException.Reason.DISCONNECTED, ((SendException) e.getCause()).getReason());
+    }
+
+    @Test
+    void rejectsEmptyMessages() {
+        Worker worker = Lines.worker();
+        assertEquals(-1, worker.send(""));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> worker.sendAsync(null).get());
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+    }
+}
@@ -0,0 +1,78 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+
+    @Test
+    void channelSnapshotDoesntChange() {
+        Worker worker = Lines.worker();
+        Lines.receive(worker, ":me!u@h JOIN #chan",
+                ":s 332 me #chan :old topic",
+                ":s 353 me = #chan :@me bob",
+                ":s 366 me #chan :End",
+                ":bob!u@h PRIVMSG #chan :before");
+        Channel chan = worker.getChannel("#chan");
+        Channel.Snapshot snapshot = chan.snapshot();
+        Lines.receive(worker, ":bob!u@h TOPIC #chan :new topic",
+                ":carol!u@h JOIN #chan",
+                ":bob!u@h PRIVMSG #chan :after",
+                ":me!u@h PART #chan");
+        assertEquals("#chan", snapshot.getName());
+        assertEquals("old topic", snapshot.getTopic());
+        assertEquals(2, snapshot.getUsers().size());
+        assertFalse(snapshot.hasUser("carol"));
+        assertEquals("@", snapshot.getPrefix("me"));
+        assertEquals("o", snapshot.getModes("ME"));
+        assertEquals(1, snapshot.getMessages().size());
+        assertFalse(snapshot.hasLeft());
+        assertEquals("new topic", chan.getTopic());
+        assertTrue(chan.hasLeft());
+    }
+
+    @Test
+    void bufferCanBeResizedWhileMessagesAreAdded() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(1000);
+        Parser message = new Parser(":a!b@c PRIVMSG #chan :hi");
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread adder = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200000; i++)
+                    buffer.add(message);
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                done.set(true);
+            }
+        });
+        adder.start();
+        List<Integer> sizes = new ArrayList<>();
+        int round = 0;
+        while (!done.get()) {
+            if (round++ % 10 == 0)
+                buffer.clear();
+            else
+                buffer.setCapacity(10 + round % 500);
+            sizes.add(buffer.snapshot().size());
+        }
+        adder.join();
+        assertNull(failure.get());
+        buffer.setCapacity(5);
+        for (int i = 0; i < 10; i++)
+            buffer.add(message);
+        assertEquals(5, buffer.size());
+        MessageBuffer one = new MessageBuffer(1);
+        one.add(message);
+        assertEquals(5 * one.getRetainedSize(), buffer.getRetainedSize()); // Not thrown off by the races
+        for (int size : sizes)
+            assertTrue(size <= 1000);
+    }
+}
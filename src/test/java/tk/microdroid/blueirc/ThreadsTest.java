@@ -0,0 +1,30 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThreadsTest {
+
+    @Test
+    void platformNonDaemonThreadsByDefault() {
+        assertFalse(Threads.virtual());
+        Thread thread = Threads.newThread(() -> { }, "blueirc-test");
+        assertFalse(thread.isDaemon());
+        assertEquals("blueirc-test", thread.getName());
+    }
+
+    @Test
+    void readerThreadKeepsTheJvmRunning() throws Exception {
+        try (FakeServer server = new FakeServer()) {
+            server.connect();
+            boolean found = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+                if (thread.getName().startsWith("blueirc-reader-")) {
+                    assertFalse(thread.isDaemon());
+                    found = true;
+                }
+            assertTrue(found);
+        }
+    }
+}
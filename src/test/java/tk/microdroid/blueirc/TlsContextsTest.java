@@ -0,0 +1,88 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TlsContextsTest {
+
+    @Test
+    void contextsAreSharedPerTrustConfiguration() throws Exception {
+        assertSame(TlsContexts.get(true), TlsContexts.get(true));
+        assertSame(TlsContexts.get(false), TlsContexts.get(false));
+        assertNotSame(TlsContexts.get(true), TlsContexts.get(false));
+    }
+
+    @Test
+    void enginesVerifyTheServerNameUnlessTrustingAll() throws Exception {
+        SSLEngine engine = TlsContexts.engine("irc.example.net", 6697, false);
+        assertTrue(engine.getUseClientMode());
+        assertEquals("irc.example.net", engine.getPeerHost());
+        assertEquals("HTTPS", engine.getSSLParameters().getEndpointIdentificationAlgorithm());
+        assertNull(TlsContexts.engine("irc.example.net", 6697, true).getSSLParameters().getEndpointIdentificationAlgorithm());
+    }
+
+    @Test
+    void reconnectionResumesTheSession(@TempDir Path dir) throws Exception {
+        File keyStore = dir.resolve("server.p12").toFile();
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        assumeTrue(keytool.canExecute(), "keytool is needed to create the server's certificate");
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-keyalg", "EC", "-alias", "server",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", "secret", "-keypass", "secret")
+                .redirectErrorStream(true).start();
+        assumeTrue(process.waitFor(60, TimeUnit.SECONDS) && process.exitValue() == 0);
+
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            keys.load(in, "secret".toCharArray());
+        }
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keys, "secret".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(factory.getKeyManagers(), null, null);
+
+        try (SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0)) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 2; i++)
+                    try (SSLSocket client = (SSLSocket) server.accept()) {
+                        OutputStream out = client.getOutputStream();
+                        out.write('x'); // Lets the client read the session ticket sent after the handshake
+                        out.flush();
+                        client.getInputStream().read();
+                    } catch (Exception e) {
+                        return;
+                    }
+            }, "fake-tls-server");
+            thread.setDaemon(true);
+            thread.start();
+
+            Metrics metrics = Lines.worker().getMetrics();
+            for (int i = 0; i < 2; i++)
+                try (SSLSocket socket = TlsContexts.connect("localhost", server.getLocalPort(), true, metrics)) {
+                    assertEquals('x', socket.getInputStream().read());
+                    socket.getOutputStream().write('y');
+                    socket.getOutputStream().flush();
+                }
+            assertEquals(2, metrics.getHandshakes());
+            assertEquals(1, metrics.getResumedHandshakes());
+            assertTrue(metrics.getLastHandshakeTime() >= 0);
+        }
+    }
+}
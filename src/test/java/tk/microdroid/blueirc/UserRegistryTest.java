@@ -0,0 +1,81 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRegistryTest {
+    private Worker worker;
+    private Channel a, b;
+
+    @BeforeEach
+    void join() {
+        worker = Lines.worker();
+        Lines.receive(worker,
+                ":me!u@h JOIN #a",
+                ":me!u@h JOIN #b",
+                ":bob!u@h JOIN #a",
+                ":bob!u@h JOIN #b",
+                ":carol!u@h JOIN #b");
+        a = worker.getChannel("#a");
+        b = worker.getChannel("#b");
+    }
+
+    @Test
+    void oneUserPerNickAcrossChannels() {
+        User bob = worker.getUser("bob");
+        assertSame(bob, a.getUser("bob"));
+        assertSame(bob, b.getUser("BOB"));
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), bob.getChannels());
+        assertEquals(new HashSet<>(Arrays.asList(b)), worker.getUser("carol").getChannels());
+    }
+
+    @Test
+    void quitRemovesTheUserFromItsChannels() {
+        Lines.receive(worker, ":bob!u@h QUIT :bye");
+        assertFalse(a.hasUser("bob"));
+        assertFalse(b.hasUser("bob"));
+        assertNull(worker.getUser("bob"));
+        assertTrue(b.hasUser("carol"));
+    }
+
+    @Test
+    void nickRenamesTheUserEverywhere() {
+        User bob = worker.getUser("bob");
+        Lines.receive(worker, ":bob!u@h NICK :robert");
+        assertNull(worker.getUser("bob"));
+        assertSame(bob, worker.getUser("robert"));
+        assertEquals("robert", bob.getNick());
+        assertSame(bob, a.getUser("robert"));
+        assertSame(bob, b.getUser("robert"));
+        assertFalse(a.hasUser("bob"));
+    }
+
+    @Test
+    void ourNickChangeIsTracked() {
+        Lines.receive(worker, ":me!u@h NICK newme");
+        assertEquals("newme!u@h", worker.getHostmask());
+        Lines.receive(worker, ":newme!u@h PART #a");
+        assertTrue(a.hasLeft());
+    }
+
+    @Test
+    void userIsForgottenOnceItLeftAllOurChannels() {
+        Lines.receive(worker, ":bob!u@h PART #a");
+        assertFalse(a.hasUser("bob"));
+        assertEquals(new HashSet<>(Arrays.asList(b)), worker.getUser("bob").getChannels());
+        Lines.receive(worker, ":op!u@h KICK #b bob :out");
+        assertNull(worker.getUser("bob"));
+    }
+
+    @Test
+    void usersAreDetachedWhenWeLeave() {
+        Lines.receive(worker, ":me!u@h PART #b");
+        assertNull(worker.getUser("carol"));
+        assertEquals(new HashSet<>(Arrays.asList(a)), worker.getUser("bob").getChannels());
+    }
+}
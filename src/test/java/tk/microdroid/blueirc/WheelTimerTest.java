@@ -0,0 +1,64 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WheelTimerTest {
+    private final BlockingQueue<Throwable> uncaught = new LinkedBlockingQueue<>();
+    private final WheelTimer timer = new WheelTimer(10, 8, task -> {
+        Thread thread = new Thread(task, "blueirc-timer-test");
+        thread.setDaemon(true);
+        thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+        return thread;
+    });
+
+    @AfterEach
+    void stop() {
+        timer.stop();
+    }
+
+    @Test
+    void runsTasksInDeadlineOrder() throws Exception {
+        BlockingQueue<Integer> ran = new LinkedBlockingQueue<>();
+        timer.schedule(() -> ran.add(2), 60);
+        timer.schedule(() -> ran.add(1), 20);
+        timer.schedule(() -> ran.add(0), 0);
+        for (int i = 0; i < 3; i++)
+            assertEquals(i, ran.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void waitsForMoreTurnsOfTheWheel() throws Exception {
+        BlockingQueue<Long> ran = new LinkedBlockingQueue<>();
+        long start = System.nanoTime();
+        timer.schedule(() -> ran.add(System.nanoTime()), 200); // 20 ticks on a wheel of 8 slots
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(ran.poll(5, TimeUnit.SECONDS) - start);
+        assertTrue(elapsed >= 190, "ran after " + elapsed + " ms");
+    }
+
+    @Test
+    void cancelledTasksDontRun() throws Exception {
+        BlockingQueue<String> ran = new LinkedBlockingQueue<>();
+        timer.schedule(() -> ran.add("cancelled"), 50).cancel();
+        timer.schedule(() -> ran.add("kept"), 100);
+        assertEquals("kept", ran.poll(5, TimeUnit.SECONDS));
+        assertNull(ran.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failingTaskGoesToTheUncaughtExceptionHandler() throws Exception {
+        BlockingQueue<String> ran = new LinkedBlockingQueue<>();
+        timer.schedule(() -> {
+            throw new IllegalStateException("boom");
+        }, 0);
+        timer.schedule(() -> ran.add("after"), 30);
+        assertEquals("boom", uncaught.poll(5, TimeUnit.SECONDS).getMessage());
+        assertEquals("after", ran.poll(5, TimeUnit.SECONDS));
+    }
+}
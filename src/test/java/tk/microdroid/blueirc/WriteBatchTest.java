@@ -0,0 +1,29 @@
+package tk.microdroid.blueirc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBatchTest {
+
+    @Test
+    void writesQueuedMessagesInOrder() throws Exception {
+        try (FakeServer server = new FakeServer()) {
+            Worker worker = server.connect();
+            CountDownLatch sent = new CountDownLatch(200);
+            worker.setEventHandler((event, args) -> {
+                if (event == Event.DATA_SENT && ((Message) args).getMsg().startsWith("PRIVMSG")) sent.countDown();
+            });
+            for (int i = 0; i < 200; i++)
+                worker.send("PRIVMSG #chan :" + i);
+            for (int i = 0; i < 200; i++)
+                assertEquals("PRIVMSG #chan :" + i, server.expect("PRIVMSG"));
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            assertEquals(0, worker.getMetrics().getQueuedMessages());
+            assertEquals(200, worker.getMetrics().getSentMessages() - 1); // And CAP LS
+        }
+    }
+}